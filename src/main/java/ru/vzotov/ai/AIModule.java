@@ -1,27 +1,65 @@
 package ru.vzotov.ai;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import dev.langchain4j.data.segment.TextSegment;
+import com.zaxxer.hikari.HikariDataSource;
 import dev.langchain4j.model.chat.ChatLanguageModel;
 import dev.langchain4j.model.embedding.EmbeddingModel;
-import dev.langchain4j.store.embedding.EmbeddingStore;
 import dev.langchain4j.store.embedding.pgvector.PgVectorEmbeddingStore;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.postgresql.ds.PGSimpleDataSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.boot.autoconfigure.ImportAutoConfiguration;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.orm.jpa.JpaTransactionManager;
+import org.springframework.orm.jpa.SharedEntityManagerCreator;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.util.ClassUtils;
 import ru.vzotov.accounting.domain.model.PersistentPropertyRepository;
+import ru.vzotov.accounting.interfaces.purchases.PurchasesApi;
+import ru.vzotov.ai.application.AIMetrics;
+import ru.vzotov.ai.application.CategoryCentroids;
+import ru.vzotov.ai.application.ChatModelDispatcher;
+import ru.vzotov.ai.application.ClassificationCache;
+import ru.vzotov.ai.application.ClassificationJobs;
+import ru.vzotov.ai.application.ParallelStage;
 import ru.vzotov.ai.application.PurchaseCategoryIndexer;
 import ru.vzotov.ai.application.PurchaseCategoryProcessor;
+import ru.vzotov.ai.application.PurchaseEmbeddingStore;
+import ru.vzotov.ai.application.PurchaseNameIndex;
+import ru.vzotov.ai.application.PurchaseQueryRepository;
+import ru.vzotov.ai.application.SimilarityVote;
+import ru.vzotov.ai.application.TokenBudgetBatcher;
+import ru.vzotov.ai.application.VoteAdaptation;
+import ru.vzotov.ai.application.VoteEvaluator;
+import ru.vzotov.ai.infrastructure.chat.MeteredChatLanguageModel;
+import ru.vzotov.ai.infrastructure.embedding.CachedEmbeddingModel;
+import ru.vzotov.ai.infrastructure.embedding.EmbeddingCache;
+import ru.vzotov.ai.infrastructure.embedding.JdbcEmbeddingCacheStore;
+import ru.vzotov.ai.infrastructure.embedding.LocalEmbeddingModel;
+import ru.vzotov.ai.infrastructure.embedding.MeteredEmbeddingModel;
+import ru.vzotov.ai.infrastructure.persistence.JpaPurchaseQueryRepository;
+import ru.vzotov.ai.infrastructure.pgvector.PgVectorIndex;
+import ru.vzotov.ai.infrastructure.pgvector.PgVectorPurchaseEmbeddingStore;
+import ru.vzotov.ai.infrastructure.pgvector.PgVectorTable;
+import ru.vzotov.ai.infrastructure.vector.LocalIndexEmbeddingStore;
+import ru.vzotov.ai.infrastructure.vector.PartitionedVectorIndex;
 import ru.vzotov.ai.interfaces.facade.AIFacade;
 import ru.vzotov.ai.interfaces.facade.impl.AIFacadeImpl;
 import ru.vzotov.cashreceipt.domain.model.PurchaseCategoryRepository;
 import ru.vzotov.langchain4j.gigachat.spring.AutoConfig;
 import ru.vzotov.purchases.domain.model.PurchaseRepository;
 
+import java.util.Objects;
+
+import static ru.vzotov.ai.application.PurchaseMetadata.F_OWNER;
+
 @ConditionalOnProperty(prefix = AIModuleProperties.PREFIX, name = "enabled")
 @Configuration
 @ImportAutoConfiguration(AutoConfig.class)
@@ -29,38 +67,294 @@ public class AIModule {
 
     private static final Logger log = LoggerFactory.getLogger(AIModule.class);
 
+    private static final String ONNX_MODEL_CLASS = "dev.langchain4j.model.embedding.OnnxEmbeddingModel";
+
     @Bean
     AIModuleProperties aiModuleProperties() {
         return new AIModuleProperties();
     }
 
+    /**
+     * Connection pool of the vector database, shared by the module.
+     * It is not an autowire candidate, so it does not replace the data sources of the application.
+     */
+    @Bean(destroyMethod = "close", autowireCandidate = false)
+    HikariDataSource pgVectorDataSource(AIModuleProperties properties) {
+        PgVectorConfigProperties config = properties.getPgvector();
+        PGSimpleDataSource dataSource = new PGSimpleDataSource();
+        dataSource.setServerNames(new String[]{config.getHost()});
+        dataSource.setPortNumbers(new int[]{config.getPort()});
+        dataSource.setDatabaseName(config.getDatabase());
+        dataSource.setUser(config.getUser());
+        dataSource.setPassword(config.getPassword());
+        HikariDataSource pool = new HikariDataSource();
+        pool.setPoolName("ai-pgvector");
+        pool.setDataSource(dataSource);
+        pool.setMaximumPoolSize(config.getMaxPoolSize());
+        return pool;
+    }
+
     @Bean
-    EmbeddingStore<TextSegment> embeddingStore(AIModuleProperties properties) {
+    PgVectorIndex pgVectorIndex(AIModuleProperties properties) {
         PgVectorConfigProperties config = properties.getPgvector();
-        return PgVectorEmbeddingStore.builder()
-                .host(config.getHost())
-                .port(config.getPort())
-                .database(config.getDatabase())
-                .user(config.getUser())
-                .password(config.getPassword())
-                .dimension(config.getDimension())
+        return PgVectorIndex.builder()
+                .dataSource(pgVectorDataSource(properties))
                 .table(config.getTable())
-                .createTable(config.getCreate())
-                .dropTableFirst(config.getDrop())
-                .useIndex(true)
-                .indexListSize(config.getIndexListSize())
+                .type(config.getIndexType())
+                .m(config.getHnswM())
+                .efConstruction(config.getHnswEfConstruction())
+                .lists(config.getIndexListSize())
+                .build();
+    }
+
+    @Bean
+    PurchaseEmbeddingStore embeddingStore(AIModuleProperties properties, ObjectMapper objectMapper,
+                                          PgVectorIndex pgVectorIndex) {
+        PgVectorConfigProperties config = properties.getPgvector();
+        PgVectorTable table = PgVectorTable.builder()
+                .dataSource(pgVectorDataSource(properties))
+                .table(config.getTable())
+                .objectMapper(objectMapper)
+                .efSearch(config.getEfSearch())
+                .probes(config.getProbes())
+                .build();
+        PgVectorPurchaseEmbeddingStore store = PgVectorPurchaseEmbeddingStore.builder()
+                .delegate(PgVectorEmbeddingStore.builder()
+                        .host(config.getHost())
+                        .port(config.getPort())
+                        .database(config.getDatabase())
+                        .user(config.getUser())
+                        .password(config.getPassword())
+                        .dimension(config.getDimension())
+                        .table(config.getTable())
+                        .createTable(config.getCreate())
+                        .dropTableFirst(config.getDrop())
+                        .useIndex(false)
+                        .build())
+                .table(table)
+                .build();
+        pgVectorIndex.create();
+        // similarity search is restricted to the purchases of one person
+        table.createIndex(F_OWNER);
+        if (!Boolean.TRUE.equals(properties.getLocalIndex())) {
+            return store;
+        }
+
+        LocalIndexEmbeddingStore localStore = LocalIndexEmbeddingStore.builder()
+                .delegate(store)
+                .index(new PartitionedVectorIndex(config.getDimension(),
+                        segment -> segment.metadata().get(F_OWNER)))
+                .build();
+        localStore.load(table);
+        return localStore;
+    }
+
+    @Bean
+    AIMetrics aiMetrics(AIModuleProperties properties, ObjectProvider<MeterRegistry> meterRegistry) {
+        return new AIMetrics(meterRegistry.getIfAvailable(), properties.getModelType());
+    }
+
+    @Bean
+    EmbeddingCache embeddingCache(AIModuleProperties properties, ObjectProvider<MeterRegistry> meterRegistry) {
+        EmbeddingCacheConfigProperties config = properties.getEmbeddingCache();
+        PgVectorConfigProperties pgvector = properties.getPgvector();
+        return EmbeddingCache.builder()
+                .maximumSize(config.getMaximumSize())
+                .expireAfterAccess(config.getExpireAfterAccess())
+                .store(Boolean.TRUE.equals(config.getPersistent()) ?
+                        JdbcEmbeddingCacheStore.builder()
+                                .dataSource(pgVectorDataSource(properties))
+                                .table(config.getTable())
+                                .dimension(pgvector.getDimension())
+                                .createTable(true)
+                                .build()
+                        : null)
+                .meterRegistry(meterRegistry.getIfAvailable())
+                .build();
+    }
+
+    @Bean(destroyMethod = "shutdown")
+    @ConditionalOnProperty(prefix = AIModuleProperties.PREFIX, name = "model-type", havingValue = "ONNX")
+    LocalEmbeddingModel localEmbeddingModel(AIModuleProperties properties) {
+        if (!ClassUtils.isPresent(ONNX_MODEL_CLASS, AIModule.class.getClassLoader())) {
+            throw new IllegalStateException("Model type ONNX requires dev.langchain4j:langchain4j-embeddings");
+        }
+        OnnxConfigProperties config = properties.getOnnx();
+        LocalEmbeddingModel model = LocalEmbeddingModel.builder()
+                .modelPath(config.getModelPath())
+                .tokenizerPath(config.getTokenizerPath())
+                .poolingMode(config.getPoolingMode())
+                .parallelism(config.getParallelism())
+                .batchSize(config.getBatchSize())
+                .build();
+        int dimension = properties.getPgvector().getDimension();
+        if (model.dimension() != dimension) {
+            model.shutdown();
+            throw new IllegalStateException("Dimension of the ONNX model %d does not match pgvector dimension %d"
+                    .formatted(model.dimension(), dimension));
+        }
+        log.info("Using ONNX embedding model {}, dimension={}", config.getModelPath(), model.dimension());
+        return model;
+    }
+
+    @Bean
+    CategoryCentroids categoryCentroids(AIModuleProperties properties) {
+        return new CategoryCentroids(properties.getPurchases().getCentroidMinCount());
+    }
+
+    @Bean
+    SimilarityVote similarityVote(AIModuleProperties properties) {
+        PurchasesConfigProperties config = properties.getPurchases();
+        return SimilarityVote.builder()
+                .samples(config.getVoteSamples())
+                .threshold(config.getVoteThreshold())
+                .minScore(config.getVoteMinScore())
+                .weighting(config.getVoteWeighting())
+                .adaptive(config.getVoteAdaptive())
+                .targetAccuracy(config.getVoteTargetAccuracy())
+                .build();
+    }
+
+    @Bean
+    VoteEvaluator voteEvaluator(PurchaseEmbeddingStore embeddingStore,
+                                SimilarityVote similarityVote,
+                                AIModuleProperties properties) {
+        return VoteEvaluator.builder()
+                .embeddingStore(embeddingStore)
+                .vote(similarityVote)
+                .pageSize(properties.getPurchases().getSimilarityBatchSize())
+                .maxLimit(properties.getPurchases().getVoteEvaluationLimit())
+                .build();
+    }
+
+    @Bean
+    @ConditionalOnBean(PersistentPropertyRepository.class)
+    @ConditionalOnProperty(prefix = AIModuleProperties.PREFIX, name = "purchases.vote-adaptive", havingValue = "true")
+    VoteAdaptation voteAdaptation(AIModuleProperties properties,
+                                  VoteEvaluator voteEvaluator,
+                                  SimilarityVote similarityVote,
+                                  PurchaseEmbeddingStore embeddingStore,
+                                  PersistentPropertyRepository propertyRepository,
+                                  ObjectMapper objectMapper,
+                                  @Qualifier("accounting-tx") PlatformTransactionManager transactionManager) {
+        return VoteAdaptation.builder()
+                .evaluator(voteEvaluator)
+                .vote(similarityVote)
+                .embeddingStore(embeddingStore)
+                .propertyRepository(propertyRepository)
+                .objectMapper(objectMapper)
+                .transactionManager(transactionManager)
+                .modelType(properties.getModelType())
+                .limit(properties.getPurchases().getVoteEvaluationLimit())
+                .interval(properties.getPurchases().getVoteAdaptationInterval())
+                .build();
+    }
+
+    @Bean
+    ParallelStage indexingTransformStage(AIModuleProperties properties) {
+        PurchasesConfigProperties config = properties.getPurchases();
+        return ParallelStage.builder()
+                .name("ai-index-transform")
+                .parallelism(config.getIndexingTransformConcurrency())
+                .queueCapacity(config.getIndexingQueueCapacity())
+                .build();
+    }
+
+    @Bean
+    ParallelStage indexingEmbeddingStage(AIModuleProperties properties) {
+        PurchasesConfigProperties config = properties.getPurchases();
+        return ParallelStage.builder()
+                .name("ai-index-embedding")
+                .parallelism(config.getIndexingEmbeddingConcurrency())
+                .queueCapacity(config.getIndexingQueueCapacity())
                 .build();
     }
 
     @Bean
-    PurchaseCategoryProcessor processor(EmbeddingStore<TextSegment> embeddingStore,
-                                        EmbeddingModel embeddingModel,
+    ParallelStage indexingWriteStage(AIModuleProperties properties) {
+        PurchasesConfigProperties config = properties.getPurchases();
+        return ParallelStage.builder()
+                .name("ai-index-write")
+                .parallelism(config.getIndexingWriteConcurrency())
+                .queueCapacity(config.getIndexingQueueCapacity())
+                .build();
+    }
+
+    @Bean
+    PurchaseCategoryProcessor processor(PurchaseEmbeddingStore embeddingStore,
+                                        CategoryCentroids categoryCentroids,
+                                        @Qualifier("indexingTransformStage") ParallelStage transformStage,
+                                        @Qualifier("indexingEmbeddingStage") ParallelStage embeddingStage,
+                                        @Qualifier("indexingWriteStage") ParallelStage writeStage,
+                                        ObjectProvider<EmbeddingModel> embeddingModel,
+                                        ObjectProvider<LocalEmbeddingModel> localEmbeddingModel,
+                                        EmbeddingCache embeddingCache,
+                                        AIMetrics aiMetrics,
                                         AIModuleProperties properties) {
         PurchasesConfigProperties config = properties.getPurchases();
         return PurchaseCategoryProcessor.builder()
                 .embeddingStore(embeddingStore)
-                .embeddingModel(embeddingModel)
+                .embeddingModel(decorated(embeddingModel(embeddingModel, localEmbeddingModel),
+                        embeddingCache, aiMetrics, properties))
+                .embeddingModelName(embeddingModelName(properties))
                 .partitionSize(config.getPartitionSize())
+                .embeddingBatchSize(config.getIndexingEmbeddingBatchSize())
+                .writeBatchSize(config.getIndexingWriteBatchSize())
+                .centroids(categoryCentroids)
+                .transformStage(transformStage)
+                .embeddingStage(embeddingStage)
+                .writeStage(writeStage)
+                .build();
+    }
+
+    @Bean
+    PurchaseNameIndex purchaseNameIndex() {
+        return new PurchaseNameIndex();
+    }
+
+    @Bean
+    ClassificationCache classificationCache(AIModuleProperties properties,
+                                            PurchaseNameIndex purchaseNameIndex,
+                                            ObjectProvider<MeterRegistry> meterRegistry) {
+        PurchasesConfigProperties config = properties.getPurchases();
+        return ClassificationCache.builder()
+                .maximumSize(config.getResultCacheSize())
+                .expireAfterWrite(config.getResultCacheExpireAfterWrite())
+                .indexVersion(purchaseNameIndex::version)
+                .meterRegistry(meterRegistry.getIfAvailable())
+                .build();
+    }
+
+    @Bean
+    ClassificationJobs<PurchasesApi.Purchase> classificationJobs(AIModuleProperties properties) {
+        PurchasesConfigProperties config = properties.getPurchases();
+        return ClassificationJobs.<PurchasesApi.Purchase>builder()
+                .concurrency(config.getJobConcurrency())
+                .queueCapacity(config.getJobQueueCapacity())
+                .retention(config.getJobRetention())
+                .build();
+    }
+
+    @Bean
+    ChatModelDispatcher chatModelDispatcher(AIModuleProperties properties, AIMetrics aiMetrics) {
+        PurchasesConfigProperties config = properties.getPurchases();
+        return ChatModelDispatcher.builder()
+                .concurrency(config.getChatModelConcurrency())
+                .queueCapacity(config.getChatModelQueueCapacity())
+                .timeout(config.getChatModelTimeout())
+                .maxAttempts(config.getChatModelMaxAttempts())
+                .backoff(config.getChatModelBackoff())
+                .metrics(aiMetrics)
+                .build();
+    }
+
+    @Bean
+    ParallelStage similarityStage(AIModuleProperties properties) {
+        PurchasesConfigProperties config = properties.getPurchases();
+        return ParallelStage.builder()
+                .name("ai-similarity")
+                .parallelism(config.getSimilarityParallelism())
+                .queueCapacity(config.getSimilarityQueueCapacity())
                 .build();
     }
 
@@ -68,34 +362,142 @@ public class AIModule {
     AIFacade facade(
             PurchaseCategoryRepository purchaseCategoryRepository,
             PurchaseRepository purchaseRepository,
-            EmbeddingStore<TextSegment> embeddingStore,
-            EmbeddingModel embeddingModel,
+            ObjectProvider<PurchaseQueryRepository> purchaseQueryRepository,
+            PurchaseNameIndex purchaseNameIndex,
+            ClassificationCache classificationCache,
+            CategoryCentroids categoryCentroids,
+            SimilarityVote similarityVote,
+            VoteEvaluator voteEvaluator,
+            PurchaseEmbeddingStore embeddingStore,
+            ObjectProvider<EmbeddingModel> embeddingModel,
+            ObjectProvider<LocalEmbeddingModel> localEmbeddingModel,
+            EmbeddingCache embeddingCache,
             ChatLanguageModel chatLanguageModel,
-            ObjectMapper objectMapper) {
+            ObjectMapper objectMapper,
+            ChatModelDispatcher chatModelDispatcher,
+            @Qualifier("similarityStage") ParallelStage similarityStage,
+            AIMetrics aiMetrics,
+            AIModuleProperties properties,
+            @Qualifier("accounting-tx") PlatformTransactionManager transactionManager) {
         return AIFacadeImpl.builder()
                 .purchaseCategoryRepository(purchaseCategoryRepository)
                 .purchaseRepository(purchaseRepository)
+                .purchaseQueryRepository(purchaseQueryRepository.getIfAvailable())
+                .nameIndex(purchaseNameIndex)
+                .classificationCache(classificationCache)
                 .embeddingStore(embeddingStore)
-                .embeddingModel(embeddingModel)
-                .chatLanguageModel(chatLanguageModel)
+                .embeddingModel(decorated(embeddingModel(embeddingModel, localEmbeddingModel),
+                        embeddingCache, aiMetrics, properties))
+                .chatLanguageModel(MeteredChatLanguageModel.builder()
+                        .delegate(chatLanguageModel)
+                        .metrics(aiMetrics)
+                        .build())
                 .objectMapper(objectMapper)
+                .chatModelDispatcher(chatModelDispatcher)
+                .similarityStage(similarityStage)
+                .similarityBatchSize(properties.getPurchases().getSimilarityBatchSize())
+                .similarityVote(similarityVote)
+                .voteEvaluator(voteEvaluator)
+                .candidateCategoryNames(properties.getPurchases().getCandidateCategoryNames())
+                .centroids(categoryCentroids)
+                .centroidMinScore(properties.getPurchases().getCentroidMinScore())
+                .centroidMargin(properties.getPurchases().getCentroidMargin())
+                .chatModelBatcher(TokenBudgetBatcher.builder()
+                        .tokenBudget(properties.getPurchases().getChatModelTokenBudget())
+                        .maxSize(properties.getPurchases().getChatModelChunkSize())
+                        .charsPerToken(properties.getPurchases().getChatModelCharsPerToken())
+                        .build())
+                .metrics(aiMetrics)
+                .transactionManager(transactionManager)
                 .build();
     }
 
+    /**
+     * Bulk queries use the entity manager of the accounting transaction manager
+     */
     @Bean
-    @ConditionalOnBean(PersistentPropertyRepository.class)
+    @ConditionalOnBean(name = "accounting-tx")
+    @ConditionalOnMissingBean(PurchaseQueryRepository.class)
+    PurchaseQueryRepository purchaseQueryRepository(
+            @Qualifier("accounting-tx") PlatformTransactionManager transactionManager) {
+        if (!(transactionManager instanceof JpaTransactionManager jpaTransactionManager)) {
+            throw new IllegalStateException("JPA transaction manager is required, got " + transactionManager);
+        }
+        return new JpaPurchaseQueryRepository(
+                SharedEntityManagerCreator.createSharedEntityManager(jpaTransactionManager.getEntityManagerFactory()));
+    }
+
+    @Bean
+    @ConditionalOnBean({PersistentPropertyRepository.class, PurchaseQueryRepository.class})
     PurchaseCategoryIndexer indexer(AIModuleProperties properties,
                                     ObjectMapper objectMapper,
-                                    PurchaseRepository purchaseRepository,
+                                    PurchaseQueryRepository purchaseQueryRepository,
                                     PersistentPropertyRepository propertyRepository,
-                                    PurchaseCategoryProcessor processor) {
+                                    PurchaseCategoryProcessor processor,
+                                    PurchaseNameIndex purchaseNameIndex,
+                                    AIMetrics aiMetrics,
+                                    @Qualifier("accounting-tx") PlatformTransactionManager transactionManager) {
         return PurchaseCategoryIndexer.builder()
                 .modelType(properties.getModelType())
                 .objectMapper(objectMapper)
-                .purchaseRepository(purchaseRepository)
+                .purchaseQueryRepository(purchaseQueryRepository)
                 .propertyRepository(propertyRepository)
                 .processor(processor)
+                .nameIndex(purchaseNameIndex)
+                .transactionManager(transactionManager)
+                .pageSize(properties.getPurchases().getPageSize())
+                .removeDeleted(Boolean.TRUE.equals(properties.getPurchases().getRemoveDeleted()))
+                .metrics(aiMetrics)
+                .build();
+    }
+
+    /**
+     * The in-process model if it is configured, otherwise the embedding model of the starter
+     */
+    private static EmbeddingModel embeddingModel(ObjectProvider<EmbeddingModel> embeddingModel,
+                                                 ObjectProvider<LocalEmbeddingModel> localEmbeddingModel) {
+        LocalEmbeddingModel local = localEmbeddingModel.getIfAvailable();
+        return local != null ? local.embeddingModel() : embeddingModel.getObject();
+    }
+
+    /**
+     * Adds metrics and, if enabled, caching to the embedding model
+     */
+    private static EmbeddingModel decorated(EmbeddingModel embeddingModel,
+                                            EmbeddingCache embeddingCache,
+                                            AIMetrics aiMetrics,
+                                            AIModuleProperties properties) {
+        EmbeddingModel metered = MeteredEmbeddingModel.builder()
+                .delegate(embeddingModel)
+                .metrics(aiMetrics)
                 .build();
+        if (!Boolean.TRUE.equals(properties.getEmbeddingCache().getEnabled())) {
+            return metered;
+        }
+        return CachedEmbeddingModel.builder()
+                .delegate(metered)
+                .cache(embeddingCache)
+                .modelType(properties.getModelType())
+                .modelName(localModelName(properties))
+                .build();
+    }
+
+    /**
+     * Identity of the embedding model: the model type and the name of the in-process model, if any
+     */
+    private static String embeddingModelName(AIModuleProperties properties) {
+        String localModelName = localModelName(properties);
+        return localModelName == null ? properties.getModelType().name()
+                : properties.getModelType().name() + ":" + localModelName;
+    }
+
+    /**
+     * Name of the in-process model, or {@code null} if the model is defined by the model type
+     */
+    private static String localModelName(AIModuleProperties properties) {
+        if (properties.getModelType() != ModelType.ONNX) return null;
+        OnnxConfigProperties config = properties.getOnnx();
+        return Objects.requireNonNullElse(config.getModelName(), config.getModelPath());
     }
 
 }
@@ -15,9 +15,20 @@ public class AIModuleProperties {
 
     ModelType modelType = ModelType.GIGACHAT;
 
+    /**
+     * Serve similarity search from an in-process copy of the vector index
+     */
+    Boolean localIndex = false;
+
     @NestedConfigurationProperty
     PgVectorConfigProperties pgvector;
 
     @NestedConfigurationProperty
     PurchasesConfigProperties purchases;
+
+    @NestedConfigurationProperty
+    OnnxConfigProperties onnx = new OnnxConfigProperties();
+
+    @NestedConfigurationProperty
+    EmbeddingCacheConfigProperties embeddingCache = new EmbeddingCacheConfigProperties();
 }
@@ -0,0 +1,26 @@
+package ru.vzotov.ai;
+
+import jakarta.validation.constraints.Min;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.time.Duration;
+
+@Getter
+@Setter
+public class EmbeddingCacheConfigProperties {
+
+    Boolean enabled = true;
+
+    @Min(1)
+    Long maximumSize = 100_000L;
+
+    Duration expireAfterAccess = Duration.ofDays(1);
+
+    /**
+     * Keep computed embeddings in the pgvector database as well
+     */
+    Boolean persistent = false;
+
+    String table = "ai_embedding_cache";
+}
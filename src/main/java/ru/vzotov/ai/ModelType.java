@@ -1,5 +1,9 @@
 package ru.vzotov.ai;
 
 public enum ModelType {
-    GIGACHAT;
+    GIGACHAT,
+    /**
+     * Chat model of GigaChat and the in-process ONNX embedding model
+     */
+    ONNX;
 }
@@ -0,0 +1,50 @@
+package ru.vzotov.ai;
+
+import jakarta.validation.constraints.Min;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * In-process ONNX embedding model used with {@link ModelType#ONNX},
+ * e.g. an export of paraphrase-multilingual-MiniLM-L12-v2.
+ * <p>
+ * The dimension of the model must match {@link PgVectorConfigProperties#getDimension()}.
+ * The model requires the optional dependency dev.langchain4j:langchain4j-embeddings.
+ */
+@Getter
+@Setter
+public class OnnxConfigProperties {
+
+    /**
+     * Path to the model.onnx file
+     */
+    String modelPath;
+
+    /**
+     * Name of the model, part of fingerprints of indexed documents and of embedding cache keys.
+     * Defaults to the model path, set it to keep the index when the model file is moved.
+     */
+    String modelName;
+
+    /**
+     * Path to the tokenizer.json file
+     */
+    String tokenizerPath;
+
+    /**
+     * Pooling mode of the model, MEAN or CLS
+     */
+    String poolingMode = "MEAN";
+
+    /**
+     * Number of batches embedded in parallel
+     */
+    @Min(1)
+    Integer parallelism = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Number of texts embedded by one task
+     */
+    @Min(1)
+    Integer batchSize = 16;
+}
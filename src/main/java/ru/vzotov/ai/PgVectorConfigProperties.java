@@ -1,7 +1,9 @@
 package ru.vzotov.ai;
 
+import jakarta.validation.constraints.Min;
 import lombok.Getter;
 import lombok.Setter;
+import ru.vzotov.ai.infrastructure.pgvector.PgVectorIndex;
 
 @Getter
 @Setter
@@ -10,7 +12,48 @@ public class PgVectorConfigProperties {
     private String host = "localhost";
     private Integer port = 5432;
     private Integer dimension = 1024;
-    private Integer indexListSize = 100;
+
+    /**
+     * Type of the vector index
+     */
+    private PgVectorIndex.Type indexType = PgVectorIndex.Type.IVFFLAT;
+
+    /**
+     * Number of IVFFlat lists. When not set, the lists are sized to the number of rows
+     */
+    @Min(1)
+    private Integer indexListSize;
+
+    /**
+     * Max number of connections per HNSW layer
+     */
+    @Min(2)
+    private Integer hnswM = 16;
+
+    /**
+     * Size of the candidate list when the HNSW index is built
+     */
+    @Min(4)
+    private Integer hnswEfConstruction = 64;
+
+    /**
+     * Size of the candidate list of HNSW search. When not set, the server default is used
+     */
+    @Min(1)
+    private Integer efSearch;
+
+    /**
+     * Number of IVFFlat lists to search. When not set, the server default is used
+     */
+    @Min(1)
+    private Integer probes;
+
+    /**
+     * Maximum number of pooled connections to the vector database
+     */
+    @Min(1)
+    private Integer maxPoolSize = 4;
+
     private String database = "accounting";
     private String user = "accounting";
     private String password = "accounting";
@@ -1,16 +1,240 @@
 package ru.vzotov.ai;
 
+import jakarta.validation.constraints.DecimalMin;
 import jakarta.validation.constraints.Min;
 import lombok.Getter;
 import lombok.Setter;
+import ru.vzotov.ai.application.SimilarityVote;
+
+import java.time.Duration;
 
 @Getter
 @Setter
 public class PurchasesConfigProperties {
+    /**
+     * Number of purchases passing through the indexing stages together.
+     * It is well below {@code pageSize}, so partitions of a page are embedded while others are looked up or written
+     */
+    @Min(1)
+    Integer partitionSize = 100;
+
+    /**
+     * Number of purchases read and indexed in one transaction
+     */
+    @Min(1)
+    Integer pageSize = 1000;
+
+    /**
+     * Number of threads looking up stored documents and transforming purchases while indexing
+     */
+    @Min(1)
+    Integer indexingTransformConcurrency = 1;
+
+    /**
+     * Number of embedding batches in flight while indexing
+     */
+    @Min(1)
+    Integer indexingEmbeddingConcurrency = 4;
+
+    /**
+     * Number of documents embedded by one call while indexing
+     */
+    @Min(1)
+    Integer indexingEmbeddingBatchSize = 100;
+
+    /**
+     * Number of threads writing documents to the store while indexing
+     */
+    @Min(1)
+    Integer indexingWriteConcurrency = 2;
+
+    /**
+     * Number of documents written to the store by one call while indexing
+     */
+    @Min(1)
+    Integer indexingWriteBatchSize = 100;
+
+    /**
+     * Maximum number of batches waiting for each indexing stage,
+     * when it is full the previous stage does the work itself
+     */
     @Min(1)
-    Integer partitionSize = 1000;
+    Integer indexingQueueCapacity = 4;
 
+    /**
+     * Remove documents of deleted purchases
+     */
+    Boolean removeDeleted = true;
+
+    /**
+     * Delay before the first indexing, in milliseconds
+     */
     Integer initialDelay = 3000;
 
     Integer delay = 3600000;
+
+    /**
+     * Delay between checks of deleted purchases, in milliseconds.
+     * Every check covers {@code partitionSize} indexed purchases, continuing from the previous one
+     */
+    @Min(1)
+    Integer removeDeletedDelay = 60000;
+
+    /**
+     * Number of threads running similarity searches of the hybrid classification
+     */
+    @Min(1)
+    Integer similarityParallelism = 4;
+
+    /**
+     * Maximum number of similarity searches waiting for a worker
+     */
+    @Min(1)
+    Integer similarityQueueCapacity = 100;
+
+    /**
+     * Number of purchases searched by one similarity query
+     */
+    @Min(1)
+    Integer similarityBatchSize = 50;
+
+    /**
+     * Number of similar purchases voting for the category of the purchase
+     */
+    @Min(1)
+    Integer voteSamples = 5;
+
+    /**
+     * The category wins the vote if its share of votes is greater than {@code voteThreshold / voteSamples}
+     */
+    @Min(0)
+    Integer voteThreshold = 4;
+
+    /**
+     * Minimum cosine similarity of the voting purchases
+     */
+    @DecimalMin("0")
+    Double voteMinScore = 0.8;
+
+    /**
+     * Weighting of votes, by count or by similarity score
+     */
+    SimilarityVote.Weighting voteWeighting = SimilarityVote.Weighting.COUNT;
+
+    /**
+     * Choose the threshold of every person by the evaluation of the vote on their purchases
+     */
+    Boolean voteAdaptive = false;
+
+    /**
+     * Minimum accuracy of the adaptive threshold
+     */
+    @DecimalMin("0")
+    Double voteTargetAccuracy = 0.95;
+
+    /**
+     * Maximum number of purchases of a person evaluated by one evaluation of the vote
+     */
+    @Min(1)
+    Integer voteEvaluationLimit = 1000;
+
+    /**
+     * Adaptive thresholds are evaluated again when they are older than this interval
+     */
+    Duration voteAdaptationInterval = Duration.ofDays(1);
+
+    /**
+     * Maximum number of cached classification results, 0 disables the cache
+     */
+    @Min(0)
+    Long resultCacheSize = 10_000L;
+
+    Duration resultCacheExpireAfterWrite = Duration.ofHours(1);
+
+    /**
+     * Maximum number of classification jobs running at once
+     */
+    @Min(1)
+    Integer jobConcurrency = 2;
+
+    /**
+     * Maximum number of classification jobs waiting for a worker, other jobs are rejected
+     */
+    @Min(1)
+    Integer jobQueueCapacity = 20;
+
+    /**
+     * How long results of finished jobs are kept
+     */
+    Duration jobRetention = Duration.ofHours(1);
+
+    /**
+     * Maximum duration of the streamed classification response
+     */
+    Duration streamTimeout = Duration.ofMinutes(10);
+
+    /**
+     * Minimum number of indexed purchases of the category to classify purchases by its centroid
+     */
+    @Min(1)
+    Integer centroidMinCount = 3;
+
+    /**
+     * Minimum cosine similarity of the purchase to the nearest category centroid
+     */
+    @DecimalMin("0")
+    Double centroidMinScore = 0.8;
+
+    /**
+     * Minimum difference of similarity to the nearest and to the second nearest category centroid
+     */
+    @DecimalMin("0")
+    Double centroidMargin = 0.05;
+
+    /**
+     * Number of categories with names nearest to the name of an ambiguous purchase
+     * which are shown to the chat model in addition to the categories of similar purchases, 0 disables
+     */
+    @Min(0)
+    Integer candidateCategoryNames = 3;
+
+    /**
+     * Maximum number of purchases classified by one chat model call
+     */
+    @Min(1)
+    Integer chatModelChunkSize = 50;
+
+    /**
+     * Estimated number of tokens of one chat model call, including the categories, examples and the answer
+     */
+    @Min(1)
+    Integer chatModelTokenBudget = 4000;
+
+    /**
+     * Average number of characters of one token, used to estimate the size of the call
+     */
+    @DecimalMin("0.5")
+    Double chatModelCharsPerToken = 3.0;
+
+    /**
+     * Maximum number of concurrent chat model calls
+     */
+    @Min(1)
+    Integer chatModelConcurrency = 4;
+
+    /**
+     * Maximum number of chat model calls waiting for a worker
+     */
+    @Min(1)
+    Integer chatModelQueueCapacity = 100;
+
+    Duration chatModelTimeout = Duration.ofSeconds(60);
+
+    /**
+     * Maximum number of attempts when the chat model rate limit is reached
+     */
+    @Min(1)
+    Integer chatModelMaxAttempts = 3;
+
+    Duration chatModelBackoff = Duration.ofSeconds(1);
 }
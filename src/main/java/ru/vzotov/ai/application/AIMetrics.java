@@ -0,0 +1,100 @@
+package ru.vzotov.ai.application;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import ru.vzotov.ai.ModelType;
+
+import java.util.Objects;
+import java.util.function.Supplier;
+
+/**
+ * Meters of the AI module.
+ * <p>
+ * All meters are tagged with the model type.
+ */
+public class AIMetrics {
+
+    public static final String TAG_MODEL = "model";
+    public static final String TAG_MODE = "mode";
+
+    /**
+     * Mode of the calls made outside of classification, e.g. by the indexer
+     */
+    public static final String MODE_NONE = "NONE";
+
+    private final MeterRegistry registry;
+    private final ModelType modelType;
+    private final ThreadLocal<String> mode = new ThreadLocal<>();
+
+    /**
+     * @param registry meter registry, or {@code null} to keep meters in memory only
+     */
+    public AIMetrics(MeterRegistry registry, ModelType modelType) {
+        this.registry = registry == null ? new SimpleMeterRegistry() : registry;
+        this.modelType = Objects.requireNonNull(modelType);
+    }
+
+    public MeterRegistry registry() {
+        return registry;
+    }
+
+    public ModelType modelType() {
+        return modelType;
+    }
+
+    /**
+     * Classification mode of the current thread
+     */
+    public String mode() {
+        return Objects.requireNonNullElse(mode.get(), MODE_NONE);
+    }
+
+    /**
+     * Makes the call in the classification mode, so the meters of models called by it are tagged with the mode
+     */
+    public <T> T withMode(String mode, Supplier<T> call) {
+        final String previous = this.mode.get();
+        this.mode.set(mode);
+        try {
+            return call.get();
+        } finally {
+            if (previous == null) {
+                this.mode.remove();
+            } else {
+                this.mode.set(previous);
+            }
+        }
+    }
+
+    public Timer timer(String name, String... tags) {
+        return Timer.builder(name)
+                .tags(tags)
+                .tag(TAG_MODEL, modelType.name())
+                .register(registry);
+    }
+
+    public Counter counter(String name, String... tags) {
+        return Counter.builder(name)
+                .tags(tags)
+                .tag(TAG_MODEL, modelType.name())
+                .register(registry);
+    }
+
+    public Gauge gauge(String name, String baseUnit, Supplier<Number> value) {
+        return Gauge.builder(name, value)
+                .baseUnit(baseUnit)
+                .tag(TAG_MODEL, modelType.name())
+                .register(registry);
+    }
+
+    public DistributionSummary summary(String name, String... tags) {
+        return DistributionSummary.builder(name)
+                .tags(tags)
+                .tag(TAG_MODEL, modelType.name())
+                .register(registry);
+    }
+}
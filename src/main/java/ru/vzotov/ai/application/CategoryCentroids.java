@@ -0,0 +1,141 @@
+package ru.vzotov.ai.application;
+
+import ru.vzotov.cashreceipt.domain.model.PurchaseCategoryId;
+import ru.vzotov.person.domain.model.PersonId;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Centroids of indexed purchase embeddings of every category, for every person.
+ * <p>
+ * A centroid keeps the sum of unit vectors of the purchases of the category,
+ * so it is updated incrementally when purchases are indexed or removed.
+ * A purchase is classified by the cosine similarity of its embedding to the centroids.
+ */
+public class CategoryCentroids {
+
+    private final Map<PersonId, Map<PurchaseCategoryId, Centroid>> centroids = new ConcurrentHashMap<>();
+    private final int minCount;
+    private volatile boolean loaded;
+
+    /**
+     * @param minCount minimum number of purchases of the category to classify purchases by its centroid
+     */
+    public CategoryCentroids(int minCount) {
+        this.minCount = Math.max(1, minCount);
+    }
+
+    /**
+     * Centroids contain all indexed purchases
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    public void markLoaded() {
+        this.loaded = true;
+    }
+
+    /**
+     * Removes all centroids, so they have to be loaded again
+     */
+    public void reset() {
+        this.loaded = false;
+        centroids.clear();
+    }
+
+    public int size() {
+        return centroids.values().stream().mapToInt(Map::size).sum();
+    }
+
+    public void add(PersonId owner, PurchaseCategoryId category, float[] vector) {
+        centroids.computeIfAbsent(owner, key -> new ConcurrentHashMap<>())
+                .computeIfAbsent(category, key -> new Centroid(vector.length))
+                .add(vector, 1);
+    }
+
+    public void remove(PersonId owner, PurchaseCategoryId category, float[] vector) {
+        Optional.ofNullable(centroids.get(owner))
+                .map(byCategory -> byCategory.get(category))
+                .ifPresent(centroid -> centroid.add(vector, -1));
+    }
+
+    /**
+     * Finds the category which centroid is nearest to the vector
+     *
+     * @param minScore minimum cosine similarity to the nearest centroid
+     * @param margin   minimum difference of similarity to the nearest and to the second nearest centroid
+     */
+    public Optional<PurchaseCategoryId> classify(PersonId owner, float[] vector, double minScore, double margin) {
+        final Map<PurchaseCategoryId, Centroid> byCategory = centroids.get(owner);
+        if (byCategory == null) return Optional.empty();
+        final float[] query = unit(vector);
+        PurchaseCategoryId best = null;
+        double bestScore = Double.NEGATIVE_INFINITY;
+        double secondScore = Double.NEGATIVE_INFINITY;
+        for (Map.Entry<PurchaseCategoryId, Centroid> entry : byCategory.entrySet()) {
+            final Centroid.Snapshot snapshot = entry.getValue().snapshot();
+            if (snapshot.count() < minCount || snapshot.unit().length != query.length) continue;
+            final double score = dot(query, snapshot.unit());
+            if (score > bestScore) {
+                secondScore = bestScore;
+                bestScore = score;
+                best = entry.getKey();
+            } else if (score > secondScore) {
+                secondScore = score;
+            }
+        }
+        return best != null && bestScore >= minScore && bestScore - secondScore >= margin ?
+                Optional.of(best) : Optional.empty();
+    }
+
+    private static double dot(float[] a, float[] b) {
+        double result = 0;
+        for (int i = 0; i < a.length; i++) {
+            result += a[i] * b[i];
+        }
+        return result;
+    }
+
+    private static float[] unit(float[] vector) {
+        final double norm = Math.sqrt(dot(vector, vector));
+        final float[] result = new float[vector.length];
+        if (norm == 0) return result;
+        for (int i = 0; i < vector.length; i++) {
+            result[i] = (float) (vector[i] / norm);
+        }
+        return result;
+    }
+
+    private static class Centroid {
+        private final float[] sum;
+        private int count;
+        private volatile Snapshot snapshot;
+
+        Centroid(int dimension) {
+            this.sum = new float[dimension];
+            this.snapshot = new Snapshot(new float[dimension], 0);
+        }
+
+        synchronized void add(float[] vector, int sign) {
+            if (vector.length != sum.length) return;
+            final float[] unit = unit(vector);
+            for (int i = 0; i < sum.length; i++) {
+                sum[i] += sign * unit[i];
+            }
+            count = Math.max(0, count + sign);
+            if (count == 0) Arrays.fill(sum, 0);
+            snapshot = new Snapshot(count == 0 ? new float[sum.length] : unit(sum), count);
+        }
+
+        Snapshot snapshot() {
+            return snapshot;
+        }
+
+        record Snapshot(float[] unit, int count) {
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package ru.vzotov.ai.application;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.Builder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.time.Duration;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * Runs chat model calls with bounded concurrency.
+ * <p>
+ * Every call has a timeout, counted from the start of the call, so waiting in the queue and for the rate limit
+ * does not count. When the timeout expires, the thread making the call is interrupted;
+ * a chat client which does not respond to interrupts is limited by its own HTTP timeout.
+ * When the model reports that the rate limit is reached (HTTP status 429),
+ * all calls are paused with exponential backoff and the failed call is retried.
+ * Calls are made in the classification mode of the dispatching thread, see {@link AIMetrics#withMode}.
+ */
+public class ChatModelDispatcher {
+
+    private static final Logger log = LoggerFactory.getLogger(ChatModelDispatcher.class);
+
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    private final ThreadPoolExecutor executor;
+    private final ScheduledThreadPoolExecutor timer;
+    private final Predicate<Throwable> rateLimited;
+    private final Duration timeout;
+    private final int maxAttempts;
+    private final Duration backoff;
+    private final AtomicLong pausedUntil = new AtomicLong();
+    private final AIMetrics metrics;
+
+    /**
+     * @param rateLimited detects the error of the reached rate limit, by default the HTTP status 429
+     * @param metrics     counts calls and retries, optional
+     */
+    @Builder
+    public ChatModelDispatcher(int concurrency, int queueCapacity, Duration timeout, int maxAttempts, Duration backoff,
+                               Predicate<Throwable> rateLimited, AIMetrics metrics) {
+        if (concurrency <= 0)
+            throw new IllegalArgumentException("concurrency must be > 0");
+        if (maxAttempts <= 0)
+            throw new IllegalArgumentException("maxAttempts must be > 0");
+        this.timeout = Objects.requireNonNull(timeout);
+        this.backoff = Objects.requireNonNull(backoff);
+        this.maxAttempts = maxAttempts;
+        this.executor = new ThreadPoolExecutor(concurrency, concurrency, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueCapacity)),
+                new ThreadFactoryBuilder().setNameFormat("ai-chat-%d").setDaemon(true).build(),
+                ChatModelDispatcher::runInCaller);
+        this.executor.allowCoreThreadTimeOut(true);
+        this.timer = new ScheduledThreadPoolExecutor(1,
+                new ThreadFactoryBuilder().setNameFormat("ai-chat-timeout-%d").setDaemon(true).build());
+        this.timer.setRemoveOnCancelPolicy(true);
+        this.rateLimited = Objects.requireNonNullElse(rateLimited, ChatModelDispatcher::isRateLimited);
+        this.metrics = metrics;
+    }
+
+    /**
+     * Calls the chat model for every task and waits for all calls to complete.
+     * <p>
+     * Each result is passed to the consumer in the calling thread as soon as it is ready.
+     * Failed and timed out calls are logged and skipped, as well as calls rejected after the shutdown.
+     * When the calling thread is interrupted, calls which have not started yet are skipped.
+     *
+     * @throws IllegalStateException if the dispatcher is shut down while calls are waiting in the queue
+     */
+    public <T, R> void dispatch(List<T> tasks, Function<T, R> call, BiConsumer<T, R> onResult) {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new IllegalStateException("Interrupted before calling the chat model");
+        }
+        final String mode = metrics == null ? AIMetrics.MODE_NONE : metrics.mode();
+        final BlockingQueue<Completion<T, R>> completions = new LinkedBlockingQueue<>();
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        for (T task : tasks) {
+            try {
+                CompletableFuture.supplyAsync(() -> {
+                            if (cancelled.get()) throw new CancellationException("Chat model calls are cancelled");
+                            return metrics == null ? callWithRetry(task, call, mode)
+                                    : metrics.withMode(mode, () -> callWithRetry(task, call, mode));
+                        }, executor)
+                        .whenComplete((result, error) -> {
+                            if (error != null) {
+                                log.warn("Chat model call failed", error);
+                            }
+                            count(mode, "ai.chat.dispatch.calls", "outcome", outcome(error));
+                            completions.add(new Completion<>(task, error == null ? result : null));
+                        });
+            } catch (RejectedExecutionException e) {
+                log.warn("Chat model call is rejected: {}", e.getMessage());
+                count(mode, "ai.chat.dispatch.calls", "outcome", "rejected");
+                completions.add(new Completion<>(task, null));
+            }
+        }
+        int remaining = tasks.size();
+        while (remaining > 0) {
+            final Completion<T, R> completion;
+            try {
+                completion = completions.poll(timeout.toMillis(), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                cancelled.set(true);
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the chat model", e);
+            }
+            if (completion == null) {
+                // calls still queued when the dispatcher is shut down never complete
+                if (executor.isShutdown()) {
+                    cancelled.set(true);
+                    throw new IllegalStateException("Chat model dispatcher is shut down");
+                }
+                continue;
+            }
+            remaining--;
+            if (completion.result() != null) {
+                onResult.accept(completion.task(), completion.result());
+            }
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+        timer.shutdownNow();
+    }
+
+    /**
+     * Runs the call in the submitting thread when the queue is full, and rejects it after shutdown
+     */
+    private static void runInCaller(Runnable call, ThreadPoolExecutor executor) {
+        if (executor.isShutdown()) {
+            throw new RejectedExecutionException("Chat model dispatcher is shut down");
+        }
+        call.run();
+    }
+
+    private void count(String mode, String name, String... tags) {
+        if (metrics == null) return;
+        metrics.counter(name, Stream.concat(Stream.of(tags), Stream.of(AIMetrics.TAG_MODE, mode))
+                .toArray(String[]::new)).increment();
+    }
+
+    private static String outcome(Throwable error) {
+        final Throwable cause = error instanceof CompletionException && error.getCause() != null
+                ? error.getCause() : error;
+        if (cause == null) return "success";
+        if (cause instanceof CancellationException) return "cancelled";
+        if (cause instanceof CallTimedOutException) return "timeout";
+        return "error";
+    }
+
+    private <T, R> R callWithRetry(T task, Function<T, R> call, String mode) {
+        for (int attempt = 1; ; attempt++) {
+            awaitPause();
+            try {
+                return callWithTimeout(task, call);
+            } catch (RuntimeException e) {
+                if (attempt >= maxAttempts || !rateLimited.test(e)) throw e;
+                count(mode, "ai.chat.dispatch.retries");
+                final long delay = backoff.toMillis() << (attempt - 1);
+                pausedUntil.accumulateAndGet(System.currentTimeMillis() + delay, Math::max);
+                log.info("Chat model rate limit is reached, attempt {} of {}, retry in {} ms", attempt, maxAttempts, delay);
+            }
+        }
+    }
+
+    /**
+     * Calls the model, interrupting the calling thread when the timeout expires
+     */
+    private <T, R> R callWithTimeout(T task, Function<T, R> call) {
+        final Watchdog watchdog = new Watchdog(Thread.currentThread());
+        final ScheduledFuture<?> scheduled = timer.schedule(watchdog, timeout.toMillis(), TimeUnit.MILLISECONDS);
+        try {
+            return call.apply(task);
+        } catch (RuntimeException e) {
+            if (watchdog.expired()) {
+                throw new CallTimedOutException("Chat model call timed out after " + timeout, e);
+            }
+            throw e;
+        } finally {
+            scheduled.cancel(false);
+            watchdog.done();
+        }
+    }
+
+    /**
+     * Interrupts the thread of the call when the timeout expires, unless the call is done
+     */
+    private static class Watchdog implements Runnable {
+        private final Thread thread;
+        private boolean done;
+        private boolean expired;
+
+        Watchdog(Thread thread) {
+            this.thread = thread;
+        }
+
+        @Override
+        public synchronized void run() {
+            if (done) return;
+            expired = true;
+            thread.interrupt();
+        }
+
+        synchronized boolean expired() {
+            return expired;
+        }
+
+        /**
+         * Called by the thread of the call when it is done
+         */
+        synchronized void done() {
+            done = true;
+            if (expired) {
+                // the interrupt of the watchdog must not affect the next tasks of this thread
+                Thread.interrupted();
+            }
+        }
+    }
+
+    private void awaitPause() {
+        long wait;
+        while ((wait = pausedUntil.get() - System.currentTimeMillis()) > 0) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the rate limit", e);
+            }
+        }
+    }
+
+    private record Completion<T, R>(T task, R result) {
+    }
+
+    private static class CallTimedOutException extends IllegalStateException {
+        CallTimedOutException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    /**
+     * Checks whether the error or one of its causes is an HTTP error with the status 429.
+     * The status is read from the {@code statusCode()}, {@code getStatusCode()} or {@code code()} method
+     * of the exception, which covers the usual HTTP clients without depending on them.
+     */
+    static boolean isRateLimited(Throwable error) {
+        for (Throwable e = error; e != null; e = e.getCause()) {
+            final Integer status = statusCode(e);
+            if (status != null) {
+                return status == TOO_MANY_REQUESTS;
+            }
+        }
+        return false;
+    }
+
+    private static Integer statusCode(Throwable error) {
+        for (String name : List.of("statusCode", "getStatusCode", "code")) {
+            try {
+                final Method method = error.getClass().getMethod(name);
+                final Object value = method.invoke(error);
+                if (value instanceof Integer code) {
+                    return code;
+                }
+                if (value != null) {
+                    // e.g. HttpStatusCode of Spring
+                    final Object code = value.getClass().getMethod("value").invoke(value);
+                    if (code instanceof Integer number) return number;
+                }
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                // no such method, try the next one
+            }
+        }
+        return null;
+    }
+}
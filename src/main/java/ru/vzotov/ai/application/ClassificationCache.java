@@ -0,0 +1,90 @@
+package ru.vzotov.ai.application;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+import lombok.Builder;
+import ru.vzotov.cashreceipt.domain.model.PurchaseCategory;
+import ru.vzotov.cashreceipt.domain.model.PurchaseCategoryId;
+import ru.vzotov.person.domain.model.PersonId;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.function.ToLongFunction;
+
+/**
+ * Cache of classification results.
+ * <p>
+ * Results are cached by normalized purchase name, the version of the person's list of categories and
+ * the version of the person's indexed purchases, so they are not used after the categories or
+ * the indexed purchases of the person change. Changes of other persons do not affect them.
+ */
+public class ClassificationCache {
+
+    private final Cache<Key, PurchaseCategoryId> cache;
+    private final ToLongFunction<PersonId> indexVersion;
+
+    @Builder
+    public ClassificationCache(long maximumSize,
+                               Duration expireAfterWrite,
+                               ToLongFunction<PersonId> indexVersion,
+                               MeterRegistry meterRegistry) {
+        if (maximumSize < 0)
+            throw new IllegalArgumentException("maximumSize must be >= 0");
+        CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .recordStats();
+        if (expireAfterWrite != null) {
+            builder.expireAfterWrite(expireAfterWrite);
+        }
+        this.cache = builder.build();
+        this.indexVersion = Objects.requireNonNull(indexVersion);
+        if (meterRegistry != null) {
+            GuavaCacheMetrics.monitor(meterRegistry, cache, "ai.classification");
+        }
+    }
+
+    /**
+     * Version of the list of categories
+     */
+    public static String version(Collection<PurchaseCategory> categories) {
+        final Hasher hasher = Hashing.sha256().newHasher();
+        categories.stream()
+                .sorted(Comparator.comparing(category -> category.categoryId().value()))
+                .forEach(category -> hasher
+                        .putString(category.categoryId().value(), StandardCharsets.UTF_8).putChar('\t')
+                        .putString(String.valueOf(category.name()), StandardCharsets.UTF_8).putChar('\n'));
+        return hasher.hash().toString();
+    }
+
+    /**
+     * Key of the purchase name classified in the given mode
+     *
+     * @param categories version of the person's list of categories
+     */
+    public Key key(PersonId owner, String mode, String name, String categories) {
+        return new Key(owner, mode, PurchaseNames.normalize(name), categories, indexVersion.applyAsLong(owner));
+    }
+
+    public Optional<PurchaseCategoryId> get(Key key) {
+        return Optional.ofNullable(cache.getIfPresent(key));
+    }
+
+    public void put(Key key, PurchaseCategoryId categoryId) {
+        cache.put(key, categoryId);
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    public record Key(PersonId owner, String mode, String name, String categories, long indexVersion) {
+    }
+}
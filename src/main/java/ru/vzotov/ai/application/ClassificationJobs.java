@@ -0,0 +1,290 @@
+package ru.vzotov.ai.application;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.Builder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.concurrent.DelegatingSecurityContextRunnable;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Runs classification jobs in the background.
+ * <p>
+ * Jobs run on a bounded pool with the security context of the submitter. When the queue is full,
+ * new jobs are rejected. Partial results are collected as they are reported, and finished jobs
+ * are kept for the retention period, expired jobs are removed on schedule and are never found.
+ * A job which loses all of its subscribers is cancelled.
+ *
+ * @param <T> type of results
+ */
+public class ClassificationJobs<T> {
+
+    private static final Logger log = LoggerFactory.getLogger(ClassificationJobs.class);
+
+    private final ThreadPoolExecutor executor;
+    private final Duration retention;
+    private final Map<String, Job<T>> jobs = new ConcurrentHashMap<>();
+
+    @Builder
+    public ClassificationJobs(int concurrency, int queueCapacity, Duration retention) {
+        if (concurrency <= 0)
+            throw new IllegalArgumentException("concurrency must be > 0");
+        this.retention = Objects.requireNonNull(retention);
+        this.executor = new ThreadPoolExecutor(concurrency, concurrency, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueCapacity)),
+                new ThreadFactoryBuilder().setNameFormat("ai-job-%d").setDaemon(true).build(),
+                new ThreadPoolExecutor.AbortPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Submits the job
+     *
+     * @param owner name of the user who may read the job
+     * @param work  the work, which reports partial results to the given consumer
+     * @throws RejectedExecutionException if too many jobs are waiting
+     */
+    public Job<T> submit(String owner, Consumer<Consumer<List<T>>> work) {
+        removeExpired();
+        final Job<T> job = new Job<>(UUID.randomUUID().toString(), owner);
+        jobs.put(job.id(), job);
+        try {
+            executor.execute(DelegatingSecurityContextRunnable.create(() -> job.run(work),
+                    SecurityContextHolder.getContext()));
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.id());
+            throw e;
+        }
+        return job;
+    }
+
+    /**
+     * Finds the job of the owner
+     */
+    public Optional<Job<T>> find(String id, String owner) {
+        final Instant expired = Instant.now().minus(retention);
+        return Optional.ofNullable(jobs.get(id))
+                .filter(job -> job.owner().equals(owner))
+                .filter(job -> !isExpired(job, expired));
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Removes jobs finished before the retention period
+     */
+    @Scheduled(fixedDelayString = "#{@aiModuleProperties.purchases.jobRetention.toMillis()}")
+    public void removeExpired() {
+        final Instant expired = Instant.now().minus(retention);
+        jobs.values().removeIf(job -> isExpired(job, expired));
+    }
+
+    private static boolean isExpired(Job<?> job, Instant expired) {
+        final Instant finishedOn = job.finishedOn();
+        return finishedOn != null && finishedOn.isBefore(expired);
+    }
+
+    public enum Status {
+        QUEUED, RUNNING, DONE, FAILED, CANCELLED
+    }
+
+    public static class Job<T> {
+        private final String id;
+        private final String owner;
+        private final List<T> results = new ArrayList<>();
+        private final List<Subscriber<T>> subscribers = new ArrayList<>();
+        private Status status = Status.QUEUED;
+        private String error;
+        private Instant finishedOn;
+        private Thread runner;
+
+        Job(String id, String owner) {
+            this.id = id;
+            this.owner = Objects.requireNonNull(owner);
+        }
+
+        public String id() {
+            return id;
+        }
+
+        public String owner() {
+            return owner;
+        }
+
+        public synchronized Status status() {
+            return status;
+        }
+
+        public synchronized String error() {
+            return error;
+        }
+
+        public synchronized Instant finishedOn() {
+            return finishedOn;
+        }
+
+        /**
+         * Results reported after the first {@code from} ones
+         */
+        public synchronized List<T> results(int from) {
+            return from >= results.size() ? List.of() : List.copyOf(results.subList(Math.max(0, from), results.size()));
+        }
+
+        /**
+         * Subscribes to results of the job.
+         * Results reported so far are passed at once, the following ones as soon as they are reported.
+         * Subscribers are called outside the lock of the job, so a slow subscriber does not block other readers.
+         *
+         * @param onResults receives results
+         * @param onFinish  called when the job is finished
+         * @return subscription, the job is cancelled when its last subscriber unsubscribes before it is finished
+         */
+        public Subscription subscribe(Consumer<List<T>> onResults, Consumer<Job<T>> onFinish) {
+            final Subscriber<T> subscriber = new Subscriber<>(onResults, onFinish);
+            // the subscriber is locked until it receives the results reported so far,
+            // so the following results are not received before them
+            synchronized (subscriber) {
+                final List<T> reported;
+                final boolean finished;
+                synchronized (this) {
+                    reported = List.copyOf(results);
+                    finished = finishedOn != null;
+                    if (!finished) {
+                        subscribers.add(subscriber);
+                    }
+                }
+                if (!reported.isEmpty()) {
+                    subscriber.results(id, reported);
+                }
+                if (finished) {
+                    subscriber.finish(this);
+                }
+            }
+            return () -> unsubscribe(subscriber);
+        }
+
+        private void unsubscribe(Subscriber<T> subscriber) {
+            synchronized (this) {
+                if (!subscribers.remove(subscriber) || !subscribers.isEmpty()) return;
+            }
+            log.info("Classification job {} has no more subscribers", id);
+            cancel();
+        }
+
+        /**
+         * Cancels the job, interrupting the thread running it
+         */
+        private void cancel() {
+            final List<Subscriber<T>> notified;
+            synchronized (this) {
+                if (finishedOn != null) return;
+                this.status = Status.CANCELLED;
+                this.finishedOn = Instant.now();
+                if (runner != null) {
+                    runner.interrupt();
+                }
+                notified = List.copyOf(subscribers);
+                subscribers.clear();
+            }
+            notified.forEach(subscriber -> subscriber.finish(this));
+        }
+
+        private void run(Consumer<Consumer<List<T>>> work) {
+            synchronized (this) {
+                if (status == Status.CANCELLED) return;
+                status = Status.RUNNING;
+                runner = Thread.currentThread();
+            }
+            try {
+                work.accept(this::report);
+                finish(Status.DONE, null);
+            } catch (RuntimeException e) {
+                log.warn("Classification job {} failed", id, e);
+                finish(Status.FAILED, e.getMessage());
+            } finally {
+                synchronized (this) {
+                    runner = null;
+                    // the interrupt of the cancelled job must not affect the next jobs of this thread
+                    Thread.interrupted();
+                }
+            }
+        }
+
+        private void report(List<T> partial) {
+            final List<Subscriber<T>> notified;
+            synchronized (this) {
+                if (status == Status.CANCELLED) return;
+                results.addAll(partial);
+                notified = List.copyOf(subscribers);
+            }
+            notified.forEach(subscriber -> subscriber.results(id, partial));
+        }
+
+        private void finish(Status status, String error) {
+            final List<Subscriber<T>> notified;
+            synchronized (this) {
+                if (this.status == Status.CANCELLED) return;
+                this.status = status;
+                this.error = error;
+                this.finishedOn = Instant.now();
+                notified = List.copyOf(subscribers);
+                subscribers.clear();
+            }
+            notified.forEach(subscriber -> subscriber.finish(this));
+        }
+    }
+
+    /**
+     * Subscription to results of a job
+     */
+    public interface Subscription {
+        void unsubscribe();
+    }
+
+    /**
+     * Receives results of a job, one call at a time
+     */
+    private static class Subscriber<T> {
+        private final Consumer<List<T>> onResults;
+        private final Consumer<Job<T>> onFinish;
+
+        Subscriber(Consumer<List<T>> onResults, Consumer<Job<T>> onFinish) {
+            this.onResults = onResults;
+            this.onFinish = onFinish;
+        }
+
+        synchronized void results(String id, List<T> results) {
+            try {
+                onResults.accept(results);
+            } catch (RuntimeException e) {
+                log.warn("Subscriber of job {} failed", id, e);
+            }
+        }
+
+        synchronized void finish(Job<T> job) {
+            try {
+                onFinish.accept(job);
+            } catch (RuntimeException e) {
+                log.warn("Subscriber of job {} failed", job.id(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package ru.vzotov.ai.application;
+
+/**
+ * Statistics of purchase indexing
+ *
+ * @param embedded number of embedded and stored documents
+ * @param skipped  number of purchases which indexed content did not change
+ * @param removed  number of removed documents
+ */
+public record IndexingStats(int embedded, int skipped, int removed) {
+
+    public static final IndexingStats EMPTY = new IndexingStats(0, 0, 0);
+
+    public IndexingStats plus(IndexingStats other) {
+        return new IndexingStats(embedded + other.embedded, skipped + other.skipped, removed + other.removed);
+    }
+}
@@ -0,0 +1,67 @@
+package ru.vzotov.ai.application;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.Builder;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Processing stage that runs blocking tasks on its own bounded pool.
+ * <p>
+ * When the queue is full, tasks run in the calling thread.
+ */
+public class ParallelStage {
+
+    private final ThreadPoolExecutor executor;
+
+    @Builder
+    public ParallelStage(String name, int parallelism, int queueCapacity) {
+        if (parallelism <= 0)
+            throw new IllegalArgumentException("parallelism must be > 0");
+        Objects.requireNonNull(name);
+        this.executor = new ThreadPoolExecutor(parallelism, parallelism, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueCapacity)),
+                new ThreadFactoryBuilder().setNameFormat(name + "-%d").setDaemon(true).build(),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Applies the function to every item and waits for all results.
+     *
+     * @return results in the order of items
+     */
+    public <T, R> List<R> map(List<T> items, Function<T, R> function) {
+        final CompletableFuture<?>[] futures = items.stream()
+                .map(item -> CompletableFuture.supplyAsync(() -> function.apply(item), executor))
+                .toArray(CompletableFuture[]::new);
+        CompletableFuture.allOf(futures).join();
+        return Arrays.stream(futures)
+                .map(future -> {
+                    @SuppressWarnings("unchecked")
+                    final R result = (R) future.join();
+                    return result;
+                })
+                .toList();
+    }
+
+    /**
+     * Executor of the stage, for chaining asynchronous tasks of several stages.
+     * When the queue is full, tasks run in the thread submitting them.
+     */
+    public Executor executor() {
+        return executor;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
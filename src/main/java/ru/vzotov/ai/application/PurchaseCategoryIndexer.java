@@ -6,79 +6,100 @@ import lombok.Builder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.scheduling.annotation.Scheduled;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import ru.vzotov.accounting.domain.model.PersistentProperty;
 import ru.vzotov.accounting.domain.model.PersistentPropertyId;
 import ru.vzotov.accounting.domain.model.PersistentPropertyRepository;
 import ru.vzotov.ai.ModelType;
 import ru.vzotov.purchase.domain.model.Purchase;
-import ru.vzotov.purchases.domain.model.PurchaseRepository;
+import ru.vzotov.purchase.domain.model.PurchaseId;
 
+import java.time.Duration;
 import java.time.Instant;
-import java.util.Comparator;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.function.BiFunction;
-import java.util.stream.Collectors;
-
-import static java.util.stream.Collectors.mapping;
-import static java.util.stream.Collectors.teeing;
-import static ru.vzotov.purchases.domain.model.PurchaseSpecifications.updatedAfter;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * Indexes purchase categories for vector search.
+ * Indexes purchase categories for vector search and for the lookup by name.
+ * <p>
+ * Purchases are read in pages ordered by {@code (updatedOn, purchaseId)}.
+ * Each page is processed in its own transaction, and the position is stored after each page,
+ * so an interrupted run resumes where it stopped.
+ * The name index is kept in memory, so it is loaded from all purchases on the first run.
+ * Category centroids are kept in memory as well, they are loaded from the embedding store.
+ * Documents of deleted purchases are found by checking one page of stored documents at a time,
+ * so the whole store is checked over a number of runs.
  */
 public class PurchaseCategoryIndexer {
     private static final Logger log = LoggerFactory.getLogger(PurchaseCategoryIndexer.class);
 
     private final ObjectMapper objectMapper;
-    private final PurchaseRepository purchaseRepository;
+    private final PurchaseQueryRepository purchaseQueryRepository;
     private final PersistentPropertyRepository propertyRepository;
     private final ModelType modelType;
     private final PurchaseCategoryProcessor processor;
+    private final PurchaseNameIndex nameIndex;
+    private final TransactionTemplate transactionTemplate;
+    private final int pageSize;
+    private final boolean removeDeleted;
+    private final AIMetrics metrics;
+    private final AtomicReference<Instant> lastIndexedOn = new AtomicReference<>();
+    private final AtomicReference<String> lastCheckedId = new AtomicReference<>();
 
     @Builder
     public PurchaseCategoryIndexer(
             ObjectMapper objectMapper,
-            PurchaseRepository purchaseRepository,
+            PurchaseQueryRepository purchaseQueryRepository,
             PersistentPropertyRepository propertyRepository,
             PurchaseCategoryProcessor processor,
-            ModelType modelType
+            PurchaseNameIndex nameIndex,
+            ModelType modelType,
+            PlatformTransactionManager transactionManager,
+            int pageSize,
+            boolean removeDeleted,
+            AIMetrics metrics
     ) {
+        if (pageSize <= 0)
+            throw new IllegalArgumentException("pageSize must be > 0");
         this.processor = Objects.requireNonNull(processor);
+        this.nameIndex = Objects.requireNonNull(nameIndex);
         this.objectMapper = objectMapper;
-        this.purchaseRepository = purchaseRepository;
+        this.purchaseQueryRepository = Objects.requireNonNull(purchaseQueryRepository);
         this.propertyRepository = propertyRepository;
         this.modelType = Objects.requireNonNull(modelType);
+        this.transactionTemplate = new TransactionTemplate(Objects.requireNonNull(transactionManager));
+        this.pageSize = pageSize;
+        this.removeDeleted = removeDeleted;
+        this.metrics = Objects.requireNonNull(metrics);
+        metrics.gauge("ai.indexer.lag", "seconds", () -> Optional.ofNullable(lastIndexedOn.get())
+                .map(value -> Duration.between(value, Instant.now()).toSeconds())
+                .orElse(0L));
     }
 
     private String systemPropertyName() {
         return "ai.purchases." + modelType;
     }
 
-    /**
-     * Date of the most recent known purchase
-     */
-    public Instant lastIndexedOn() {
+    private PurchasesAIProperties properties() {
         PersistentProperty prop = propertyRepository.findSystemProperty(systemPropertyName());
         if (prop == null) {
-            return Instant.EPOCH;
+            return new PurchasesAIProperties(Instant.EPOCH, null, null, null);
         } else {
             try {
-                PurchasesAIProperties props = objectMapper.readValue(prop.value(), PurchasesAIProperties.class);
-                return props.lastIndexedOn();
+                return objectMapper.readValue(prop.value(), PurchasesAIProperties.class);
             } catch (JsonProcessingException e) {
                 throw new RuntimeException(e);
             }
         }
     }
 
-    public void updateLastIndexedOn(Instant value) {
+    private void storeProperties(PurchasesAIProperties props) {
         final String systemPropertyName = systemPropertyName();
         PersistentProperty prop = Optional.ofNullable(propertyRepository.findSystemProperty(systemPropertyName))
                 .orElseGet(() -> new PersistentProperty(PersistentPropertyId.nextId(), systemPropertyName));
-        PurchasesAIProperties props = new PurchasesAIProperties(value);//todo: keep other properties
         try {
             prop.setValue(objectMapper.writeValueAsString(props));
             propertyRepository.store(prop);
@@ -87,30 +108,155 @@ public class PurchaseCategoryIndexer {
         }
     }
 
+    /**
+     * Date of the most recent known purchase
+     */
+    public Instant lastIndexedOn() {
+        return Optional.ofNullable(properties().lastIndexedOn()).orElse(Instant.EPOCH);
+    }
+
+    public void updateLastIndexedOn(Instant value) {
+        transactionTemplate.executeWithoutResult(status -> {
+            PurchasesAIProperties props = properties();
+            storeProperties(new PurchasesAIProperties(value, null, props.layout(), props.removeOutdated()));
+        });
+    }
+
     @Scheduled(initialDelayString = "#{@aiModuleProperties.purchases.initialDelay}",
             fixedDelayString = "#{@aiModuleProperties.purchases.delay}")
-    @Transactional(value = "accounting-tx")
     public void doIndex() {
+        metrics.timer("ai.indexer.runs").record(this::index);
+    }
+
+    private void index() {
         log.info("Start indexing purchases");
 
-        List<Purchase> purchases = purchaseRepository.findAll(updatedAfter(lastIndexedOn()));
-        log.debug("There are {} new purchases since last indexing", purchases.size());
+        PurchasesAIProperties props = transactionTemplate.execute(status -> {
+            PurchasesAIProperties current = properties();
+            if (Objects.equals(current.layout(), PurchaseCategoryProcessor.LAYOUT)) {
+                return current;
+            }
+            log.info("Index layout {} is outdated, all purchases will be re-indexed with layout {}",
+                    current.layout(), PurchaseCategoryProcessor.LAYOUT);
+            PurchasesAIProperties restart = new PurchasesAIProperties(Instant.EPOCH, null,
+                    PurchaseCategoryProcessor.LAYOUT, true);
+            storeProperties(restart);
+            return restart;
+        });
+        Objects.requireNonNull(props);
+
+        final boolean fullScan = Instant.EPOCH.equals(props.lastIndexedOn()) && props.lastPurchaseId() == null;
+        if (!nameIndex.isLoaded() && !fullScan) {
+            loadNameIndex();
+        }
+        // centroids are loaded from the stored documents and then updated with every indexed page
+        processor.loadCentroids();
+
+        int pages = 0;
+        long rows = 0;
+        IndexingStats stats = IndexingStats.EMPTY;
+        while (true) {
+            final PurchasesAIProperties position = props;
+            final PageResult next = transactionTemplate.execute(status -> indexPage(position));
+            if (next == null) break;
+            pages++;
+            rows += next.rows();
+            stats = stats.plus(next.stats());
+            props = next.properties();
+            if (next.rows() < pageSize) break;
+        }
+        nameIndex.markLoaded();
+
+        if (Boolean.TRUE.equals(props.removeOutdated())) {
+            int removed = processor.removeOutdated();
+            log.info("Removed {} documents of outdated layouts", removed);
+            final PurchasesAIProperties done = new PurchasesAIProperties(props.lastIndexedOn(), props.lastPurchaseId(),
+                    props.layout(), null);
+            transactionTemplate.executeWithoutResult(status -> storeProperties(done));
+            props = done;
+        }
 
-        BiFunction<List<Purchase>, Optional<Instant>, Instant> merger = (result, lastUpdated) -> {
-            processor.process(result);
-            lastUpdated.ifPresent(this::updateLastIndexedOn);
-            return lastUpdated.orElse(null);
-        };
+        lastIndexedOn.set(props.lastIndexedOn());
+        metrics.counter("ai.indexer.pages").increment(pages);
+        metrics.counter("ai.indexer.rows").increment(rows);
+        metrics.counter("ai.indexer.documents", "action", "embedded").increment(stats.embedded());
+        metrics.counter("ai.indexer.documents", "action", "skipped").increment(stats.skipped());
+        metrics.counter("ai.indexer.documents", "action", "removed").increment(stats.removed());
+        log.info("Done indexing purchases, pages={}, rows={}, embedded={}, skipped={}, removed={}, lastUpdated={}",
+                pages, rows, stats.embedded(), stats.skipped(), stats.removed(), props.lastIndexedOn());
+    }
+
+    /**
+     * Removes documents and names of deleted purchases, if enabled.
+     * Every run checks the next page of stored documents, starting over after the last one.
+     */
+    @Scheduled(initialDelayString = "#{@aiModuleProperties.purchases.removeDeletedDelay}",
+            fixedDelayString = "#{@aiModuleProperties.purchases.removeDeletedDelay}")
+    public void doRemoveDeleted() {
+        if (!removeDeleted) return;
+        metrics.timer("ai.indexer.cleanups").record(this::removeDeleted);
+    }
+
+    private void removeDeleted() {
+        final PurchaseCategoryProcessor.RemovedPage page = processor.removeMissing(lastCheckedId.get(), ids ->
+                transactionTemplate.execute(status -> purchaseQueryRepository.findExisting(ids)));
+        page.purchaseIds().forEach(nameIndex::remove);
+        lastCheckedId.set(page.lastId());
+        if (page.documents() > 0) {
+            log.info("Removed {} documents of deleted purchases", page.documents());
+        }
+        metrics.counter("ai.indexer.documents", "action", "deleted").increment(page.documents());
+    }
 
-        Instant updated = purchases.stream()
-                .filter(purchase -> purchase != null && purchase.category() != null)
-                .collect(teeing(
-                        Collectors.toList(),
-                        mapping(Purchase::updatedOn, Collectors.maxBy(Comparator.naturalOrder())),
-                        merger
-                ));
+    /**
+     * Indexes the next page of purchases and stores the new position
+     *
+     * @return new position, or {@code null} if there are no more purchases
+     */
+    private PageResult indexPage(PurchasesAIProperties position) {
+        final List<Purchase> page = purchaseQueryRepository.findUpdatedAfter(
+                Optional.ofNullable(position.lastIndexedOn()).orElse(Instant.EPOCH),
+                Optional.ofNullable(position.lastPurchaseId()).map(PurchaseId::new).orElse(null),
+                pageSize);
+        if (page.isEmpty()) return null;
+        log.debug("Indexing page of {} purchases after {}", page.size(), position.lastIndexedOn());
+        page.stream().filter(Objects::nonNull).forEach(nameIndex::update);
+
+        final IndexingStats stats = processor.process(page.stream()
+                .filter(Objects::nonNull)
+                .toList());
+
+        final Purchase last = page.get(page.size() - 1);
+        final PurchasesAIProperties next = new PurchasesAIProperties(last.updatedOn(), last.purchaseId().value(),
+                position.layout(), position.removeOutdated());
+        storeProperties(next);
+        return new PageResult(page.size(), stats, next);
+    }
+
+    /**
+     * Loads all purchases into the name index
+     */
+    private void loadNameIndex() {
+        log.info("Loading purchase name index");
+        Instant updatedOn = Instant.EPOCH;
+        PurchaseId purchaseId = null;
+        while (true) {
+            final Instant afterUpdatedOn = updatedOn;
+            final PurchaseId afterPurchaseId = purchaseId;
+            final List<Purchase> page = transactionTemplate.execute(status ->
+                    purchaseQueryRepository.findUpdatedAfter(afterUpdatedOn, afterPurchaseId, pageSize));
+            if (page == null || page.isEmpty()) break;
+            page.stream().filter(Objects::nonNull).forEach(nameIndex::update);
+            if (page.size() < pageSize) break;
+            final Purchase last = page.get(page.size() - 1);
+            updatedOn = last.updatedOn();
+            purchaseId = last.purchaseId();
+        }
+        nameIndex.markLoaded();
+        log.info("Purchase name index is loaded, size={}", nameIndex.size());
+    }
 
-        log.info("Done indexing purchases, lastUpdated={}", updated);
+    private record PageResult(int rows, IndexingStats stats, PurchasesAIProperties properties) {
     }
 
 }
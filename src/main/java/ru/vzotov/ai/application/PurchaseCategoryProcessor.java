@@ -1,86 +1,422 @@
 package ru.vzotov.ai.application;
 
 import com.google.common.collect.Lists;
-import dev.langchain4j.data.document.Document;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.MoreExecutors;
 import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.embedding.Embedding;
 import dev.langchain4j.data.segment.TextSegment;
 import dev.langchain4j.model.embedding.EmbeddingModel;
-import dev.langchain4j.store.embedding.EmbeddingStore;
-import dev.langchain4j.store.embedding.EmbeddingStoreIngestor;
 import lombok.Builder;
+import ru.vzotov.cashreceipt.domain.model.PurchaseCategoryId;
+import ru.vzotov.person.domain.model.PersonId;
 import ru.vzotov.purchase.domain.model.Purchase;
+import ru.vzotov.purchase.domain.model.PurchaseId;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
-import static java.util.Collections.singletonList;
+import static ru.vzotov.ai.application.PurchaseMetadata.ENTITY_PURCHASE;
+import static ru.vzotov.ai.application.PurchaseMetadata.F_ENTITY;
+import static ru.vzotov.ai.application.PurchaseMetadata.F_FINGERPRINT;
+import static ru.vzotov.ai.application.PurchaseMetadata.F_ID;
+import static ru.vzotov.ai.application.PurchaseMetadata.F_LAST_MODIFIED;
+import static ru.vzotov.ai.application.PurchaseMetadata.F_LAYOUT;
+import static ru.vzotov.ai.application.PurchaseMetadata.F_OWNER;
+import static ru.vzotov.ai.application.PurchaseMetadata.F_REFERENCE_ID;
 
+/**
+ * Indexes purchases in the embedding store.
+ * <p>
+ * Every purchase has exactly one document with the id derived from the purchase id,
+ * so re-indexing a purchase replaces its document.
+ * Category centroids, if given, are updated with the vectors of added, replaced and removed documents
+ * once the store is changed.
+ * <p>
+ * Partitions of purchases pass through three stages: transform (lookup of stored documents and
+ * segments of changed purchases), embedding and store writes. Each stage runs on its own bounded pool, if given,
+ * so partitions are embedded while others are looked up or written.
+ * A stage without a pool runs in the calling thread.
+ */
 public class PurchaseCategoryProcessor {
 
-    private final EmbeddingStoreIngestor ingestor;
+    /**
+     * Version of the document layout.
+     * Documents of other layouts are re-indexed and removed.
+     */
+    public static final int LAYOUT = 4;
+
+    private final EmbeddingModel embeddingModel;
+    private final String embeddingModelName;
+    private final PurchaseEmbeddingStore embeddingStore;
     private final int partitionSize;
+    private final int embeddingBatchSize;
+    private final int writeBatchSize;
+    private final CategoryCentroids centroids;
+    private final ParallelStage transformStage;
+    private final ParallelStage embeddingStage;
+    private final ParallelStage writeStage;
 
+    /**
+     * @param embeddingModelName identity of the embedding model, documents embedded by other models are re-indexed
+     * @param partitionSize      number of purchases passed through the stages together
+     * @param embeddingBatchSize number of documents embedded by one call, defaults to the partition size
+     * @param writeBatchSize     number of documents written to the store by one call, defaults to the partition size
+     * @param transformStage     pool looking up stored documents and transforming purchases, optional
+     * @param embeddingStage     pool embedding documents, optional
+     * @param writeStage         pool writing documents to the store, optional
+     */
     @Builder
     public PurchaseCategoryProcessor(
             EmbeddingModel embeddingModel,
-            EmbeddingStore<TextSegment> embeddingStore,
-            int partitionSize
+            String embeddingModelName,
+            PurchaseEmbeddingStore embeddingStore,
+            int partitionSize,
+            int embeddingBatchSize,
+            int writeBatchSize,
+            CategoryCentroids centroids,
+            ParallelStage transformStage,
+            ParallelStage embeddingStage,
+            ParallelStage writeStage
     ) {
         if(partitionSize <= 0)
             throw new IllegalArgumentException("partitionSize must be > 0");
         this.partitionSize = partitionSize;
-        Objects.requireNonNull(embeddingModel);
-        Objects.requireNonNull(embeddingStore);
-        this.ingestor = EmbeddingStoreIngestor.builder()
-                .documentSplitter(doc -> singletonList(doc.toTextSegment()))
-                .embeddingModel(embeddingModel)
-                .embeddingStore(embeddingStore)
-                .build();
-    }
-
-    public void process(List<Purchase> purchases) {
-        Lists.partition(purchases, partitionSize)
-                .stream()
-                .map(this::transform)
-                .forEach(ingestor::ingest);
-    }
-
-    List<Document> transform(List<Purchase> purchases) {
-        return purchases.stream()
-                .map(ItemAction::new)
-                .map(action -> new Document(action.text(), action.metadata()))
+        this.embeddingBatchSize = embeddingBatchSize > 0 ? embeddingBatchSize : partitionSize;
+        this.writeBatchSize = writeBatchSize > 0 ? writeBatchSize : partitionSize;
+        this.embeddingModel = Objects.requireNonNull(embeddingModel);
+        this.embeddingModelName = Objects.requireNonNull(embeddingModelName);
+        this.embeddingStore = Objects.requireNonNull(embeddingStore);
+        this.centroids = centroids;
+        this.transformStage = transformStage;
+        this.embeddingStage = embeddingStage;
+        this.writeStage = writeStage;
+    }
+
+    /**
+     * Indexes categorized purchases and removes documents of purchases without category.
+     * Purchases which indexed content did not change are skipped.
+     * Returns when all partitions are written.
+     */
+    public IndexingStats process(List<Purchase> purchases) {
+        final boolean trackCentroids = centroids != null && centroids.isLoaded();
+        // purchases are read in the calling thread, as they are bound to its transaction
+        final List<CompletableFuture<IndexingStats>> futures = Lists.partition(purchases, partitionSize).stream()
+                .map(partition -> {
+                    final List<String> uncategorized = partition.stream()
+                            .filter(purchase -> purchase.category() == null)
+                            .map(purchase -> embeddingId(purchase.purchaseId()))
+                            .toList();
+                    final List<ItemAction> categorized = partition.stream()
+                            .filter(purchase -> purchase.category() != null)
+                            .map(purchase -> new ItemAction(purchase, embeddingModelName))
+                            .toList();
+                    return CompletableFuture.supplyAsync(
+                                    () -> prepare(uncategorized, categorized, trackCentroids),
+                                    executor(transformStage))
+                            .thenCompose(batch -> embedAndWrite(batch, trackCentroids));
+                })
                 .toList();
+        CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).join();
+        return futures.stream()
+                .map(CompletableFuture::join)
+                .reduce(IndexingStats.EMPTY, IndexingStats::plus);
     }
 
-    static class ItemAction {
-        private static final String ENTITY_PURCHASE = "purchase";
-        private static final String F_ID = "entityId";
-        private static final String F_ENTITY = "entity";
-        private static final String F_REFERENCE_ID = "reference_id";
-        private static final String F_LAST_MODIFIED = "last_modified";
+    /**
+     * Removes documents of uncategorized purchases and transforms categorized purchases
+     * which indexed content changed into segments.
+     * Vectors of the documents to be replaced are read, so they are removed from the centroids after the write.
+     */
+    private TransformedPartition prepare(List<String> uncategorized, List<ItemAction> categorized,
+                                           boolean trackCentroids) {
+        if (!uncategorized.isEmpty()) {
+            final Collection<IndexedVector> removed = trackCentroids
+                    ? indexedVectors(embeddingStore.findAll(uncategorized)).values() : List.of();
+            embeddingStore.removeAll(uncategorized);
+            forget(removed);
+        }
+
+        final Map<String, StoredDocument> stored = embeddingStore.findAll(
+                        categorized.stream().map(ItemAction::id).toList()).stream()
+                .collect(Collectors.toMap(StoredDocument::id, document -> document, (a, b) -> a));
+        final List<ItemAction> actions = categorized.stream()
+                .filter(action -> !action.fingerprint().equals(Optional.ofNullable(stored.get(action.id()))
+                        .map(document -> document.metadata().get(F_FINGERPRINT))
+                        .orElse(null)))
+                .toList();
+        // old vectors are read before the documents are replaced
+        final Map<String, IndexedVector> replaced = trackCentroids
+                ? indexedVectors(actions.stream().map(action -> stored.get(action.id())).filter(Objects::nonNull).toList())
+                : Map.of();
+        return new TransformedPartition(actions, transform(actions), replaced,
+                new IndexingStats(actions.size(), categorized.size() - actions.size(), uncategorized.size()));
+    }
+
+    /**
+     * Embeds changed purchases by batches and writes every batch as soon as it is embedded
+     */
+    private CompletableFuture<IndexingStats> embedAndWrite(TransformedPartition partition, boolean trackCentroids) {
+        if (partition.actions().isEmpty()) {
+            return CompletableFuture.completedFuture(partition.stats());
+        }
+        final List<CompletableFuture<Void>> writes = new ArrayList<>();
+        for (int from = 0; from < partition.actions().size(); from += embeddingBatchSize) {
+            final int to = Math.min(from + embeddingBatchSize, partition.actions().size());
+            final List<ItemAction> actions = partition.actions().subList(from, to);
+            final List<TextSegment> segments = partition.segments().subList(from, to);
+            writes.add(CompletableFuture.supplyAsync(() -> new EmbeddedBatch(actions, segments,
+                                    embeddingModel.embedAll(segments).content()), executor(embeddingStage))
+                    .thenAcceptAsync(batch -> write(batch, partition.replaced(), trackCentroids),
+                            executor(writeStage)));
+        }
+        return CompletableFuture.allOf(writes.toArray(CompletableFuture[]::new)).thenApply(ignored -> partition.stats());
+    }
+
+    /**
+     * Writes the batch and then moves the vectors of written documents in the centroids
+     */
+    private void write(EmbeddedBatch batch, Map<String, IndexedVector> replaced, boolean trackCentroids) {
+        for (int from = 0; from < batch.actions().size(); from += writeBatchSize) {
+            final int to = Math.min(from + writeBatchSize, batch.actions().size());
+            final List<ItemAction> actions = batch.actions().subList(from, to);
+            final List<Embedding> embeddings = batch.embeddings().subList(from, to);
+            embeddingStore.upsertAll(actions.stream().map(ItemAction::id).toList(), embeddings,
+                    batch.segments().subList(from, to));
+            if (trackCentroids) {
+                for (int i = 0; i < actions.size(); i++) {
+                    final IndexedVector old = replaced.get(actions.get(i).id());
+                    if (old != null) {
+                        centroids.remove(old.owner(), old.category(), old.vector());
+                    }
+                    centroids.add(actions.get(i).owner(), actions.get(i).category(), embeddings.get(i).vector());
+                }
+            }
+        }
+    }
 
-        private final Purchase purchase;
+    private static Executor executor(ParallelStage stage) {
+        return stage == null ? MoreExecutors.directExecutor() : stage.executor();
+    }
+
+    /**
+     * Reads vectors of stored documents with their owners and categories
+     *
+     * @return vectors by document ids
+     */
+    private Map<String, IndexedVector> indexedVectors(List<StoredDocument> documents) {
+        if (documents.isEmpty()) return Map.of();
+        final Map<String, float[]> vectors = embeddingStore.findVectors(
+                documents.stream().map(StoredDocument::id).toList());
+        final Map<String, IndexedVector> result = new HashMap<>();
+        for (StoredDocument document : documents) {
+            final String owner = document.metadata().get(F_OWNER);
+            final String category = document.metadata().get(F_REFERENCE_ID);
+            final float[] vector = vectors.get(document.id());
+            if (owner != null && category != null && vector != null) {
+                result.put(document.id(), new IndexedVector(new PersonId(owner), new PurchaseCategoryId(category), vector));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Removes vectors of removed documents from the category centroids
+     */
+    private void forget(Collection<IndexedVector> vectors) {
+        vectors.forEach(vector -> centroids.remove(vector.owner(), vector.category(), vector.vector()));
+    }
+
+    /**
+     * Loads category centroids from all stored documents, unless they are already loaded
+     */
+    public void loadCentroids() {
+        if (centroids == null || centroids.isLoaded()) return;
+        String afterId = null;
+        while (true) {
+            final List<StoredDocument> documents = embeddingStore.findAfter(afterId, partitionSize);
+            if (documents.isEmpty()) break;
+            final Map<String, float[]> vectors = embeddingStore.findVectors(
+                    documents.stream().map(StoredDocument::id).toList());
+            for (StoredDocument document : documents) {
+                final String owner = document.metadata().get(F_OWNER);
+                final String category = document.metadata().get(F_REFERENCE_ID);
+                final float[] vector = vectors.get(document.id());
+                if (owner != null && category != null && vector != null) {
+                    centroids.add(new PersonId(owner), new PurchaseCategoryId(category), vector);
+                }
+            }
+            if (documents.size() < partitionSize) break;
+            afterId = documents.get(documents.size() - 1).id();
+        }
+        centroids.markLoaded();
+    }
+
+    /**
+     * Removes documents indexed with other layouts
+     *
+     * @return number of removed documents
+     */
+    public int removeOutdated() {
+        final int removed = embeddingStore.removeAllExcept(F_LAYOUT, String.valueOf(LAYOUT));
+        if (removed > 0 && centroids != null) {
+            // vectors of removed documents are not known, so centroids are loaded again
+            centroids.reset();
+        }
+        return removed;
+    }
+
+    /**
+     * Removes documents of purchases which no longer exist
+     *
+     * @param existing finds existing purchases among the given ones
+     * @return number of removed documents
+     */
+    public int removeMissing(Function<Collection<PurchaseId>, Set<PurchaseId>> existing) {
+        int removed = 0;
+        String afterId = null;
+        do {
+            final RemovedPage page = removeMissing(afterId, existing);
+            removed += page.documents();
+            afterId = page.lastId();
+        } while (afterId != null);
+        return removed;
+    }
+
+    /**
+     * Removes documents of purchases which no longer exist, checking one page of documents
+     *
+     * @param afterId  id of the last checked document, or {@code null} to start from the beginning
+     * @param existing finds existing purchases among the given ones
+     */
+    public RemovedPage removeMissing(String afterId, Function<Collection<PurchaseId>, Set<PurchaseId>> existing) {
+        final List<StoredDocument> documents = embeddingStore.findAfter(afterId, partitionSize);
+        if (documents.isEmpty()) return new RemovedPage(0, Set.of(), null);
+
+        final Set<PurchaseId> found = existing.apply(documents.stream()
+                .map(document -> document.metadata().get(F_ID))
+                .filter(Objects::nonNull)
+                .map(PurchaseId::new)
+                .collect(Collectors.toSet()));
+        final List<StoredDocument> missing = documents.stream()
+                .filter(document -> {
+                    String entityId = document.metadata().get(F_ID);
+                    return entityId == null || !found.contains(new PurchaseId(entityId));
+                })
+                .toList();
+        if (!missing.isEmpty()) {
+            final Collection<IndexedVector> removed = centroids != null && centroids.isLoaded()
+                    ? indexedVectors(missing).values() : List.of();
+            embeddingStore.removeAll(missing.stream().map(StoredDocument::id).toList());
+            forget(removed);
+        }
+        return new RemovedPage(missing.size(),
+                missing.stream()
+                        .map(document -> document.metadata().get(F_ID))
+                        .filter(Objects::nonNull)
+                        .map(PurchaseId::new)
+                        .collect(Collectors.toSet()),
+                documents.size() < partitionSize ? null : documents.get(documents.size() - 1).id());
+    }
+
+    List<TextSegment> transform(List<ItemAction> actions) {
+        return actions.stream()
+                .map(action -> TextSegment.from(action.text(), action.metadata()))
+                .toList();
+    }
+
+    /**
+     * Id of the document of the purchase
+     */
+    public static String embeddingId(PurchaseId purchaseId) {
+        return UUID.nameUUIDFromBytes((ENTITY_PURCHASE + ":" + purchaseId.value()).getBytes(StandardCharsets.UTF_8))
+                .toString();
+    }
+
+    /**
+     * @param documents   number of removed documents
+     * @param purchaseIds purchases of the removed documents
+     * @param lastId      id of the last checked document, or {@code null} if the last page is checked
+     */
+    public record RemovedPage(int documents, Set<PurchaseId> purchaseIds, String lastId) {
+    }
+
+    private record TransformedPartition(List<ItemAction> actions, List<TextSegment> segments,
+                                        Map<String, IndexedVector> replaced, IndexingStats stats) {
+    }
+
+    private record IndexedVector(PersonId owner, PurchaseCategoryId category, float[] vector) {
+    }
+
+    private record EmbeddedBatch(List<ItemAction> actions, List<TextSegment> segments, List<Embedding> embeddings) {
+    }
+
+    /**
+     * Indexed content of the purchase, copied from the purchase, so it can be used by other threads
+     */
+    static class ItemAction {
+        private final String id;
+        private final PersonId owner;
+        private final PurchaseCategoryId category;
         private final String text;
+        private final String fingerprint;
+        private final Metadata metadata;
+
+        public ItemAction(Purchase purchase, String embeddingModelName) {
+            this.id = embeddingId(purchase.purchaseId());
+            this.owner = purchase.owner();
+            this.category = purchase.category().categoryId();
+            this.text = purchase.name();
+            this.fingerprint = Hashing.sha256()
+                    .hashString(LAYOUT + "\n" + embeddingModelName + "\n" + text + "\n" + category.value(),
+                            StandardCharsets.UTF_8)
+                    .toString();
+            this.metadata = Metadata.from(F_ID, purchase.purchaseId().value())
+                    .add(F_ENTITY, ENTITY_PURCHASE)
+                    .add(F_LAST_MODIFIED, String.valueOf(purchase.updatedOn().toEpochMilli()))
+                    .add(F_REFERENCE_ID, category.value())
+                    .add(F_LAYOUT, String.valueOf(LAYOUT))
+                    .add(F_FINGERPRINT, fingerprint)
+                    .add(F_OWNER, owner.value());
+        }
+
+        public String id() {
+            return id;
+        }
 
-        public ItemAction(Purchase purchase) {
-            this.purchase = purchase;
-            this.text = "Purchase '%s' has category '%s' with id '%s'."
-                    .formatted(purchase.name(), purchase.category().name(), purchase.category().categoryId().value());
+        public PersonId owner() {
+            return owner;
         }
 
-        public Purchase purchase() {
-            return purchase;
+        public PurchaseCategoryId category() {
+            return category;
         }
 
         public String text() {
             return text;
         }
 
+        /**
+         * Hash of the indexed content
+         */
+        public String fingerprint() {
+            return fingerprint;
+        }
+
         public Metadata metadata() {
-            return Metadata.from(F_ID, purchase().purchaseId().value())
-                    .add(F_ENTITY, ENTITY_PURCHASE)
-                    .add(F_LAST_MODIFIED, String.valueOf(purchase().updatedOn().toEpochMilli()))
-                    .add(F_REFERENCE_ID, purchase().category().categoryId().value());
+            return metadata;
         }
     }
 
@@ -0,0 +1,85 @@
+package ru.vzotov.ai.application;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import ru.vzotov.person.domain.model.PersonId;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Embedding store of indexed purchases
+ */
+public interface PurchaseEmbeddingStore extends EmbeddingStore<TextSegment> {
+
+    /**
+     * Finds documents of the owner most similar to the reference embedding
+     */
+    List<EmbeddingMatch<TextSegment>> search(PersonId owner, Embedding referenceEmbedding, int maxResults, double minScore);
+
+    /**
+     * Finds documents of the owner most similar to each of the reference embeddings
+     *
+     * @return matches of every reference embedding, in the order of reference embeddings
+     */
+    default List<List<EmbeddingMatch<TextSegment>>> searchAll(PersonId owner, List<Embedding> referenceEmbeddings,
+                                                              int maxResults, double minScore) {
+        return referenceEmbeddings.stream()
+                .map(embedding -> search(owner, embedding, maxResults, minScore))
+                .toList();
+    }
+
+    /**
+     * Adds documents or replaces documents with the same ids
+     */
+    void upsertAll(List<String> ids, List<Embedding> embeddings, List<TextSegment> segments);
+
+    /**
+     * Removes documents with given ids
+     */
+    void removeAll(Collection<String> ids);
+
+    /**
+     * Removes all documents which metadata field {@code key} is not equal to {@code value}
+     *
+     * @return number of removed documents
+     */
+    int removeAllExcept(String key, String value);
+
+    /**
+     * Finds documents with given ids
+     */
+    List<StoredDocument> findAll(Collection<String> ids);
+
+    /**
+     * Finds embeddings of documents with given ids
+     *
+     * @return vectors by document ids, ids of missing documents are skipped
+     */
+    Map<String, float[]> findVectors(Collection<String> ids);
+
+    /**
+     * Finds the page of documents ordered by id
+     *
+     * @param afterId id of the last seen document, or {@code null} to start from the beginning
+     * @param limit   maximum size of the page
+     */
+    List<StoredDocument> findAfter(String afterId, int limit);
+
+    /**
+     * Finds the page of documents of the owner ordered by id
+     *
+     * @param afterId id of the last seen document, or {@code null} to start from the beginning
+     * @param limit   maximum size of the page
+     */
+    List<StoredDocument> findAfter(PersonId owner, String afterId, int limit);
+
+    /**
+     * Finds owners of all documents
+     */
+    Set<PersonId> findOwners();
+}
@@ -0,0 +1,18 @@
+package ru.vzotov.ai.application;
+
+/**
+ * Metadata fields of indexed purchase documents
+ */
+public final class PurchaseMetadata {
+    public static final String ENTITY_PURCHASE = "purchase";
+    public static final String F_ID = "entityId";
+    public static final String F_ENTITY = "entity";
+    public static final String F_REFERENCE_ID = "reference_id";
+    public static final String F_LAST_MODIFIED = "last_modified";
+    public static final String F_LAYOUT = "layout";
+    public static final String F_FINGERPRINT = "fingerprint";
+    public static final String F_OWNER = "owner";
+
+    private PurchaseMetadata() {
+    }
+}
@@ -0,0 +1,106 @@
+package ru.vzotov.ai.application;
+
+import ru.vzotov.cashreceipt.domain.model.PurchaseCategoryId;
+import ru.vzotov.person.domain.model.PersonId;
+import ru.vzotov.purchase.domain.model.Purchase;
+import ru.vzotov.purchase.domain.model.PurchaseId;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Categories of purchases by normalized name, for every person.
+ * <p>
+ * Every name keeps the number of purchases of each category, so the category of a name is known
+ * only if most of the purchases with this name have it.
+ */
+public class PurchaseNameIndex {
+
+    private final Map<PersonId, Map<String, Map<PurchaseCategoryId, Integer>>> names = new ConcurrentHashMap<>();
+    private final Map<PurchaseId, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<PersonId, AtomicLong> versions = new ConcurrentHashMap<>();
+    private volatile boolean loaded;
+
+    /**
+     * The index contains all purchases
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    public void markLoaded() {
+        this.loaded = true;
+    }
+
+    /**
+     * Version of the person's part of the index,
+     * changed only when a name or category of an indexed purchase of the person changes
+     */
+    public long version(PersonId owner) {
+        return Optional.ofNullable(versions.get(owner)).map(AtomicLong::get).orElse(0L);
+    }
+
+    private void changed(PersonId owner) {
+        // versions are kept after all purchases of the person are removed, so they never go back
+        versions.computeIfAbsent(owner, key -> new AtomicLong()).incrementAndGet();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Finds the category of most purchases of the person with the same normalized name
+     */
+    public Optional<PurchaseCategoryId> find(PersonId owner, String name) {
+        final Map<PurchaseCategoryId, Integer> counts = Optional.ofNullable(names.get(owner))
+                .map(byName -> byName.get(PurchaseNames.normalize(name)))
+                .orElse(null);
+        if (counts == null) return Optional.empty();
+        int total = 0;
+        Map.Entry<PurchaseCategoryId, Integer> best = null;
+        for (Map.Entry<PurchaseCategoryId, Integer> count : counts.entrySet()) {
+            total += count.getValue();
+            if (best == null || count.getValue() > best.getValue()) best = count;
+        }
+        return best != null && best.getValue() * 2 > total ? Optional.of(best.getKey()) : Optional.empty();
+    }
+
+    /**
+     * Adds the purchase or updates its name and category
+     */
+    public synchronized void update(Purchase purchase) {
+        final Entry entry = entry(purchase);
+        if (Objects.equals(entries.get(purchase.purchaseId()), entry)) return;
+        remove(purchase.purchaseId());
+        if (entry == null) return;
+        changed(entry.owner());
+        entries.put(purchase.purchaseId(), entry);
+        names.computeIfAbsent(entry.owner(), key -> new ConcurrentHashMap<>())
+                .computeIfAbsent(entry.name(), key -> new ConcurrentHashMap<>())
+                .merge(entry.categoryId(), 1, Integer::sum);
+    }
+
+    public synchronized void remove(PurchaseId purchaseId) {
+        final Entry entry = entries.remove(purchaseId);
+        if (entry == null) return;
+        changed(entry.owner());
+        final Map<String, Map<PurchaseCategoryId, Integer>> byName = names.get(entry.owner());
+        final Map<PurchaseCategoryId, Integer> counts = byName.get(entry.name());
+        counts.computeIfPresent(entry.categoryId(), (key, count) -> count > 1 ? count - 1 : null);
+        if (counts.isEmpty()) byName.remove(entry.name());
+        if (byName.isEmpty()) names.remove(entry.owner());
+    }
+
+    private static Entry entry(Purchase purchase) {
+        if (purchase.category() == null || purchase.owner() == null) return null;
+        final String name = PurchaseNames.normalize(purchase.name());
+        return name.isEmpty() ? null : new Entry(purchase.owner(), name, purchase.category().categoryId());
+    }
+
+    private record Entry(PersonId owner, String name, PurchaseCategoryId categoryId) {
+    }
+}
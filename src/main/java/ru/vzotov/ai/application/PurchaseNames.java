@@ -0,0 +1,38 @@
+package ru.vzotov.ai.application;
+
+import java.text.Normalizer;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Normalization of purchase names
+ */
+public final class PurchaseNames {
+
+    /**
+     * Quantities like {@code 0,5л}, {@code 200 г}, {@code 3.2%}, {@code 10шт}, {@code x2}
+     */
+    private static final Pattern QUANTITY = Pattern.compile(
+            "(?<![\\p{L}\\d])(?:\\d+(?:[.,]\\d+)?\\s*(?:%|кг|гр|г|мг|мл|л|шт|уп|kg|gr|g|mg|ml|l|pcs|pc)|[xх]\\s*\\d+|\\d+\\s*[xх])(?![\\p{L}\\d])",
+            Pattern.UNICODE_CHARACTER_CLASS);
+
+    private static final Pattern PUNCTUATION = Pattern.compile("[\\p{P}\\p{S}]+", Pattern.UNICODE_CHARACTER_CLASS);
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+", Pattern.UNICODE_CHARACTER_CLASS);
+
+    private PurchaseNames() {
+    }
+
+    /**
+     * Normalizes the name: case, quantities, punctuation and whitespace are ignored
+     */
+    public static String normalize(String name) {
+        if (name == null) return "";
+        String text = Normalizer.normalize(name, Normalizer.Form.NFKC)
+                .toLowerCase(Locale.ROOT)
+                .replace('ё', 'е');
+        text = QUANTITY.matcher(text).replaceAll(" ");
+        text = PUNCTUATION.matcher(text).replaceAll(" ");
+        return WHITESPACE.matcher(text).replaceAll(" ").strip();
+    }
+}
@@ -0,0 +1,37 @@
+package ru.vzotov.ai.application;
+
+import ru.vzotov.purchase.domain.model.Purchase;
+import ru.vzotov.purchase.domain.model.PurchaseId;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Bulk queries of purchases used by the AI module
+ */
+public interface PurchaseQueryRepository {
+
+    /**
+     * Finds the page of purchases updated after the given position.
+     * Purchases are ordered by {@code (updatedOn, purchaseId)}.
+     *
+     * @param updatedOn  date of update of the last seen purchase
+     * @param purchaseId id of the last seen purchase, or {@code null} to start after {@code updatedOn}
+     * @param limit      maximum size of the page
+     */
+    List<Purchase> findUpdatedAfter(Instant updatedOn, PurchaseId purchaseId, int limit);
+
+    /**
+     * Finds purchases with given ids.
+     * Purchases are returned in the order of ids, ids of missing purchases are skipped.
+     * Categories of the purchases are fetched with them, so the purchases can be used after the transaction ends.
+     */
+    List<Purchase> findAll(Collection<PurchaseId> purchaseIds);
+
+    /**
+     * Finds which of the given purchases exist
+     */
+    Set<PurchaseId> findExisting(Collection<PurchaseId> purchaseIds);
+}
@@ -2,5 +2,11 @@ package ru.vzotov.ai.application;
 
 import java.time.Instant;
 
-public record PurchasesAIProperties(Instant lastIndexedOn) {
+/**
+ * @param lastIndexedOn    date of update of the last indexed purchase
+ * @param lastPurchaseId   id of the last indexed purchase, purchases are indexed in {@code (updatedOn, purchaseId)} order
+ * @param layout           layout of indexed documents, see {@link PurchaseCategoryProcessor#LAYOUT}
+ * @param removeOutdated   documents of outdated layouts must be removed when all purchases are re-indexed
+ */
+public record PurchasesAIProperties(Instant lastIndexedOn, String lastPurchaseId, Integer layout, Boolean removeOutdated) {
 }
@@ -0,0 +1,154 @@
+package ru.vzotov.ai.application;
+
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import lombok.Builder;
+import ru.vzotov.cashreceipt.domain.model.PurchaseCategoryId;
+import ru.vzotov.person.domain.model.PersonId;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import static ru.vzotov.ai.application.PurchaseMetadata.F_REFERENCE_ID;
+
+/**
+ * Classifies a purchase by the categories of the most similar indexed purchases.
+ * <p>
+ * The category wins if its share of the votes is greater than {@code threshold / samples}.
+ * Every similar purchase gives one vote, or its similarity score with {@link Weighting#SCORE}.
+ * With the adaptive option, the threshold of a person is chosen by the evaluation of the vote on their purchases,
+ * see {@link VoteAdaptation}.
+ */
+public class SimilarityVote {
+
+    private final int samples;
+    private final int threshold;
+    private final double minScore;
+    private final Weighting weighting;
+    private final boolean adaptive;
+    private final double targetAccuracy;
+    private volatile Map<PersonId, Integer> thresholds = Map.of();
+
+    /**
+     * @param samples        number of similar purchases
+     * @param threshold      default threshold, from 0 to {@code samples - 1}
+     * @param minScore       minimum similarity of the similar purchases
+     * @param adaptive       choose the threshold of every person by the evaluation
+     * @param targetAccuracy minimum accuracy of the adaptive threshold
+     */
+    @Builder
+    public SimilarityVote(int samples, int threshold, double minScore, Weighting weighting,
+                          boolean adaptive, double targetAccuracy) {
+        if (samples <= 0)
+            throw new IllegalArgumentException("samples must be > 0");
+        if (threshold < 0 || threshold >= samples)
+            throw new IllegalArgumentException("threshold must be >= 0 and < samples");
+        this.samples = samples;
+        this.threshold = threshold;
+        this.minScore = minScore;
+        this.weighting = Objects.requireNonNullElse(weighting, Weighting.COUNT);
+        this.adaptive = adaptive;
+        this.targetAccuracy = targetAccuracy;
+    }
+
+    public int samples() {
+        return samples;
+    }
+
+    public double minScore() {
+        return minScore;
+    }
+
+    public Weighting weighting() {
+        return weighting;
+    }
+
+    public boolean adaptive() {
+        return adaptive;
+    }
+
+    /**
+     * Settings which the evaluation of the vote depends on
+     */
+    public String settings() {
+        return "samples=%d,minScore=%s,weighting=%s,targetAccuracy=%s"
+                .formatted(samples, minScore, weighting, targetAccuracy);
+    }
+
+    /**
+     * Replaces adapted thresholds of all persons
+     */
+    public void thresholds(Map<PersonId, Integer> thresholds) {
+        this.thresholds = Map.copyOf(thresholds);
+    }
+
+    /**
+     * Threshold of the person
+     */
+    public int threshold(PersonId owner) {
+        return adaptive ? thresholds.getOrDefault(owner, threshold) : threshold;
+    }
+
+    /**
+     * Finds the category which wins the vote of the similar purchases.
+     * Categories of all similar purchases are the candidates, the most voted first.
+     *
+     * @param relevant  similar purchases
+     * @param threshold threshold of the vote
+     */
+    public Vote vote(List<EmbeddingMatch<TextSegment>> relevant, int threshold) {
+        final Map<PurchaseCategoryId, Double> votes = new LinkedHashMap<>();
+        int matches = 0;
+        double total = 0;
+        for (EmbeddingMatch<TextSegment> match : relevant) {
+            if (match.embedded() == null) continue;
+            final String category = match.embedded().metadata().get(F_REFERENCE_ID);
+            if (category == null) continue;
+            final double weight = weighting == Weighting.SCORE ? match.score() : 1;
+            votes.merge(new PurchaseCategoryId(category), weight, Double::sum);
+            matches++;
+            total += weight;
+        }
+        final List<PurchaseCategoryId> candidates = votes.entrySet().stream()
+                .sorted(Map.Entry.<PurchaseCategoryId, Double>comparingByValue().reversed())
+                .map(Map.Entry::getKey)
+                .toList();
+        if (candidates.isEmpty() || matches <= threshold) {
+            return new Vote(null, candidates);
+        }
+        // with count weighting the share is taken of all samples, as missing samples do not agree
+        final double share = votes.get(candidates.get(0)) / (weighting == Weighting.SCORE ? total : samples);
+        return new Vote(share > (double) threshold / samples ? candidates.get(0) : null, candidates);
+    }
+
+    /**
+     * Chooses the threshold by the evaluation of the vote: the lowest threshold reaching the target accuracy
+     */
+    public int choose(List<VoteEvaluation.ThresholdResult> results) {
+        return results.stream()
+                .filter(result -> result.decided() > 0 && result.accuracy() >= targetAccuracy)
+                .mapToInt(VoteEvaluation.ThresholdResult::threshold)
+                .min()
+                .orElse(samples - 1);
+    }
+
+    /**
+     * @param category   winning category, or {@code null} if the vote is ambiguous
+     * @param candidates categories of similar purchases, the most voted first
+     */
+    public record Vote(PurchaseCategoryId category, List<PurchaseCategoryId> candidates) {
+    }
+
+    public enum Weighting {
+        /**
+         * Every similar purchase gives one vote
+         */
+        COUNT,
+        /**
+         * Every similar purchase gives the vote equal to its similarity score
+         */
+        SCORE
+    }
+}
@@ -0,0 +1,12 @@
+package ru.vzotov.ai.application;
+
+import java.util.Map;
+
+/**
+ * Document of the embedding store without its embedding
+ *
+ * @param id       embedding id
+ * @param metadata metadata of the document
+ */
+public record StoredDocument(String id, Map<String, String> metadata) {
+}
@@ -0,0 +1,73 @@
+package ru.vzotov.ai.application;
+
+import lombok.Builder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+/**
+ * Splits items into chunks which prompts fit the token budget of one chat model call.
+ * <p>
+ * Tokens are estimated from the length of the text, so the budget should leave a margin
+ * below the context size of the model.
+ */
+public class TokenBudgetBatcher {
+
+    private final int tokenBudget;
+    private final int maxSize;
+    private final double charsPerToken;
+
+    /**
+     * @param tokenBudget   maximum estimated number of tokens of one call
+     * @param maxSize       maximum number of items in one chunk
+     * @param charsPerToken average number of characters of one token
+     */
+    @Builder
+    public TokenBudgetBatcher(int tokenBudget, int maxSize, double charsPerToken) {
+        if (tokenBudget <= 0)
+            throw new IllegalArgumentException("tokenBudget must be > 0");
+        if (maxSize <= 0)
+            throw new IllegalArgumentException("maxSize must be > 0");
+        if (charsPerToken <= 0)
+            throw new IllegalArgumentException("charsPerToken must be > 0");
+        this.tokenBudget = tokenBudget;
+        this.maxSize = maxSize;
+        this.charsPerToken = charsPerToken;
+    }
+
+    /**
+     * Estimated number of tokens of the text of the given length
+     */
+    public int tokens(int length) {
+        return (int) Math.ceil(length / charsPerToken);
+    }
+
+    /**
+     * Splits items into chunks in their order.
+     * Every chunk has at least one item, even if the item alone exceeds the budget.
+     *
+     * @param itemLength  length of the text added to the call by the item
+     * @param fixedLength length of the text shared by all items of the call
+     */
+    public <T> List<List<T>> partition(List<T> items, ToIntFunction<T> itemLength, int fixedLength) {
+        final int budget = tokenBudget - tokens(fixedLength);
+        final List<List<T>> result = new ArrayList<>();
+        List<T> chunk = new ArrayList<>();
+        int used = 0;
+        for (T item : items) {
+            final int cost = tokens(itemLength.applyAsInt(item));
+            if (!chunk.isEmpty() && (chunk.size() >= maxSize || used + cost > budget)) {
+                result.add(chunk);
+                chunk = new ArrayList<>();
+                used = 0;
+            }
+            chunk.add(item);
+            used += cost;
+        }
+        if (!chunk.isEmpty()) {
+            result.add(chunk);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,127 @@
+package ru.vzotov.ai.application;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.Builder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.vzotov.accounting.domain.model.PersistentProperty;
+import ru.vzotov.accounting.domain.model.PersistentPropertyId;
+import ru.vzotov.accounting.domain.model.PersistentPropertyRepository;
+import ru.vzotov.ai.ModelType;
+import ru.vzotov.person.domain.model.PersonId;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/**
+ * Adapts thresholds of the similarity vote.
+ * <p>
+ * Thresholds of all persons are chosen by the evaluation of the vote on their purchases and stored,
+ * so every instance uses the same thresholds and they survive a restart.
+ * Thresholds are evaluated again when they are older than {@code interval} or the settings of the vote change.
+ */
+public class VoteAdaptation {
+
+    private static final Logger log = LoggerFactory.getLogger(VoteAdaptation.class);
+
+    private final VoteEvaluator evaluator;
+    private final SimilarityVote vote;
+    private final PurchaseEmbeddingStore embeddingStore;
+    private final PersistentPropertyRepository propertyRepository;
+    private final ObjectMapper objectMapper;
+    private final TransactionTemplate transactionTemplate;
+    private final ModelType modelType;
+    private final int limit;
+    private final Duration interval;
+
+    /**
+     * @param limit    maximum number of purchases evaluated for every person
+     * @param interval minimum time between evaluations
+     */
+    @Builder
+    public VoteAdaptation(VoteEvaluator evaluator,
+                          SimilarityVote vote,
+                          PurchaseEmbeddingStore embeddingStore,
+                          PersistentPropertyRepository propertyRepository,
+                          ObjectMapper objectMapper,
+                          PlatformTransactionManager transactionManager,
+                          ModelType modelType,
+                          int limit,
+                          Duration interval) {
+        if (limit <= 0)
+            throw new IllegalArgumentException("limit must be > 0");
+        this.evaluator = Objects.requireNonNull(evaluator);
+        this.vote = Objects.requireNonNull(vote);
+        this.embeddingStore = Objects.requireNonNull(embeddingStore);
+        this.propertyRepository = Objects.requireNonNull(propertyRepository);
+        this.objectMapper = Objects.requireNonNull(objectMapper);
+        this.transactionTemplate = new TransactionTemplate(Objects.requireNonNull(transactionManager));
+        this.modelType = Objects.requireNonNull(modelType);
+        this.limit = limit;
+        this.interval = Objects.requireNonNull(interval);
+    }
+
+    private String systemPropertyName() {
+        return "ai.vote.thresholds." + modelType;
+    }
+
+    @Scheduled(initialDelayString = "#{@aiModuleProperties.purchases.initialDelay}",
+            fixedDelayString = "#{@aiModuleProperties.purchases.delay}")
+    public void adapt() {
+        VoteThresholds stored = transactionTemplate.execute(status -> load());
+        if (stored == null || !vote.settings().equals(stored.settings())
+                || stored.computedOn().plus(interval).isBefore(Instant.now())) {
+            stored = evaluate();
+            final VoteThresholds computed = stored;
+            transactionTemplate.executeWithoutResult(status -> store(computed));
+        }
+        vote.thresholds(stored.thresholds().entrySet().stream()
+                .collect(Collectors.toMap(entry -> new PersonId(entry.getKey()), Map.Entry::getValue)));
+    }
+
+    private VoteThresholds evaluate() {
+        final Instant computedOn = Instant.now();
+        final Map<String, Integer> thresholds = new HashMap<>();
+        for (PersonId owner : embeddingStore.findOwners()) {
+            final VoteEvaluation evaluation = evaluator.evaluate(owner, limit);
+            if (evaluation.purchases() > 0) {
+                thresholds.put(owner.value(), evaluation.threshold());
+            }
+        }
+        log.info("Adapted thresholds of the vote for {} persons", thresholds.size());
+        return new VoteThresholds(computedOn, vote.settings(), thresholds);
+    }
+
+    private VoteThresholds load() {
+        PersistentProperty prop = propertyRepository.findSystemProperty(systemPropertyName());
+        if (prop == null) {
+            return null;
+        }
+        try {
+            return objectMapper.readValue(prop.value(), VoteThresholds.class);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void store(VoteThresholds thresholds) {
+        final String systemPropertyName = systemPropertyName();
+        PersistentProperty prop = Optional.ofNullable(propertyRepository.findSystemProperty(systemPropertyName))
+                .orElseGet(() -> new PersistentProperty(PersistentPropertyId.nextId(), systemPropertyName));
+        try {
+            prop.setValue(objectMapper.writeValueAsString(thresholds));
+            propertyRepository.store(prop);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package ru.vzotov.ai.application;
+
+import java.util.List;
+
+/**
+ * Leave-one-out evaluation of the similarity vote on categorized purchases of a person
+ *
+ * @param owner      person
+ * @param purchases  number of evaluated purchases
+ * @param samples    number of similar purchases
+ * @param minScore   minimum similarity of the similar purchases
+ * @param weighting  weighting of the votes
+ * @param thresholds results of every threshold, from 0 to {@code samples - 1}
+ * @param threshold  threshold chosen by the evaluation
+ */
+public record VoteEvaluation(String owner, int purchases, int samples, double minScore,
+                             SimilarityVote.Weighting weighting, List<ThresholdResult> thresholds,
+                             int threshold) {
+
+    /**
+     * @param threshold      threshold of the vote
+     * @param decided        number of purchases classified by the vote
+     * @param correct        number of purchases classified by the vote into their own category
+     * @param accuracy       share of correct purchases among decided ones
+     * @param escalationRate share of purchases which would be sent to the next tier, i.e. to the chat model
+     */
+    public record ThresholdResult(int threshold, int decided, int correct, double accuracy, double escalationRate) {
+    }
+}
@@ -0,0 +1,117 @@
+package ru.vzotov.ai.application;
+
+import com.google.common.collect.Lists;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import lombok.Builder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.vzotov.cashreceipt.domain.model.PurchaseCategoryId;
+import ru.vzotov.person.domain.model.PersonId;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import static ru.vzotov.ai.application.PurchaseMetadata.F_REFERENCE_ID;
+
+/**
+ * Replays indexed purchases of a person through the similarity vote.
+ * <p>
+ * Every purchase is searched by its stored embedding among the other purchases of the person (leave-one-out),
+ * and the vote is compared with its own category for every threshold.
+ * Stored embeddings are used, so the evaluation does not call the embedding model.
+ */
+public class VoteEvaluator {
+
+    private static final Logger log = LoggerFactory.getLogger(VoteEvaluator.class);
+
+    private final PurchaseEmbeddingStore embeddingStore;
+    private final SimilarityVote vote;
+    private final int pageSize;
+    private final int maxLimit;
+
+    /**
+     * @param pageSize number of documents read and searched at once
+     * @param maxLimit maximum number of purchases evaluated by one call
+     */
+    @Builder
+    public VoteEvaluator(PurchaseEmbeddingStore embeddingStore, SimilarityVote vote, int pageSize, int maxLimit) {
+        if (pageSize <= 0)
+            throw new IllegalArgumentException("pageSize must be > 0");
+        if (maxLimit <= 0)
+            throw new IllegalArgumentException("maxLimit must be > 0");
+        this.embeddingStore = Objects.requireNonNull(embeddingStore);
+        this.vote = Objects.requireNonNull(vote);
+        this.pageSize = pageSize;
+        this.maxLimit = maxLimit;
+    }
+
+    /**
+     * Evaluates the vote on purchases of the person and chooses the threshold for them
+     *
+     * @param owner person
+     * @param limit maximum number of evaluated purchases, at most {@code maxLimit}
+     */
+    public VoteEvaluation evaluate(PersonId owner, int limit) {
+        limit = Math.min(limit, maxLimit);
+        final int samples = vote.samples();
+        final int[] decided = new int[samples];
+        final int[] correct = new int[samples];
+        int evaluated = 0;
+
+        String afterId = null;
+        while (evaluated < limit) {
+            final List<StoredDocument> page = embeddingStore.findAfter(owner, afterId, pageSize);
+            if (page.isEmpty()) break;
+            afterId = page.get(page.size() - 1).id();
+
+            final List<StoredDocument> documents = page.stream()
+                    .filter(document -> document.metadata().get(F_REFERENCE_ID) != null)
+                    .limit(limit - evaluated)
+                    .toList();
+            final Map<String, float[]> vectors = embeddingStore.findVectors(
+                    documents.stream().map(StoredDocument::id).toList());
+            final List<StoredDocument> found = documents.stream()
+                    .filter(document -> vectors.containsKey(document.id()))
+                    .toList();
+
+            for (List<StoredDocument> batch : Lists.partition(found, pageSize)) {
+                // one more sample, as the purchase itself is found too
+                final List<List<EmbeddingMatch<TextSegment>>> relevant = embeddingStore.searchAll(owner,
+                        batch.stream().map(document -> Embedding.from(vectors.get(document.id()))).toList(),
+                        samples + 1, vote.minScore());
+                for (int i = 0; i < batch.size(); i++) {
+                    final StoredDocument document = batch.get(i);
+                    final List<EmbeddingMatch<TextSegment>> others = relevant.get(i).stream()
+                            .filter(match -> !document.id().equals(match.embeddingId()))
+                            .limit(samples)
+                            .toList();
+                    final PurchaseCategoryId expected = new PurchaseCategoryId(document.metadata().get(F_REFERENCE_ID));
+                    for (int threshold = 0; threshold < samples; threshold++) {
+                        final PurchaseCategoryId category = vote.vote(others, threshold).category();
+                        if (category != null) {
+                            decided[threshold]++;
+                            if (category.equals(expected)) correct[threshold]++;
+                        }
+                    }
+                }
+            }
+            evaluated += found.size();
+            if (page.size() < pageSize) break;
+        }
+
+        final List<VoteEvaluation.ThresholdResult> results = new ArrayList<>(samples);
+        for (int threshold = 0; threshold < samples; threshold++) {
+            results.add(new VoteEvaluation.ThresholdResult(threshold, decided[threshold], correct[threshold],
+                    decided[threshold] == 0 ? 0 : (double) correct[threshold] / decided[threshold],
+                    evaluated == 0 ? 0 : (double) (evaluated - decided[threshold]) / evaluated));
+        }
+        final int threshold = evaluated == 0 ? vote.threshold(owner) : vote.choose(results);
+        log.info("Evaluated the vote on {} purchases of {}, threshold={}", evaluated, owner.value(), threshold);
+        return new VoteEvaluation(owner.value(), evaluated, samples, vote.minScore(), vote.weighting(),
+                results, threshold);
+    }
+}
@@ -0,0 +1,12 @@
+package ru.vzotov.ai.application;
+
+import java.time.Instant;
+import java.util.Map;
+
+/**
+ * @param computedOn date of the evaluation
+ * @param settings   settings of the evaluated vote, see {@link SimilarityVote#settings()}
+ * @param thresholds adapted thresholds by person
+ */
+public record VoteThresholds(Instant computedOn, String settings, Map<String, Integer> thresholds) {
+}
@@ -0,0 +1,67 @@
+package ru.vzotov.ai.infrastructure.chat;
+
+import dev.langchain4j.agent.tool.ToolSpecification;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.model.chat.ChatLanguageModel;
+import dev.langchain4j.model.output.Response;
+import dev.langchain4j.model.output.TokenUsage;
+import io.micrometer.core.instrument.Timer;
+import lombok.Builder;
+import ru.vzotov.ai.application.AIMetrics;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Supplier;
+
+/**
+ * Chat model that records latency and token usage of the underlying model calls,
+ * tagged with the classification mode of the calling thread
+ */
+public class MeteredChatLanguageModel implements ChatLanguageModel {
+
+    private final ChatLanguageModel delegate;
+    private final AIMetrics metrics;
+
+    @Builder
+    public MeteredChatLanguageModel(ChatLanguageModel delegate, AIMetrics metrics) {
+        this.delegate = Objects.requireNonNull(delegate);
+        this.metrics = Objects.requireNonNull(metrics);
+    }
+
+    @Override
+    public Response<AiMessage> generate(List<ChatMessage> messages) {
+        return measure(() -> delegate.generate(messages));
+    }
+
+    @Override
+    public Response<AiMessage> generate(List<ChatMessage> messages, List<ToolSpecification> toolSpecifications) {
+        return measure(() -> delegate.generate(messages, toolSpecifications));
+    }
+
+    @Override
+    public Response<AiMessage> generate(List<ChatMessage> messages, ToolSpecification toolSpecification) {
+        return measure(() -> delegate.generate(messages, toolSpecification));
+    }
+
+    private Response<AiMessage> measure(Supplier<Response<AiMessage>> call) {
+        final Timer.Sample sample = Timer.start(metrics.registry());
+        String outcome = "error";
+        try {
+            final Response<AiMessage> response = call.get();
+            outcome = "success";
+            final TokenUsage usage = response.tokenUsage();
+            if (usage != null) {
+                if (usage.inputTokenCount() != null) {
+                    metrics.counter("ai.chat.tokens", "type", "input", AIMetrics.TAG_MODE, metrics.mode()).increment(usage.inputTokenCount());
+                }
+                if (usage.outputTokenCount() != null) {
+                    metrics.counter("ai.chat.tokens", "type", "output", AIMetrics.TAG_MODE, metrics.mode()).increment(usage.outputTokenCount());
+                }
+            }
+            return response;
+        } finally {
+            sample.stop(metrics.timer("ai.chat.requests", "outcome", outcome, AIMetrics.TAG_MODE, metrics.mode()));
+        }
+    }
+}
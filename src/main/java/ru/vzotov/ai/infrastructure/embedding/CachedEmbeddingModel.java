@@ -0,0 +1,68 @@
+package ru.vzotov.ai.infrastructure.embedding;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import dev.langchain4j.model.output.TokenUsage;
+import lombok.Builder;
+import ru.vzotov.ai.ModelType;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Embedding model that never sends the same (normalized) text to the underlying model twice.
+ */
+public class CachedEmbeddingModel implements EmbeddingModel {
+
+    private final EmbeddingModel delegate;
+    private final EmbeddingCache cache;
+    private final ModelType modelType;
+    private final String modelName;
+
+    /**
+     * @param modelName name of the model, if the model type allows several models, e.g. the ONNX model
+     */
+    @Builder
+    public CachedEmbeddingModel(EmbeddingModel delegate, EmbeddingCache cache, ModelType modelType, String modelName) {
+        this.delegate = Objects.requireNonNull(delegate);
+        this.cache = Objects.requireNonNull(cache);
+        this.modelType = Objects.requireNonNull(modelType);
+        this.modelName = modelName;
+    }
+
+    @Override
+    public Response<List<Embedding>> embedAll(List<TextSegment> textSegments) {
+        final List<EmbeddingCache.Key> keys = textSegments.stream()
+                .map(segment -> cache.key(modelType, modelName, segment.text()))
+                .toList();
+        final Map<EmbeddingCache.Key, Embedding> found = cache.getAll(keys);
+
+        final List<EmbeddingCache.Key> missing = keys.stream()
+                .filter(key -> !found.containsKey(key))
+                .distinct()
+                .toList();
+
+        TokenUsage tokenUsage = null;
+        if (!missing.isEmpty()) {
+            final Response<List<Embedding>> response = delegate.embedAll(
+                    missing.stream().map(key -> TextSegment.from(key.text())).toList());
+            final List<Embedding> computed = response.content();
+            if (computed.size() != missing.size())
+                throw new IllegalStateException("Expected %d embeddings, got %d".formatted(missing.size(), computed.size()));
+
+            final Map<EmbeddingCache.Key, Embedding> fresh = new HashMap<>();
+            for (int i = 0; i < missing.size(); i++) {
+                fresh.put(missing.get(i), computed.get(i));
+            }
+            cache.putAll(fresh);
+            found.putAll(fresh);
+            tokenUsage = response.tokenUsage();
+        }
+
+        return Response.from(keys.stream().map(found::get).toList(), tokenUsage);
+    }
+}
@@ -0,0 +1,128 @@
+package ru.vzotov.ai.infrastructure.embedding;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import dev.langchain4j.data.embedding.Embedding;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+import lombok.Builder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.vzotov.ai.ModelType;
+
+import java.text.Normalizer;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.regex.Pattern;
+
+/**
+ * Content-addressed cache of embeddings.
+ * <p>
+ * The first tier is a bounded in-memory cache, the second (optional) tier is a persistent store.
+ */
+public class EmbeddingCache {
+
+    private static final Logger log = LoggerFactory.getLogger(EmbeddingCache.class);
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private final Cache<Key, Embedding> memory;
+    private final EmbeddingCacheStore store;
+    private final Counter storeHits;
+    private final Counter storeMisses;
+
+    @Builder
+    public EmbeddingCache(long maximumSize,
+                          Duration expireAfterAccess,
+                          EmbeddingCacheStore store,
+                          MeterRegistry meterRegistry) {
+        if (maximumSize <= 0)
+            throw new IllegalArgumentException("maximumSize must be > 0");
+        CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .recordStats();
+        if (expireAfterAccess != null) {
+            builder.expireAfterAccess(expireAfterAccess);
+        }
+        this.memory = builder.build();
+        this.store = store;
+        if (meterRegistry != null) {
+            GuavaCacheMetrics.monitor(meterRegistry, memory, "ai.embedding");
+            this.storeHits = meterRegistry.counter("ai.embedding.cache.store", "result", "hit");
+            this.storeMisses = meterRegistry.counter("ai.embedding.cache.store", "result", "miss");
+        } else {
+            this.storeHits = null;
+            this.storeMisses = null;
+        }
+    }
+
+    /**
+     * @param modelName name of the model, if the model type allows several models, otherwise {@code null}
+     */
+    public Key key(ModelType modelType, String modelName, String text) {
+        return new Key(modelType, modelName, normalize(text));
+    }
+
+    /**
+     * Finds cached embeddings
+     *
+     * @param keys cache keys
+     * @return mutable map of found embeddings
+     */
+    public Map<Key, Embedding> getAll(Collection<Key> keys) {
+        final Map<Key, Embedding> result = new HashMap<>(memory.getAllPresent(keys));
+        if (store == null || result.size() == keys.size()) {
+            return result;
+        }
+
+        final List<Key> missing = keys.stream()
+                .filter(key -> !result.containsKey(key))
+                .distinct()
+                .toList();
+        try {
+            final Map<Key, Embedding> persisted = store.findAll(missing);
+            memory.putAll(persisted);
+            result.putAll(persisted);
+            if (storeHits != null) {
+                storeHits.increment(persisted.size());
+                storeMisses.increment(missing.size() - persisted.size());
+            }
+        } catch (RuntimeException e) {
+            log.warn("Unable to read embeddings from the persistent cache", e);
+        }
+        return result;
+    }
+
+    public void putAll(Map<Key, Embedding> embeddings) {
+        memory.putAll(embeddings);
+        if (store != null) {
+            try {
+                store.storeAll(embeddings);
+            } catch (RuntimeException e) {
+                log.warn("Unable to write embeddings to the persistent cache", e);
+            }
+        }
+    }
+
+    public CacheStats stats() {
+        return memory.stats();
+    }
+
+    public long size() {
+        return memory.size();
+    }
+
+    static String normalize(String text) {
+        Objects.requireNonNull(text);
+        return WHITESPACE.matcher(Normalizer.normalize(text, Normalizer.Form.NFC).strip()).replaceAll(" ");
+    }
+
+    public record Key(ModelType modelType, String modelName, String text) {
+    }
+}
@@ -0,0 +1,16 @@
+package ru.vzotov.ai.infrastructure.embedding;
+
+import dev.langchain4j.data.embedding.Embedding;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Persistent tier of the {@link EmbeddingCache}
+ */
+public interface EmbeddingCacheStore {
+
+    Map<EmbeddingCache.Key, Embedding> findAll(Collection<EmbeddingCache.Key> keys);
+
+    void storeAll(Map<EmbeddingCache.Key, Embedding> embeddings);
+}
@@ -0,0 +1,108 @@
+package ru.vzotov.ai.infrastructure.embedding;
+
+import com.google.common.hash.Hashing;
+import com.pgvector.PGvector;
+import dev.langchain4j.data.embedding.Embedding;
+import lombok.Builder;
+import ru.vzotov.ai.ModelType;
+
+import javax.sql.DataSource;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps cached embeddings in the pgvector database.
+ * Texts are addressed by their SHA-256 hash, together with the model name if there is one.
+ */
+public class JdbcEmbeddingCacheStore implements EmbeddingCacheStore {
+
+    private final DataSource dataSource;
+    private final String table;
+
+    @Builder
+    public JdbcEmbeddingCacheStore(DataSource dataSource, String table, int dimension, boolean createTable) {
+        this.dataSource = Objects.requireNonNull(dataSource);
+        this.table = Objects.requireNonNull(table);
+        if (createTable) {
+            createTable(dimension);
+        }
+    }
+
+    private void createTable(int dimension) {
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement()) {
+            statement.executeUpdate("CREATE EXTENSION IF NOT EXISTS vector");
+            statement.executeUpdate("""
+                    CREATE TABLE IF NOT EXISTS %s (
+                        model_type VARCHAR(32) NOT NULL,
+                        text_hash CHAR(64) NOT NULL,
+                        embedding vector(%d) NOT NULL,
+                        PRIMARY KEY (model_type, text_hash)
+                    )""".formatted(table, dimension));
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public Map<EmbeddingCache.Key, Embedding> findAll(Collection<EmbeddingCache.Key> keys) {
+        final Map<EmbeddingCache.Key, Embedding> result = new HashMap<>();
+        final Map<ModelType, List<EmbeddingCache.Key>> byModel = keys.stream()
+                .collect(Collectors.groupingBy(EmbeddingCache.Key::modelType));
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement(
+                     "SELECT text_hash, embedding FROM %s WHERE model_type = ? AND text_hash = ANY(?)".formatted(table))) {
+            for (Map.Entry<ModelType, List<EmbeddingCache.Key>> entry : byModel.entrySet()) {
+                final Map<String, EmbeddingCache.Key> byHash = entry.getValue().stream()
+                        .collect(Collectors.toMap(JdbcEmbeddingCacheStore::hash, Function.identity(), (a, b) -> a));
+                statement.setString(1, entry.getKey().name());
+                statement.setArray(2, connection.createArrayOf("text", byHash.keySet().toArray()));
+                try (ResultSet rs = statement.executeQuery()) {
+                    while (rs.next()) {
+                        final EmbeddingCache.Key key = byHash.get(rs.getString(1));
+                        if (key != null) {
+                            result.put(key, Embedding.from(new PGvector(rs.getString(2)).toArray()));
+                        }
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+        return result;
+    }
+
+    @Override
+    public void storeAll(Map<EmbeddingCache.Key, Embedding> embeddings) {
+        if (embeddings.isEmpty()) return;
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement(
+                     "INSERT INTO %s (model_type, text_hash, embedding) VALUES (?, ?, ?) ON CONFLICT DO NOTHING".formatted(table))) {
+            for (Map.Entry<EmbeddingCache.Key, Embedding> entry : embeddings.entrySet()) {
+                statement.setString(1, entry.getKey().modelType().name());
+                statement.setString(2, hash(entry.getKey()));
+                statement.setObject(3, new PGvector(entry.getValue().vector()));
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String hash(EmbeddingCache.Key key) {
+        final String text = key.modelName() == null ? key.text() : key.modelName() + "\n" + key.text();
+        return Hashing.sha256().hashString(text, StandardCharsets.UTF_8).toString();
+    }
+}
@@ -0,0 +1,69 @@
+package ru.vzotov.ai.infrastructure.embedding;
+
+import com.google.common.collect.Lists;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.embedding.OnnxEmbeddingModel;
+import dev.langchain4j.model.embedding.PoolingMode;
+import dev.langchain4j.model.output.Response;
+import lombok.Builder;
+import ru.vzotov.ai.application.ParallelStage;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * In-process ONNX embedding model.
+ * <p>
+ * Texts are split into batches which are embedded in parallel on CPU cores.
+ * The holder itself is not an {@link EmbeddingModel}, so it does not replace the embedding model of the starter.
+ */
+public class LocalEmbeddingModel {
+
+    private final EmbeddingModel model;
+    private final ParallelStage stage;
+    private final int batchSize;
+    private final int dimension;
+
+    @Builder
+    public LocalEmbeddingModel(String modelPath, String tokenizerPath, String poolingMode,
+                               int parallelism, int batchSize) {
+        if (batchSize <= 0)
+            throw new IllegalArgumentException("batchSize must be > 0");
+        this.model = new OnnxEmbeddingModel(Objects.requireNonNull(modelPath), Objects.requireNonNull(tokenizerPath),
+                poolingMode == null ? PoolingMode.MEAN : PoolingMode.valueOf(poolingMode));
+        this.stage = ParallelStage.builder()
+                .name("ai-embedding")
+                .parallelism(parallelism)
+                .queueCapacity(parallelism)
+                .build();
+        this.batchSize = batchSize;
+        this.dimension = model.embed("dimension").content().dimension();
+    }
+
+    /**
+     * Dimension of the produced embeddings
+     */
+    public int dimension() {
+        return dimension;
+    }
+
+    public EmbeddingModel embeddingModel() {
+        return this::embedAll;
+    }
+
+    private Response<List<Embedding>> embedAll(List<TextSegment> textSegments) {
+        if (textSegments.size() <= batchSize) {
+            return model.embedAll(textSegments);
+        }
+        return Response.from(stage.map(Lists.partition(textSegments, batchSize),
+                        batch -> model.embedAll(batch).content()).stream()
+                .flatMap(List::stream)
+                .toList());
+    }
+
+    public void shutdown() {
+        stage.shutdown();
+    }
+}
@@ -0,0 +1,44 @@
+package ru.vzotov.ai.infrastructure.embedding;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import io.micrometer.core.instrument.Timer;
+import lombok.Builder;
+import ru.vzotov.ai.application.AIMetrics;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Embedding model that records latency, batch size and token usage of the underlying model calls
+ */
+public class MeteredEmbeddingModel implements EmbeddingModel {
+
+    private final EmbeddingModel delegate;
+    private final AIMetrics metrics;
+
+    @Builder
+    public MeteredEmbeddingModel(EmbeddingModel delegate, AIMetrics metrics) {
+        this.delegate = Objects.requireNonNull(delegate);
+        this.metrics = Objects.requireNonNull(metrics);
+    }
+
+    @Override
+    public Response<List<Embedding>> embedAll(List<TextSegment> textSegments) {
+        metrics.summary("ai.embedding.batch.size", AIMetrics.TAG_MODE, metrics.mode()).record(textSegments.size());
+        final Timer.Sample sample = Timer.start(metrics.registry());
+        String outcome = "error";
+        try {
+            final Response<List<Embedding>> response = delegate.embedAll(textSegments);
+            outcome = "success";
+            if (response.tokenUsage() != null && response.tokenUsage().inputTokenCount() != null) {
+                metrics.counter("ai.embedding.tokens", AIMetrics.TAG_MODE, metrics.mode()).increment(response.tokenUsage().inputTokenCount());
+            }
+            return response;
+        } finally {
+            sample.stop(metrics.timer("ai.embedding.requests", "outcome", outcome, AIMetrics.TAG_MODE, metrics.mode()));
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package ru.vzotov.ai.infrastructure.persistence;
+
+import com.google.common.collect.Iterables;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.TypedQuery;
+import ru.vzotov.ai.application.PurchaseQueryRepository;
+import ru.vzotov.purchase.domain.model.Purchase;
+import ru.vzotov.purchase.domain.model.PurchaseId;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+public class JpaPurchaseQueryRepository implements PurchaseQueryRepository {
+
+    /**
+     * Maximum number of ids in one {@code IN} clause
+     */
+    private static final int BATCH_SIZE = 500;
+
+    private final EntityManager em;
+
+    public JpaPurchaseQueryRepository(EntityManager em) {
+        this.em = Objects.requireNonNull(em);
+    }
+
+    @Override
+    public List<Purchase> findUpdatedAfter(Instant updatedOn, PurchaseId purchaseId, int limit) {
+        final TypedQuery<Purchase> query;
+        if (purchaseId == null) {
+            query = em.createQuery("""
+                    select p from Purchase p
+                    where p.updatedOn > :updatedOn
+                    order by p.updatedOn, p.purchaseId.value""", Purchase.class);
+        } else {
+            query = em.createQuery("""
+                    select p from Purchase p
+                    where p.updatedOn > :updatedOn
+                       or (p.updatedOn = :updatedOn and p.purchaseId.value > :purchaseId)
+                    order by p.updatedOn, p.purchaseId.value""", Purchase.class)
+                    .setParameter("purchaseId", purchaseId.value());
+        }
+        return query
+                .setParameter("updatedOn", updatedOn)
+                .setMaxResults(limit)
+                .getResultList();
+    }
+
+    @Override
+    public List<Purchase> findAll(Collection<PurchaseId> purchaseIds) {
+        if (purchaseIds.isEmpty()) return List.of();
+        final Map<PurchaseId, Purchase> found = new HashMap<>();
+        for (List<PurchaseId> batch : Iterables.partition(purchaseIds, BATCH_SIZE)) {
+            em.createQuery("""
+                            select p from Purchase p
+                            left join fetch p.category
+                            where p.purchaseId.value in :ids""", Purchase.class)
+                    .setParameter("ids", batch.stream().map(PurchaseId::value).toList())
+                    .getResultStream()
+                    .forEach(purchase -> found.put(purchase.purchaseId(), purchase));
+        }
+        return purchaseIds.stream()
+                .map(found::get)
+                .filter(Objects::nonNull)
+                .toList();
+    }
+
+    @Override
+    public Set<PurchaseId> findExisting(Collection<PurchaseId> purchaseIds) {
+        if (purchaseIds.isEmpty()) return Set.of();
+        final Set<PurchaseId> found = new HashSet<>();
+        for (List<PurchaseId> batch : Iterables.partition(purchaseIds, BATCH_SIZE)) {
+            em.createQuery("select p.purchaseId.value from Purchase p where p.purchaseId.value in :ids", String.class)
+                    .setParameter("ids", batch.stream().map(PurchaseId::value).toList())
+                    .getResultStream()
+                    .map(PurchaseId::new)
+                    .forEach(found::add);
+        }
+        return found;
+    }
+}
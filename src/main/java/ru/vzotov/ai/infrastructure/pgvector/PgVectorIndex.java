@@ -0,0 +1,168 @@
+package ru.vzotov.ai.infrastructure.pgvector;
+
+import lombok.Builder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Approximate nearest neighbour index on the embeddings of the pgvector table.
+ * <p>
+ * IVFFlat lists are sized to the number of rows, so the index is rebuilt when the table grows or shrinks
+ * far enough from the size it was built for. The rebuild does not lock the table:
+ * the new index is built concurrently and then replaces the old one.
+ */
+public class PgVectorIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(PgVectorIndex.class);
+
+    private static final Pattern LISTS = Pattern.compile("lists\\s*=\\s*'?(\\d+)'?");
+
+    /**
+     * Rebuild IVFFlat index when the number of lists differs from the recommended one by this factor
+     */
+    private static final int LISTS_TOLERANCE = 2;
+
+    private final DataSource dataSource;
+    private final String table;
+    private final Type type;
+    private final int m;
+    private final int efConstruction;
+    private final Integer lists;
+
+    /**
+     * @param lists fixed number of IVFFlat lists, or {@code null} to size the lists to the number of rows
+     */
+    @Builder
+    public PgVectorIndex(DataSource dataSource, String table, Type type, int m, int efConstruction, Integer lists) {
+        this.dataSource = Objects.requireNonNull(dataSource);
+        this.table = Objects.requireNonNull(table);
+        this.type = Objects.requireNonNull(type);
+        this.m = m;
+        this.efConstruction = efConstruction;
+        this.lists = lists;
+    }
+
+    private String name() {
+        return table + "_embedding_idx";
+    }
+
+    /**
+     * Creates the index if it does not exist
+     */
+    public void create() {
+        if (type == Type.NONE) return;
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement()) {
+            statement.executeUpdate("CREATE INDEX IF NOT EXISTS %s ON %s %s"
+                    .formatted(name(), table, definition(count(connection))));
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Rebuilds the index if it is missing, has another type,
+     * or the table size crossed the thresholds of the IVFFlat lists.
+     *
+     * @param force rebuild the index regardless of the thresholds
+     */
+    public synchronized RebuildResult rebuild(boolean force) {
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(true);
+            final long rows = count(connection);
+            final String current = currentDefinition(connection).orElse(null);
+            final String target = type == Type.NONE ? null : definition(rows);
+            if (!force && !outdated(current, rows)) {
+                return new RebuildResult(false, rows, current);
+            }
+            log.info("Rebuilding vector index {} of {} rows: {} -> {}", name(), rows, current, target);
+            try (Statement statement = connection.createStatement()) {
+                final String building = name() + "_new";
+                statement.executeUpdate("DROP INDEX CONCURRENTLY IF EXISTS %s".formatted(building));
+                if (target != null) {
+                    statement.executeUpdate("CREATE INDEX CONCURRENTLY %s ON %s %s".formatted(building, table, target));
+                }
+                statement.executeUpdate("DROP INDEX CONCURRENTLY IF EXISTS %s".formatted(name()));
+                if (target != null) {
+                    statement.executeUpdate("ALTER INDEX %s RENAME TO %s".formatted(building, name()));
+                }
+            }
+            return new RebuildResult(true, rows, currentDefinition(connection).orElse(null));
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private boolean outdated(String current, long rows) {
+        return switch (type) {
+            case NONE -> current != null;
+            case HNSW -> current == null || !current.contains("USING hnsw");
+            case IVFFLAT -> {
+                if (current == null || !current.contains("USING ivfflat")) yield true;
+                final Matcher matcher = LISTS.matcher(current);
+                if (!matcher.find()) yield true;
+                final long built = Long.parseLong(matcher.group(1));
+                final long wanted = lists(rows);
+                yield built * LISTS_TOLERANCE <= wanted || wanted * LISTS_TOLERANCE <= built;
+            }
+        };
+    }
+
+    private String definition(long rows) {
+        return switch (type) {
+            case HNSW -> "USING hnsw (embedding vector_cosine_ops) WITH (m = %d, ef_construction = %d)"
+                    .formatted(m, efConstruction);
+            case IVFFLAT -> "USING ivfflat (embedding vector_cosine_ops) WITH (lists = %d)".formatted(lists(rows));
+            case NONE -> throw new IllegalStateException("No vector index");
+        };
+    }
+
+    /**
+     * Number of IVFFlat lists recommended by pgvector: rows / 1000 up to 1M rows and sqrt(rows) over 1M rows
+     */
+    long lists(long rows) {
+        if (lists != null) return lists;
+        return Math.max(1, rows <= 1_000_000 ? rows / 1000 : (long) Math.sqrt(rows));
+    }
+
+    private long count(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT count(*) FROM %s".formatted(table))) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    private Optional<String> currentDefinition(Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT indexdef FROM pg_indexes WHERE indexname = ?")) {
+            statement.setString(1, name());
+            try (ResultSet rs = statement.executeQuery()) {
+                return rs.next() ? Optional.ofNullable(rs.getString(1)) : Optional.empty();
+            }
+        }
+    }
+
+    public enum Type {
+        NONE, IVFFLAT, HNSW
+    }
+
+    /**
+     * @param rebuilt    whether the index was rebuilt
+     * @param rows       number of rows in the table
+     * @param definition definition of the index after the operation
+     */
+    public record RebuildResult(boolean rebuilt, long rows, String definition) {
+    }
+}
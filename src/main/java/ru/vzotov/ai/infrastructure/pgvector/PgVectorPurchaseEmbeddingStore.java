@@ -0,0 +1,120 @@
+package ru.vzotov.ai.infrastructure.pgvector;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import lombok.Builder;
+import ru.vzotov.ai.application.PurchaseEmbeddingStore;
+import ru.vzotov.ai.application.StoredDocument;
+import ru.vzotov.person.domain.model.PersonId;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static ru.vzotov.ai.application.PurchaseMetadata.F_OWNER;
+
+/**
+ * Purchase embedding store backed by the pgvector table
+ */
+public class PgVectorPurchaseEmbeddingStore implements PurchaseEmbeddingStore {
+
+    private final EmbeddingStore<TextSegment> delegate;
+    private final PgVectorTable table;
+
+    @Builder
+    public PgVectorPurchaseEmbeddingStore(EmbeddingStore<TextSegment> delegate, PgVectorTable table) {
+        this.delegate = Objects.requireNonNull(delegate);
+        this.table = Objects.requireNonNull(table);
+    }
+
+    public PgVectorTable table() {
+        return table;
+    }
+
+    @Override
+    public String add(Embedding embedding) {
+        return delegate.add(embedding);
+    }
+
+    @Override
+    public void add(String id, Embedding embedding) {
+        delegate.add(id, embedding);
+    }
+
+    @Override
+    public String add(Embedding embedding, TextSegment textSegment) {
+        return delegate.add(embedding, textSegment);
+    }
+
+    @Override
+    public List<String> addAll(List<Embedding> embeddings) {
+        return delegate.addAll(embeddings);
+    }
+
+    @Override
+    public List<String> addAll(List<Embedding> embeddings, List<TextSegment> embedded) {
+        return delegate.addAll(embeddings, embedded);
+    }
+
+    @Override
+    public List<EmbeddingMatch<TextSegment>> findRelevant(Embedding referenceEmbedding, int maxResults, double minScore) {
+        return delegate.findRelevant(referenceEmbedding, maxResults, minScore);
+    }
+
+    @Override
+    public List<EmbeddingMatch<TextSegment>> search(PersonId owner, Embedding referenceEmbedding, int maxResults, double minScore) {
+        return table.search(F_OWNER, owner.value(), referenceEmbedding.vector(), maxResults, minScore);
+    }
+
+    @Override
+    public List<List<EmbeddingMatch<TextSegment>>> searchAll(PersonId owner, List<Embedding> referenceEmbeddings,
+                                                             int maxResults, double minScore) {
+        return table.searchAll(F_OWNER, owner.value(),
+                referenceEmbeddings.stream().map(Embedding::vector).toList(), maxResults, minScore);
+    }
+
+    @Override
+    public void upsertAll(List<String> ids, List<Embedding> embeddings, List<TextSegment> segments) {
+        table.upsertAll(ids, embeddings, segments);
+    }
+
+    @Override
+    public void removeAll(Collection<String> ids) {
+        table.deleteAll(ids);
+    }
+
+    @Override
+    public List<StoredDocument> findAll(Collection<String> ids) {
+        return table.findAll(ids);
+    }
+
+    @Override
+    public Map<String, float[]> findVectors(Collection<String> ids) {
+        return table.findVectors(ids);
+    }
+
+    @Override
+    public List<StoredDocument> findAfter(String afterId, int limit) {
+        return table.findAfter(afterId, limit);
+    }
+
+    @Override
+    public List<StoredDocument> findAfter(PersonId owner, String afterId, int limit) {
+        return table.findAfter(F_OWNER, owner.value(), afterId, limit);
+    }
+
+    @Override
+    public Set<PersonId> findOwners() {
+        return table.findDistinct(F_OWNER).stream().map(PersonId::new).collect(Collectors.toSet());
+    }
+
+    @Override
+    public int removeAllExcept(String key, String value) {
+        return table.deleteAllExcept(key, value);
+    }
+}
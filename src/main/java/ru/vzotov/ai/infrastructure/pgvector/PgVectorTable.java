@@ -0,0 +1,363 @@
+package ru.vzotov.ai.infrastructure.pgvector;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.pgvector.PGvector;
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import lombok.Builder;
+import ru.vzotov.ai.application.StoredDocument;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Direct access to the table of the pgvector embedding store.
+ */
+public class PgVectorTable {
+
+    private static final TypeReference<Map<String, String>> METADATA_TYPE = new TypeReference<>() {
+    };
+
+    private static final int FETCH_SIZE = 1000;
+
+    private final DataSource dataSource;
+    private final String table;
+    private final ObjectMapper objectMapper;
+    private final Integer efSearch;
+    private final Integer probes;
+
+    /**
+     * @param efSearch size of the candidate list of HNSW search, or {@code null} for the server default
+     * @param probes   number of IVFFlat lists to search, or {@code null} for the server default
+     */
+    @Builder
+    public PgVectorTable(DataSource dataSource, String table, ObjectMapper objectMapper,
+                         Integer efSearch, Integer probes) {
+        this.dataSource = Objects.requireNonNull(dataSource);
+        this.table = Objects.requireNonNull(table);
+        this.objectMapper = Objects.requireNonNull(objectMapper);
+        this.efSearch = efSearch;
+        this.probes = probes;
+    }
+
+    /**
+     * Streams all rows of the table
+     */
+    public void forEach(Consumer<Row> consumer) {
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "SELECT embedding_id, embedding, text, metadata FROM %s".formatted(table))) {
+                statement.setFetchSize(FETCH_SIZE);
+                try (ResultSet rs = statement.executeQuery()) {
+                    while (rs.next()) {
+                        consumer.accept(new Row(
+                                rs.getString(1),
+                                new PGvector(rs.getString(2)).toArray(),
+                                rs.getString(3),
+                                metadata(rs.getString(4))));
+                    }
+                }
+            } finally {
+                connection.rollback();
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void upsertAll(List<String> ids, List<Embedding> embeddings, List<TextSegment> segments) {
+        if (ids.size() != embeddings.size() || ids.size() != segments.size())
+            throw new IllegalArgumentException("ids, embeddings and segments must have the same size");
+        if (ids.isEmpty()) return;
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement("""
+                     INSERT INTO %s (embedding_id, embedding, text, metadata) VALUES (?, ?, ?, ?::json)
+                     ON CONFLICT (embedding_id) DO UPDATE
+                     SET embedding = EXCLUDED.embedding, text = EXCLUDED.text, metadata = EXCLUDED.metadata"""
+                     .formatted(table))) {
+            for (int i = 0; i < ids.size(); i++) {
+                final TextSegment segment = segments.get(i);
+                statement.setObject(1, UUID.fromString(ids.get(i)));
+                statement.setObject(2, new PGvector(embeddings.get(i).vector()));
+                statement.setString(3, segment == null ? null : segment.text());
+                statement.setString(4, segment == null ? null : objectMapper.writeValueAsString(segment.metadata().asMap()));
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        } catch (SQLException | JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void deleteAll(Collection<String> ids) {
+        if (ids.isEmpty()) return;
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement(
+                     "DELETE FROM %s WHERE embedding_id = ANY(?)".formatted(table))) {
+            statement.setArray(1, connection.createArrayOf("uuid", ids.stream().map(UUID::fromString).toArray()));
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public List<StoredDocument> findAll(Collection<String> ids) {
+        if (ids.isEmpty()) return List.of();
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement(
+                     "SELECT embedding_id, metadata FROM %s WHERE embedding_id = ANY(?)".formatted(table))) {
+            statement.setArray(1, connection.createArrayOf("uuid", ids.stream().map(UUID::fromString).toArray()));
+            final List<StoredDocument> result = new ArrayList<>();
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    result.add(new StoredDocument(rs.getString(1), metadata(rs.getString(2))));
+                }
+            }
+            return result;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public Map<String, float[]> findVectors(Collection<String> ids) {
+        if (ids.isEmpty()) return Map.of();
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement(
+                     "SELECT embedding_id, embedding FROM %s WHERE embedding_id = ANY(?)".formatted(table))) {
+            statement.setArray(1, connection.createArrayOf("uuid", ids.stream().map(UUID::fromString).toArray()));
+            final Map<String, float[]> result = new HashMap<>();
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    result.put(rs.getString(1), new PGvector(rs.getString(2)).toArray());
+                }
+            }
+            return result;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Finds the page of rows ordered by id
+     */
+    public List<StoredDocument> findAfter(String afterId, int limit) {
+        return findAfter(null, null, afterId, limit);
+    }
+
+    /**
+     * Finds the page of rows which metadata field {@code key} is equal to {@code value}, ordered by id
+     *
+     * @param key metadata field, or {@code null} to find all rows
+     */
+    public List<StoredDocument> findAfter(String key, String value, String afterId, int limit) {
+        final List<String> conditions = new ArrayList<>();
+        if (key != null) conditions.add("(metadata->>'%s') = ?".formatted(key));
+        if (afterId != null) conditions.add("embedding_id > ?");
+        final String sql = "SELECT embedding_id, metadata FROM %s %s ORDER BY embedding_id LIMIT ?".formatted(table,
+                conditions.isEmpty() ? "" : "WHERE " + String.join(" AND ", conditions));
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement(sql)) {
+            int i = 1;
+            if (key != null) {
+                statement.setString(i++, value);
+            }
+            if (afterId != null) {
+                statement.setObject(i++, UUID.fromString(afterId));
+            }
+            statement.setInt(i, limit);
+            final List<StoredDocument> result = new ArrayList<>();
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    result.add(new StoredDocument(rs.getString(1), metadata(rs.getString(2))));
+                }
+            }
+            return result;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Finds distinct values of the metadata field {@code key}
+     */
+    public Set<String> findDistinct(String key) {
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement(
+                     "SELECT DISTINCT (metadata->>'%s') FROM %s WHERE (metadata->>'%s') IS NOT NULL"
+                             .formatted(key, table, key))) {
+            final Set<String> result = new HashSet<>();
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    result.add(rs.getString(1));
+                }
+            }
+            return result;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Deletes all rows which metadata field {@code key} is not equal to {@code value}
+     *
+     * @return number of deleted rows
+     */
+    public int deleteAllExcept(String key, String value) {
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement(
+                     "DELETE FROM %s WHERE (metadata->>'%s') IS DISTINCT FROM ?".formatted(table, key))) {
+            statement.setString(1, value);
+            return statement.executeUpdate();
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Finds rows nearest to the vector among rows which metadata field {@code key} is equal to {@code value}
+     */
+    public List<EmbeddingMatch<TextSegment>> search(String key, String value, float[] vector, int limit, double minScore) {
+        try (Connection connection = searchConnection();
+             PreparedStatement statement = connection.prepareStatement("""
+                     SELECT * FROM (
+                         SELECT embedding_id, embedding, text, metadata, (2 - (embedding <=> ?)) / 2 AS score
+                         FROM %s WHERE (metadata->>'%s') = ? ORDER BY embedding <=> ? LIMIT ?
+                     ) AS nearest WHERE score >= ? ORDER BY score DESC""".formatted(table, key))) {
+            final PGvector reference = new PGvector(vector);
+            statement.setObject(1, reference);
+            statement.setString(2, value);
+            statement.setObject(3, reference);
+            statement.setInt(4, limit);
+            statement.setDouble(5, minScore);
+            final List<EmbeddingMatch<TextSegment>> result = new ArrayList<>();
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    final Row row = new Row(
+                            rs.getString(1),
+                            new PGvector(rs.getString(2)).toArray(),
+                            rs.getString(3),
+                            metadata(rs.getString(4)));
+                    result.add(new EmbeddingMatch<>(rs.getDouble(5), row.id(), Embedding.from(row.vector()), row.segment()));
+                }
+            }
+            connection.commit();
+            return result;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Finds rows nearest to each of the vectors in one statement
+     *
+     * @return matches of every vector, in the order of vectors
+     * @see #search(String, String, float[], int, double)
+     */
+    public List<List<EmbeddingMatch<TextSegment>>> searchAll(String key, String value, List<float[]> vectors,
+                                                             int limit, double minScore) {
+        if (vectors.isEmpty()) return List.of();
+        try (Connection connection = searchConnection();
+             PreparedStatement statement = connection.prepareStatement("""
+                     SELECT q.ord, n.embedding_id, n.embedding, n.text, n.metadata, n.score
+                     FROM (SELECT t::vector AS v, ord FROM unnest(?::text[]) WITH ORDINALITY AS u(t, ord)) AS q
+                     CROSS JOIN LATERAL (
+                         SELECT embedding_id, embedding, text, metadata, (2 - (embedding <=> q.v)) / 2 AS score
+                         FROM %s WHERE (metadata->>'%s') = ? ORDER BY embedding <=> q.v LIMIT ?
+                     ) AS n
+                     WHERE n.score >= ? ORDER BY q.ord, n.score DESC""".formatted(table, key))) {
+            statement.setArray(1, connection.createArrayOf("text",
+                    vectors.stream().map(vector -> new PGvector(vector).toString()).toArray()));
+            statement.setString(2, value);
+            statement.setInt(3, limit);
+            statement.setDouble(4, minScore);
+            final List<List<EmbeddingMatch<TextSegment>>> result = new ArrayList<>(vectors.size());
+            for (int i = 0; i < vectors.size(); i++) {
+                result.add(new ArrayList<>());
+            }
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    final Row row = new Row(
+                            rs.getString(2),
+                            new PGvector(rs.getString(3)).toArray(),
+                            rs.getString(4),
+                            metadata(rs.getString(5)));
+                    result.get(rs.getInt(1) - 1).add(new EmbeddingMatch<>(
+                            rs.getDouble(6), row.id(), Embedding.from(row.vector()), row.segment()));
+                }
+            }
+            connection.commit();
+            return result;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Creates the index on the metadata field {@code key}
+     */
+    public void createIndex(String key) {
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement(
+                     "CREATE INDEX IF NOT EXISTS %s_%s_idx ON %s ((metadata->>'%s'))".formatted(table, key, table, key))) {
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Opens the connection in a transaction with the search parameters of the vector index
+     */
+    private Connection searchConnection() throws SQLException {
+        final Connection connection = dataSource.getConnection();
+        try {
+            connection.setAutoCommit(false);
+            try (Statement statement = connection.createStatement()) {
+                if (efSearch != null) {
+                    statement.execute("SET LOCAL hnsw.ef_search = %d".formatted(efSearch));
+                }
+                if (probes != null) {
+                    statement.execute("SET LOCAL ivfflat.probes = %d".formatted(probes));
+                }
+            }
+            return connection;
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    private Map<String, String> metadata(String json) {
+        if (json == null) return Map.of();
+        try {
+            return objectMapper.readValue(json, METADATA_TYPE);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public record Row(String id, float[] vector, String text, Map<String, String> metadata) {
+        public TextSegment segment() {
+            return text == null ? null : TextSegment.from(text, Metadata.from(metadata));
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package ru.vzotov.ai.infrastructure.vector;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+
+/**
+ * Exact k-NN index over a contiguous array of unit-length vectors.
+ * <p>
+ * Scores are compatible with the pgvector store: {@code score = (1 + cosine) / 2}.
+ */
+public class InMemoryVectorIndex {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final int dimension;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Integer> slots = new HashMap<>();
+
+    private float[] vectors;
+    private String[] ids;
+    private TextSegment[] segments;
+    private int size;
+
+    public InMemoryVectorIndex(int dimension) {
+        if (dimension <= 0)
+            throw new IllegalArgumentException("dimension must be > 0");
+        this.dimension = dimension;
+        this.vectors = new float[INITIAL_CAPACITY * dimension];
+        this.ids = new String[INITIAL_CAPACITY];
+        this.segments = new TextSegment[INITIAL_CAPACITY];
+    }
+
+    public int dimension() {
+        return dimension;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean contains(String id) {
+        lock.readLock().lock();
+        try {
+            return slots.containsKey(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Adds the vector or replaces the vector with the same id
+     */
+    public void put(String id, float[] vector, TextSegment segment) {
+        if (vector.length != dimension)
+            throw new IllegalArgumentException("Expected dimension %d, got %d".formatted(dimension, vector.length));
+        final float norm = norm(vector);
+        lock.writeLock().lock();
+        try {
+            Integer slot = slots.get(id);
+            if (slot == null) {
+                ensureCapacity(size + 1);
+                slot = size++;
+                slots.put(id, slot);
+                ids[slot] = id;
+            }
+            final int offset = slot * dimension;
+            for (int i = 0; i < dimension; i++) {
+                vectors[offset + i] = norm == 0f ? 0f : vector[i] / norm;
+            }
+            segments[slot] = segment;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean remove(String id) {
+        lock.writeLock().lock();
+        try {
+            final Integer slot = slots.remove(id);
+            if (slot == null) return false;
+            final int last = --size;
+            if (slot != last) {
+                System.arraycopy(vectors, last * dimension, vectors, slot * dimension, dimension);
+                ids[slot] = ids[last];
+                segments[slot] = segments[last];
+                slots.put(ids[slot], slot);
+            }
+            ids[last] = null;
+            segments[last] = null;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes all vectors which segments match the predicate
+     *
+     * @return number of removed vectors
+     */
+    public int removeIf(Predicate<TextSegment> predicate) {
+        lock.writeLock().lock();
+        try {
+            final List<String> matching = new ArrayList<>();
+            for (int slot = 0; slot < size; slot++) {
+                if (predicate.test(segments[slot])) {
+                    matching.add(ids[slot]);
+                }
+            }
+            matching.forEach(this::remove);
+            return matching.size();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public List<EmbeddingMatch<TextSegment>> search(float[] query, int maxResults, double minScore) {
+        if (query.length != dimension)
+            throw new IllegalArgumentException("Expected dimension %d, got %d".formatted(dimension, query.length));
+        if (maxResults <= 0) return List.of();
+        final float norm = norm(query);
+        if (norm == 0f) return List.of();
+
+        final double[] bestScores = new double[maxResults];
+        final int[] bestSlots = new int[maxResults];
+        int found = 0;
+
+        lock.readLock().lock();
+        try {
+            for (int slot = 0; slot < size; slot++) {
+                final int offset = slot * dimension;
+                float dot = 0f;
+                for (int i = 0; i < dimension; i++) {
+                    dot += vectors[offset + i] * query[i];
+                }
+                final double score = (1.0 + dot / norm) / 2.0;
+                if (score < minScore || (found == maxResults && score <= bestScores[found - 1])) continue;
+
+                int pos = found < maxResults ? found++ : found - 1;
+                while (pos > 0 && bestScores[pos - 1] < score) {
+                    bestScores[pos] = bestScores[pos - 1];
+                    bestSlots[pos] = bestSlots[pos - 1];
+                    pos--;
+                }
+                bestScores[pos] = score;
+                bestSlots[pos] = slot;
+            }
+
+            final List<EmbeddingMatch<TextSegment>> result = new ArrayList<>(found);
+            for (int i = 0; i < found; i++) {
+                final int slot = bestSlots[i];
+                final int offset = slot * dimension;
+                result.add(new EmbeddingMatch<>(bestScores[i], ids[slot],
+                        Embedding.from(Arrays.copyOfRange(vectors, offset, offset + dimension)),
+                        segments[slot]));
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= ids.length) return;
+        final int newCapacity = Math.max(capacity, ids.length * 2);
+        vectors = Arrays.copyOf(vectors, newCapacity * dimension);
+        ids = Arrays.copyOf(ids, newCapacity);
+        segments = Arrays.copyOf(segments, newCapacity);
+    }
+
+    private static float norm(float[] vector) {
+        float sum = 0f;
+        for (float v : vector) {
+            sum += v * v;
+        }
+        return (float) Math.sqrt(sum);
+    }
+}
@@ -0,0 +1,141 @@
+package ru.vzotov.ai.infrastructure.vector;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import lombok.Builder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.vzotov.ai.application.PurchaseEmbeddingStore;
+import ru.vzotov.ai.application.StoredDocument;
+import ru.vzotov.ai.infrastructure.pgvector.PgVectorTable;
+import ru.vzotov.person.domain.model.PersonId;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Embedding store that keeps an in-process copy of the delegate store.
+ * <p>
+ * All writes go to the delegate, which stays the source of truth. Similarity search is served locally
+ * from the index partitioned by owner.
+ */
+public class LocalIndexEmbeddingStore implements PurchaseEmbeddingStore {
+
+    private static final Logger log = LoggerFactory.getLogger(LocalIndexEmbeddingStore.class);
+
+    private final PurchaseEmbeddingStore delegate;
+    private final PartitionedVectorIndex index;
+
+    @Builder
+    public LocalIndexEmbeddingStore(PurchaseEmbeddingStore delegate, PartitionedVectorIndex index) {
+        this.delegate = Objects.requireNonNull(delegate);
+        this.index = Objects.requireNonNull(index);
+    }
+
+    /**
+     * Loads all vectors of the source table into the local index
+     */
+    public void load(PgVectorTable table) {
+        log.info("Loading local vector index");
+        table.forEach(row -> index.put(row.id(), row.vector(), row.segment()));
+        log.info("Local vector index is loaded, size={}", index.size());
+    }
+
+    @Override
+    public String add(Embedding embedding) {
+        String id = delegate.add(embedding);
+        index.put(id, embedding.vector(), null);
+        return id;
+    }
+
+    @Override
+    public void add(String id, Embedding embedding) {
+        delegate.add(id, embedding);
+        index.put(id, embedding.vector(), null);
+    }
+
+    @Override
+    public String add(Embedding embedding, TextSegment textSegment) {
+        String id = delegate.add(embedding, textSegment);
+        index.put(id, embedding.vector(), textSegment);
+        return id;
+    }
+
+    @Override
+    public List<String> addAll(List<Embedding> embeddings) {
+        List<String> ids = delegate.addAll(embeddings);
+        for (int i = 0; i < ids.size(); i++) {
+            index.put(ids.get(i), embeddings.get(i).vector(), null);
+        }
+        return ids;
+    }
+
+    @Override
+    public List<String> addAll(List<Embedding> embeddings, List<TextSegment> embedded) {
+        List<String> ids = delegate.addAll(embeddings, embedded);
+        for (int i = 0; i < ids.size(); i++) {
+            index.put(ids.get(i), embeddings.get(i).vector(), embedded.get(i));
+        }
+        return ids;
+    }
+
+    @Override
+    public List<EmbeddingMatch<TextSegment>> findRelevant(Embedding referenceEmbedding, int maxResults, double minScore) {
+        return index.search(referenceEmbedding.vector(), maxResults, minScore);
+    }
+
+    @Override
+    public List<EmbeddingMatch<TextSegment>> search(PersonId owner, Embedding referenceEmbedding, int maxResults, double minScore) {
+        return index.search(owner.value(), referenceEmbedding.vector(), maxResults, minScore);
+    }
+
+    @Override
+    public void upsertAll(List<String> ids, List<Embedding> embeddings, List<TextSegment> segments) {
+        delegate.upsertAll(ids, embeddings, segments);
+        for (int i = 0; i < ids.size(); i++) {
+            index.put(ids.get(i), embeddings.get(i).vector(), segments.get(i));
+        }
+    }
+
+    @Override
+    public void removeAll(Collection<String> ids) {
+        delegate.removeAll(ids);
+        ids.forEach(index::remove);
+    }
+
+    @Override
+    public List<StoredDocument> findAll(Collection<String> ids) {
+        return delegate.findAll(ids);
+    }
+
+    @Override
+    public Map<String, float[]> findVectors(Collection<String> ids) {
+        return delegate.findVectors(ids);
+    }
+
+    @Override
+    public List<StoredDocument> findAfter(String afterId, int limit) {
+        return delegate.findAfter(afterId, limit);
+    }
+
+    @Override
+    public List<StoredDocument> findAfter(PersonId owner, String afterId, int limit) {
+        return delegate.findAfter(owner, afterId, limit);
+    }
+
+    @Override
+    public Set<PersonId> findOwners() {
+        return delegate.findOwners();
+    }
+
+    @Override
+    public int removeAllExcept(String key, String value) {
+        int removed = delegate.removeAllExcept(key, value);
+        index.removeIf(segment -> segment == null || !Objects.equals(segment.metadata().get(key), value));
+        return removed;
+    }
+}
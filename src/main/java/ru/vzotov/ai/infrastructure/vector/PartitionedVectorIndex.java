@@ -0,0 +1,77 @@
+package ru.vzotov.ai.infrastructure.vector;
+
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Set of {@link InMemoryVectorIndex} partitions.
+ * The partition of a vector is determined by its segment.
+ */
+public class PartitionedVectorIndex {
+
+    private static final String NO_PARTITION = "";
+
+    private final int dimension;
+    private final Function<TextSegment, String> partitioner;
+    private final Map<String, InMemoryVectorIndex> partitions = new ConcurrentHashMap<>();
+    private final Map<String, String> partitionOfId = new ConcurrentHashMap<>();
+
+    public PartitionedVectorIndex(int dimension, Function<TextSegment, String> partitioner) {
+        this.dimension = dimension;
+        this.partitioner = partitioner;
+    }
+
+    public int size() {
+        return partitionOfId.size();
+    }
+
+    public synchronized void put(String id, float[] vector, TextSegment segment) {
+        final String partition = Optional.ofNullable(segment).map(partitioner).orElse(NO_PARTITION);
+        final String previous = partitionOfId.put(id, partition);
+        if (previous != null && !previous.equals(partition)) {
+            partitions.get(previous).remove(id);
+        }
+        partitions.computeIfAbsent(partition, key -> new InMemoryVectorIndex(dimension)).put(id, vector, segment);
+    }
+
+    public synchronized boolean remove(String id) {
+        final String partition = partitionOfId.remove(id);
+        return partition != null && partitions.get(partition).remove(id);
+    }
+
+    public synchronized int removeIf(Predicate<TextSegment> predicate) {
+        int removed = 0;
+        for (InMemoryVectorIndex index : partitions.values()) {
+            removed += index.removeIf(predicate);
+        }
+        partitionOfId.entrySet().removeIf(entry -> !partitions.get(entry.getValue()).contains(entry.getKey()));
+        return removed;
+    }
+
+    /**
+     * Searches vectors of one partition
+     */
+    public List<EmbeddingMatch<TextSegment>> search(String partition, float[] query, int maxResults, double minScore) {
+        final InMemoryVectorIndex index = partitions.get(partition);
+        return index == null ? List.of() : index.search(query, maxResults, minScore);
+    }
+
+    /**
+     * Searches vectors of all partitions
+     */
+    public List<EmbeddingMatch<TextSegment>> search(float[] query, int maxResults, double minScore) {
+        return partitions.values().stream()
+                .flatMap(index -> index.search(query, maxResults, minScore).stream())
+                .sorted(Comparator.comparing(EmbeddingMatch<TextSegment>::score).reversed())
+                .limit(maxResults)
+                .toList();
+    }
+}
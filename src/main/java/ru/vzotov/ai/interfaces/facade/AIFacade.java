@@ -1,11 +1,41 @@
 package ru.vzotov.ai.interfaces.facade;
 
 import ru.vzotov.accounting.interfaces.purchases.PurchasesApi;
+import ru.vzotov.ai.application.VoteEvaluation;
 
 import java.util.List;
+import java.util.function.Consumer;
 
 public interface AIFacade {
     List<PurchasesApi.Purchase> classifyPurchasesBySimilarity(List<String> purchaseIdList);
 
+    /**
+     * Classifies purchases by similarity, passing purchases to the listener as soon as they are classified
+     */
+    List<PurchasesApi.Purchase> classifyPurchasesBySimilarity(List<String> purchaseIdList,
+                                                              Consumer<List<PurchasesApi.Purchase>> listener);
+
+    List<PurchasesApi.Purchase> classifyPurchasesByCentroids(List<String> purchaseIdList);
+
+    /**
+     * Classifies purchases by the nearest category centroid without the chat model,
+     * passing purchases to the listener as soon as they are classified
+     */
+    List<PurchasesApi.Purchase> classifyPurchasesByCentroids(List<String> purchaseIdList,
+                                                             Consumer<List<PurchasesApi.Purchase>> listener);
+
     List<PurchasesApi.Purchase> classifyPurchases(List<String> purchaseId);
+
+    /**
+     * Classifies purchases by the chat model, passing purchases to the listener as soon as they are classified
+     */
+    List<PurchasesApi.Purchase> classifyPurchases(List<String> purchaseId,
+                                                  Consumer<List<PurchasesApi.Purchase>> listener);
+
+    /**
+     * Evaluates the similarity vote on categorized purchases of the current person with a leave-one-out split
+     *
+     * @param limit maximum number of evaluated purchases, capped by the configuration
+     */
+    VoteEvaluation evaluateVote(int limit);
 }
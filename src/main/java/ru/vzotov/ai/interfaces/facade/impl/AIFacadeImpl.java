@@ -3,14 +3,14 @@ package ru.vzotov.ai.interfaces.facade.impl;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JavaType;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Lists;
 import dev.langchain4j.data.embedding.Embedding;
 import dev.langchain4j.data.message.Content;
 import dev.langchain4j.data.message.TextContent;
 import dev.langchain4j.data.message.UserMessage;
 import dev.langchain4j.data.segment.TextSegment;
-import dev.langchain4j.memory.ChatMemory;
-import dev.langchain4j.memory.chat.MessageWindowChatMemory;
 import dev.langchain4j.model.chat.ChatLanguageModel;
 import dev.langchain4j.model.embedding.EmbeddingModel;
 import dev.langchain4j.model.output.structured.Description;
@@ -21,12 +21,12 @@ import dev.langchain4j.rag.content.aggregator.DefaultContentAggregator;
 import dev.langchain4j.rag.content.injector.ContentInjector;
 import dev.langchain4j.rag.content.injector.DefaultContentInjector;
 import dev.langchain4j.rag.content.retriever.ContentRetriever;
-import dev.langchain4j.rag.content.retriever.EmbeddingStoreContentRetriever;
 import dev.langchain4j.rag.query.Query;
 import dev.langchain4j.rag.query.transformer.QueryTransformer;
 import dev.langchain4j.service.AiServices;
+import dev.langchain4j.store.embedding.CosineSimilarity;
 import dev.langchain4j.store.embedding.EmbeddingMatch;
-import dev.langchain4j.store.embedding.EmbeddingStore;
+import io.micrometer.core.instrument.Timer;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
@@ -35,153 +35,681 @@ import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.security.access.annotation.Secured;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import ru.vzotov.accounting.infrastructure.security.SecurityUtils;
 import ru.vzotov.accounting.interfaces.purchases.PurchasesApi;
 import ru.vzotov.accounting.interfaces.purchases.facade.impl.assembler.PurchaseAssembler;
+import ru.vzotov.ai.application.AIMetrics;
+import ru.vzotov.ai.application.CategoryCentroids;
+import ru.vzotov.ai.application.ChatModelDispatcher;
+import ru.vzotov.ai.application.ClassificationCache;
+import ru.vzotov.ai.application.ParallelStage;
+import ru.vzotov.ai.application.PurchaseEmbeddingStore;
+import ru.vzotov.ai.application.PurchaseMetadata;
+import ru.vzotov.ai.application.PurchaseNameIndex;
+import ru.vzotov.ai.application.PurchaseQueryRepository;
+import ru.vzotov.ai.application.SimilarityVote;
+import ru.vzotov.ai.application.TokenBudgetBatcher;
+import ru.vzotov.ai.application.VoteEvaluation;
+import ru.vzotov.ai.application.VoteEvaluator;
 import ru.vzotov.ai.interfaces.facade.AIFacade;
 import ru.vzotov.cashreceipt.domain.model.PurchaseCategory;
 import ru.vzotov.cashreceipt.domain.model.PurchaseCategoryId;
 import ru.vzotov.cashreceipt.domain.model.PurchaseCategoryRepository;
+import ru.vzotov.person.domain.model.PersonId;
 import ru.vzotov.purchase.domain.model.Purchase;
 import ru.vzotov.purchase.domain.model.PurchaseId;
 import ru.vzotov.purchases.domain.model.PurchaseRepository;
 
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.function.Consumer;
 import java.util.function.Function;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
-import java.util.stream.Stream;
 
 public class AIFacadeImpl implements AIFacade {
 
     private static final Logger log = LoggerFactory.getLogger(AIFacadeImpl.class);
 
+    private static final String MODE_HYBRID = "HYBRID";
+    private static final String MODE_RAG = "RAG";
+    private static final String MODE_CENTROID = "CENTROID";
+
+    /**
+     * Number of indexed purchases given to the chat model as examples for every purchase
+     */
+    private static final int RAG_SAMPLES = 2;
+
+    private static final String PROMPT = """
+            Please answer which categories the purchases belong to.
+            Purchases, one per line as number|name:
+            %s
+            The purchase category must be one of these categories, one per line as number|name:
+            %s
+            Answer with the numbers of purchases and categories.
+            """;
+
+    /**
+     * Length of the answer about one purchase, e.g. {@code {"purchase": 12, "category": 34},}
+     */
+    private static final int ANSWER_LENGTH = 32;
+
+    /**
+     * Length of the description of an example in addition to its name
+     */
+    private static final int SAMPLE_LENGTH = 32;
+
+    /**
+     * Number of lists of categories which name embeddings are kept
+     */
+    private static final int CATEGORY_EMBEDDINGS_CACHE_SIZE = 1000;
+
     private final PurchaseCategoryRepository purchaseCategoryRepository;
     private final PurchaseRepository purchaseRepository;
-    private final EmbeddingStore<TextSegment> embeddingStore;
+    private final PurchaseQueryRepository purchaseQueryRepository;
+    private final PurchaseNameIndex nameIndex;
+    private final ClassificationCache classificationCache;
+    private final PurchaseEmbeddingStore embeddingStore;
     private final EmbeddingModel embeddingModel;
     private final ChatLanguageModel chatLanguageModel;
     private final ObjectMapper objectMapper;
+    private final ChatModelDispatcher chatModelDispatcher;
+    private final ParallelStage similarityStage;
+    private final int similarityBatchSize;
+    private final SimilarityVote similarityVote;
+    private final VoteEvaluator voteEvaluator;
+    private final TokenBudgetBatcher chatModelBatcher;
+    private final int candidateCategoryNames;
+    private final CategoryCentroids centroids;
+    private final double centroidMinScore;
+    private final double centroidMargin;
+    private final AIMetrics metrics;
+    private final PurchaseClassifyingAgent agent;
+    private final TransactionTemplate transactionTemplate;
+    private final Cache<String, List<Embedding>> categoryEmbeddings = CacheBuilder.newBuilder()
+            .maximumSize(CATEGORY_EMBEDDINGS_CACHE_SIZE)
+            .build();
 
     @Builder
     public AIFacadeImpl(PurchaseCategoryRepository purchaseCategoryRepository,
                         PurchaseRepository purchaseRepository,
-                        EmbeddingStore<TextSegment> embeddingStore,
+                        PurchaseQueryRepository purchaseQueryRepository,
+                        PurchaseNameIndex nameIndex,
+                        ClassificationCache classificationCache,
+                        PurchaseEmbeddingStore embeddingStore,
                         EmbeddingModel embeddingModel,
                         ChatLanguageModel chatLanguageModel,
-                        ObjectMapper objectMapper
+                        ObjectMapper objectMapper,
+                        ChatModelDispatcher chatModelDispatcher,
+                        ParallelStage similarityStage,
+                        int similarityBatchSize,
+                        SimilarityVote similarityVote,
+                        VoteEvaluator voteEvaluator,
+                        TokenBudgetBatcher chatModelBatcher,
+                        int candidateCategoryNames,
+                        CategoryCentroids centroids,
+                        double centroidMinScore,
+                        double centroidMargin,
+                        AIMetrics metrics,
+                        PlatformTransactionManager transactionManager
     ) {
+        if (similarityBatchSize <= 0)
+            throw new IllegalArgumentException("similarityBatchSize must be > 0");
         this.purchaseCategoryRepository = purchaseCategoryRepository;
         this.purchaseRepository = purchaseRepository;
+        this.purchaseQueryRepository = purchaseQueryRepository;
+        this.nameIndex = Objects.requireNonNull(nameIndex);
+        this.classificationCache = Objects.requireNonNull(classificationCache);
         this.embeddingStore = embeddingStore;
         this.embeddingModel = embeddingModel;
         this.chatLanguageModel = chatLanguageModel;
         this.objectMapper = objectMapper;
+        this.chatModelDispatcher = Objects.requireNonNull(chatModelDispatcher);
+        this.similarityStage = Objects.requireNonNull(similarityStage);
+        this.similarityBatchSize = similarityBatchSize;
+        this.similarityVote = Objects.requireNonNull(similarityVote);
+        this.voteEvaluator = Objects.requireNonNull(voteEvaluator);
+        this.chatModelBatcher = Objects.requireNonNull(chatModelBatcher);
+        this.candidateCategoryNames = candidateCategoryNames;
+        this.centroids = Objects.requireNonNull(centroids);
+        this.centroidMinScore = centroidMinScore;
+        this.centroidMargin = centroidMargin;
+        this.metrics = Objects.requireNonNull(metrics);
+        this.agent = createAgent();
+        this.transactionTemplate = new TransactionTemplate(Objects.requireNonNull(transactionManager));
+        this.transactionTemplate.setReadOnly(true);
     }
 
     @Override
-    @Transactional(value = "accounting-tx", readOnly = true)
     @Secured({"ROLE_USER"})
     public List<PurchasesApi.Purchase> classifyPurchasesBySimilarity(List<String> purchaseIdList) {
-        final int samples = 5;
-        final int threshold = samples - 1;
-        log.debug("Start hybrid classification of purchases {}. Samples={}, threshold={}",
-                purchaseIdList, samples, threshold);
+        return classifyPurchasesBySimilarity(purchaseIdList, result -> {
+        });
+    }
+
+    @Override
+    @Secured({"ROLE_USER"})
+    public List<PurchasesApi.Purchase> classifyPurchasesBySimilarity(List<String> purchaseIdList,
+                                                                     Consumer<List<PurchasesApi.Purchase>> listener) {
+        return metrics.withMode(MODE_HYBRID, () -> classifyUsingSimilarity(purchaseIdList, listener));
+    }
+
+    private List<PurchasesApi.Purchase> classifyUsingSimilarity(List<String> purchaseIdList,
+                                                                Consumer<List<PurchasesApi.Purchase>> listener) {
+        final Timer.Sample sample = Timer.start(metrics.registry());
         try {
-            final List<PurchaseCategory> categories = purchaseCategoryRepository.findAll(SecurityUtils.getCurrentPerson());
+            final PersonId owner = SecurityUtils.getCurrentPerson();
+            final int samples = similarityVote.samples();
+            final int threshold = similarityVote.threshold(owner);
+            log.debug("Start hybrid classification of purchases {}. Samples={}, threshold={}, weighting={}",
+                    purchaseIdList, samples, threshold, similarityVote.weighting());
+            final Loaded loaded = load(owner, purchaseIdList);
+            final List<PurchaseCategory> categories = loaded.categories();
             final Map<PurchaseCategoryId, PurchaseCategory> purchaseCategoryMap = categories.stream()
                     .collect(Collectors.toMap(PurchaseCategory::categoryId, it -> it));
-            final List<Purchase> purchases = loadPurchases(purchaseIdList);
+            final List<Purchase> purchases = loaded.purchases();
+            final String categoriesVersion = ClassificationCache.version(categories);
+            final List<Purchase> unnamed = classifyByName(owner, purchases, purchaseCategoryMap);
+            final List<Purchase> unknown = classifyByCache(owner, MODE_HYBRID, categoriesVersion,
+                    unnamed, purchaseCategoryMap);
+            countTier(MODE_HYBRID, "name", purchases.size() - unnamed.size());
+            countTier(MODE_HYBRID, "cache", unnamed.size() - unknown.size());
+            emit(listener, except(purchases, unknown));
+
             final List<Purchase> classified = new ArrayList<>();
-            final List<String> classifyByChatModel = new ArrayList<>();
+            final List<Purchase> classifyByChatModel = new ArrayList<>();
 
             log.debug("Get embeddings");
-            final List<Embedding> embeddings = embeddingModel.embedAll(
-                    purchases.stream().map(p -> TextSegment.from(p.name())).toList()).content();
-
-            IntStream.range(0, purchases.size())
-                    .boxed()
-                    .parallel()
-                    .forEach(i -> {
-                        Purchase purchase = purchases.get(i);
-                        Embedding embedding = embeddings.get(i);
-
-                        log.debug("{}:: Find relevant documents for purchase {}, {}", i, purchase.purchaseId(), purchase.name());
-
-                        List<EmbeddingMatch<TextSegment>> relevant = embeddingStore.findRelevant(embedding, samples, 0.8);
-                        Map<PurchaseCategoryId, Long> relevantCategories = relevant.stream()
-                                .map(match -> match.embedded().text())
-                                .peek(text -> log.debug("Sample: {}", text))
-                                .map(AIFacadeImpl::extractCategoryId)
-                                .filter(Objects::nonNull)
-                                .map(PurchaseCategoryId::new)
-                                .collect(Collectors.groupingBy(e -> e, Collectors.counting()));
-
-                        Optional<PurchaseCategory> optionalKey = relevantCategories.entrySet().stream()
-                                .filter(entry -> entry.getValue() > threshold)
-                                .map(Map.Entry::getKey)
-                                .findFirst()
-                                .map(purchaseCategoryMap::get);
-
-                        optionalKey.ifPresentOrElse(category -> {
-                                    log.debug("{}:: Relevant category: {}, {}", i, category.categoryId(), category.name());
+            final List<Embedding> embeddings = unknown.isEmpty() ? List.of() : embeddingModel.embedAll(
+                    unknown.stream().map(p -> TextSegment.from(p.name())).toList()).content();
+
+            // every batch of purchases is searched with one query
+            final List<Vote> votes = similarityStage.map(
+                            Lists.partition(embeddings, similarityBatchSize),
+                            batch -> metrics.timer("ai.vector.search", AIMetrics.TAG_MODE, MODE_HYBRID)
+                                    .record(() -> embeddingStore.searchAll(owner, batch, samples,
+                                            similarityVote.minScore())).stream()
+                                    .peek(relevant -> metrics.summary("ai.vector.matches", AIMetrics.TAG_MODE, MODE_HYBRID)
+                                            .record(relevant.size()))
+                                    .map(relevant -> vote(relevant, threshold, purchaseCategoryMap))
+                                    .toList())
+                    .stream()
+                    .flatMap(List::stream)
+                    .toList();
+
+            final List<Purchase> classifiedByCentroid = new ArrayList<>();
+            final Map<PurchaseId, Set<PurchaseCategoryId>> candidates = new HashMap<>();
+            for (int i = 0; i < unknown.size(); i++) {
+                final Purchase purchase = unknown.get(i);
+                final int index = i;
+                final Vote vote = votes.get(i);
+                vote.category().ifPresentOrElse(category -> {
+                            log.debug("{}:: Relevant category: {}, {}", index, category.categoryId(), category.name());
+                            purchase.assignCategory(category);
+                            cache(owner, MODE_HYBRID, categoriesVersion, purchase, category);
+                            classified.add(purchase);
+                        },
+                        () -> nearestCentroid(owner, embeddings.get(index), purchaseCategoryMap)
+                                .ifPresentOrElse(category -> {
+                                    log.debug("{}:: Nearest centroid: {}, {}", index, category.categoryId(), category.name());
                                     purchase.assignCategory(category);
-                                    classified.add(purchase);
-                                },
-                                () -> classifyByChatModel.add(purchase.purchaseId().value()));
-
-                    });
+                                    cache(owner, MODE_HYBRID, categoriesVersion, purchase, category);
+                                    classifiedByCentroid.add(purchase);
+                                }, () -> {
+                                    classifyByChatModel.add(purchase);
+                                    candidates.put(purchase.purchaseId(), new LinkedHashSet<>(vote.candidates()));
+                                }));
+            }
+            emit(listener, classified);
+            emit(listener, classifiedByCentroid);
+            addNearestCategories(categories, categoriesVersion, unknown, embeddings, candidates);
+            metrics.counter("ai.classification.vote", AIMetrics.TAG_MODE, MODE_HYBRID, "outcome", "decided")
+                    .increment(classified.size());
+            metrics.counter("ai.classification.vote", AIMetrics.TAG_MODE, MODE_HYBRID, "outcome", "ambiguous")
+                    .increment(classifiedByCentroid.size() + classifyByChatModel.size());
+            countTier(MODE_HYBRID, "similarity", classified.size());
+            countTier(MODE_HYBRID, "centroid", classifiedByCentroid.size());
 
-            final List<PurchasesApi.Purchase> fromChatModel = new ArrayList<>();
             if (!classifyByChatModel.isEmpty()) {
-                log.debug("This list of purchases is ambiguous. We will use chat model for classification: {}", classifyByChatModel);
-                Lists.partition(classifyByChatModel, 5).stream()
-                        .map(this::classifyPurchases)
-                        .forEach(fromChatModel::addAll);
+                log.debug("This list of purchases is ambiguous. We will use chat model for classification: {}",
+                        classifyByChatModel.stream().map(Purchase::purchaseId).toList());
+                final Map<Purchase, PurchaseCategory> assigned = classifyByChatModel(owner, classifyByChatModel,
+                        categories, candidates, chunk -> emit(listener, chunk));
+                assigned.forEach((purchase, category) -> cache(owner, MODE_HYBRID, categoriesVersion, purchase, category));
+                countTier(MODE_HYBRID, "chat", assigned.size());
+                countTier(MODE_HYBRID, "unclassified", classifyByChatModel.size() - assigned.size());
             }
 
-
-            return Stream.concat(
-                    new PurchaseAssembler().toDTOList(classified).stream(),
-                    fromChatModel.stream()
-            ).toList();
+            return new PurchaseAssembler().toDTOList(purchases);
         } finally {
+            sample.stop(metrics.timer("ai.classification.requests", AIMetrics.TAG_MODE, MODE_HYBRID));
             log.debug("Done");
         }
     }
 
-    private static String extractCategoryId(String document) {
-        Pattern pattern = Pattern.compile("with id '(.+?)'");
-        Matcher matcher = pattern.matcher(document);
-        if (matcher.find()) {
-            return matcher.group(1);
+    @Override
+    @Secured({"ROLE_USER"})
+    public List<PurchasesApi.Purchase> classifyPurchasesByCentroids(List<String> purchaseIdList) {
+        return classifyPurchasesByCentroids(purchaseIdList, result -> {
+        });
+    }
+
+    @Override
+    @Secured({"ROLE_USER"})
+    public List<PurchasesApi.Purchase> classifyPurchasesByCentroids(List<String> purchaseIdList,
+                                                                    Consumer<List<PurchasesApi.Purchase>> listener) {
+        return metrics.withMode(MODE_CENTROID, () -> classifyUsingCentroids(purchaseIdList, listener));
+    }
+
+    private List<PurchasesApi.Purchase> classifyUsingCentroids(List<String> purchaseIdList,
+                                                               Consumer<List<PurchasesApi.Purchase>> listener) {
+        final Timer.Sample sample = Timer.start(metrics.registry());
+        try {
+            final PersonId owner = SecurityUtils.getCurrentPerson();
+            final Loaded loaded = load(owner, purchaseIdList);
+            final List<PurchaseCategory> categories = loaded.categories();
+            final Map<PurchaseCategoryId, PurchaseCategory> purchaseCategoryMap = categories.stream()
+                    .collect(Collectors.toMap(PurchaseCategory::categoryId, it -> it));
+            final List<Purchase> purchases = loaded.purchases();
+            final String categoriesVersion = ClassificationCache.version(categories);
+            final List<Purchase> unnamed = classifyByName(owner, purchases, purchaseCategoryMap);
+            final List<Purchase> unknown = classifyByCache(owner, MODE_CENTROID, categoriesVersion,
+                    unnamed, purchaseCategoryMap);
+            countTier(MODE_CENTROID, "name", purchases.size() - unnamed.size());
+            countTier(MODE_CENTROID, "cache", unnamed.size() - unknown.size());
+            emit(listener, except(purchases, unknown));
+
+            final List<Embedding> embeddings = unknown.isEmpty() ? List.of() : embeddingModel.embedAll(
+                    unknown.stream().map(p -> TextSegment.from(p.name())).toList()).content();
+            final List<Purchase> classified = new ArrayList<>();
+            for (int i = 0; i < unknown.size(); i++) {
+                final Purchase purchase = unknown.get(i);
+                nearestCentroid(owner, embeddings.get(i), purchaseCategoryMap).ifPresent(category -> {
+                    purchase.assignCategory(category);
+                    cache(owner, MODE_CENTROID, categoriesVersion, purchase, category);
+                    classified.add(purchase);
+                });
+            }
+            emit(listener, unknown);
+            countTier(MODE_CENTROID, "centroid", classified.size());
+            countTier(MODE_CENTROID, "unclassified", unknown.size() - classified.size());
+            return new PurchaseAssembler().toDTOList(purchases);
+        } finally {
+            sample.stop(metrics.timer("ai.classification.requests", AIMetrics.TAG_MODE, MODE_CENTROID));
         }
-        return null;
     }
 
     @Override
-    @Transactional(value = "accounting-tx", readOnly = true)
+    @Secured({"ROLE_USER"})
+    public VoteEvaluation evaluateVote(int limit) {
+        return voteEvaluator.evaluate(SecurityUtils.getCurrentPerson(), limit);
+    }
+
+    @Override
     @Secured({"ROLE_USER"})
     public List<PurchasesApi.Purchase> classifyPurchases(List<String> purchaseIdList) {
-        final List<PurchaseCategory> categories = purchaseCategoryRepository.findAll(SecurityUtils.getCurrentPerson());
+        return classifyPurchases(purchaseIdList, result -> {
+        });
+    }
+
+    @Override
+    @Secured({"ROLE_USER"})
+    public List<PurchasesApi.Purchase> classifyPurchases(List<String> purchaseIdList,
+                                                         Consumer<List<PurchasesApi.Purchase>> listener) {
+        final Timer.Sample sample = Timer.start(metrics.registry());
+        try {
+            return metrics.withMode(MODE_RAG, () -> classifyUsingChatModel(purchaseIdList, listener));
+        } finally {
+            sample.stop(metrics.timer("ai.classification.requests", AIMetrics.TAG_MODE, MODE_RAG));
+        }
+    }
+
+    private List<PurchasesApi.Purchase> classifyUsingChatModel(List<String> purchaseIdList,
+                                                               Consumer<List<PurchasesApi.Purchase>> listener) {
+        final PersonId owner = SecurityUtils.getCurrentPerson();
+        final Loaded loaded = load(owner, purchaseIdList);
+        final List<PurchaseCategory> categories = loaded.categories();
+        final List<Purchase> purchases = loaded.purchases();
         final Map<PurchaseCategoryId, PurchaseCategory> purchaseCategoryMap = categories.stream()
                 .collect(Collectors.toMap(PurchaseCategory::categoryId, it -> it));
+        final String categoriesVersion = ClassificationCache.version(categories);
+        final List<Purchase> unnamed = classifyByName(owner, purchases, purchaseCategoryMap);
+        final List<Purchase> unknown = classifyByCache(owner, MODE_RAG, categoriesVersion, unnamed, purchaseCategoryMap);
+        countTier(MODE_RAG, "name", purchases.size() - unnamed.size());
+        countTier(MODE_RAG, "cache", unnamed.size() - unknown.size());
+        emit(listener, except(purchases, unknown));
+        if (!unknown.isEmpty()) {
+            final Map<Purchase, PurchaseCategory> assigned = classifyByChatModel(owner, unknown, categories,
+                    Map.of(), chunk -> emit(listener, chunk));
+            assigned.forEach((purchase, category) -> cache(owner, MODE_RAG, categoriesVersion, purchase, category));
+            countTier(MODE_RAG, "chat", assigned.size());
+            countTier(MODE_RAG, "unclassified", unknown.size() - assigned.size());
+        }
+        return new PurchaseAssembler().toDTOList(purchases);
+    }
+
+    private void countTier(String mode, String tier, int purchases) {
+        metrics.counter("ai.classification.purchases", AIMetrics.TAG_MODE, mode, "tier", tier).increment(purchases);
+    }
+
+    /**
+     * Passes classified purchases to the listener
+     */
+    private static void emit(Consumer<List<PurchasesApi.Purchase>> listener, List<Purchase> purchases) {
+        if (!purchases.isEmpty()) {
+            listener.accept(new PurchaseAssembler().toDTOList(purchases));
+        }
+    }
+
+    private static List<Purchase> except(List<Purchase> purchases, List<Purchase> excluded) {
+        final Set<PurchaseId> ids = excluded.stream().map(Purchase::purchaseId).collect(Collectors.toSet());
+        return purchases.stream().filter(purchase -> !ids.contains(purchase.purchaseId())).toList();
+    }
+
+    /**
+     * Assigns categories of already classified purchases with the same normalized name
+     *
+     * @return purchases which names are not known
+     */
+    private List<Purchase> classifyByName(PersonId owner, List<Purchase> purchases,
+                                          Map<PurchaseCategoryId, PurchaseCategory> categories) {
+        final List<Purchase> unknown = new ArrayList<>();
+        for (Purchase purchase : purchases) {
+            nameIndex.find(owner, purchase.name())
+                    .map(categories::get)
+                    .ifPresentOrElse(category -> {
+                        log.debug("Known name of purchase {}, {}: {}", purchase.purchaseId(), purchase.name(), category.name());
+                        purchase.assignCategory(category);
+                    }, () -> unknown.add(purchase));
+        }
+        return unknown;
+    }
+
+    /**
+     * Assigns cached categories of purchases with the same normalized name
+     *
+     * @return purchases which are not cached
+     */
+    private List<Purchase> classifyByCache(PersonId owner, String mode, String categoriesVersion,
+                                           List<Purchase> purchases,
+                                           Map<PurchaseCategoryId, PurchaseCategory> categories) {
+        final List<Purchase> unknown = new ArrayList<>();
+        for (Purchase purchase : purchases) {
+            classificationCache.get(classificationCache.key(owner, mode, purchase.name(), categoriesVersion))
+                    .map(categories::get)
+                    .ifPresentOrElse(purchase::assignCategory, () -> unknown.add(purchase));
+        }
+        return unknown;
+    }
+
+    private void cache(PersonId owner, String mode, String categoriesVersion,
+                       Purchase purchase, PurchaseCategory category) {
+        classificationCache.put(classificationCache.key(owner, mode, purchase.name(), categoriesVersion),
+                category.categoryId());
+    }
 
+    /**
+     * Finds the category which wins the vote of relevant documents.
+     * Categories of all relevant documents are the candidates if there is no winner.
+     *
+     * @param threshold threshold of the vote
+     */
+    private Vote vote(List<EmbeddingMatch<TextSegment>> relevant, int threshold,
+                      Map<PurchaseCategoryId, PurchaseCategory> categories) {
+        relevant.stream()
+                .map(EmbeddingMatch::embedded)
+                .filter(Objects::nonNull)
+                .forEach(segment -> log.debug("Sample: {}", segment.text()));
+        final SimilarityVote.Vote vote = similarityVote.vote(relevant, threshold);
+        return new Vote(Optional.ofNullable(vote.category()).map(categories::get),
+                vote.candidates().stream().filter(categories::containsKey).toList());
+    }
+
+    /**
+     * @param category   category of the majority of relevant documents
+     * @param candidates categories of relevant documents, most frequent first
+     */
+    private record Vote(Optional<PurchaseCategory> category, List<PurchaseCategoryId> candidates) {
+    }
+
+    /**
+     * Finds the category which centroid is nearest to the embedding of the purchase by the margin
+     */
+    private Optional<PurchaseCategory> nearestCentroid(PersonId owner, Embedding embedding,
+                                                       Map<PurchaseCategoryId, PurchaseCategory> categories) {
+        return centroids.classify(owner, embedding.vector(), centroidMinScore, centroidMargin)
+                .map(categories::get);
+    }
+
+    /**
+     * Adds categories which names are nearest to the names of purchases to their candidates.
+     * Embeddings of category names are cached by the version of the list of categories.
+     */
+    private void addNearestCategories(List<PurchaseCategory> categories, String categoriesVersion,
+                                      List<Purchase> purchases, List<Embedding> embeddings,
+                                      Map<PurchaseId, Set<PurchaseCategoryId>> candidates) {
+        if (candidateCategoryNames <= 0 || candidates.isEmpty() || categories.isEmpty()) return;
+        List<Embedding> categoryEmbeddings = this.categoryEmbeddings.getIfPresent(categoriesVersion);
+        if (categoryEmbeddings == null) {
+            categoryEmbeddings = embeddingModel.embedAll(categories.stream()
+                    .map(category -> TextSegment.from(category.name()))
+                    .toList()).content();
+            this.categoryEmbeddings.put(categoriesVersion, categoryEmbeddings);
+        }
+        for (int i = 0; i < purchases.size(); i++) {
+            final Set<PurchaseCategoryId> purchaseCandidates = candidates.get(purchases.get(i).purchaseId());
+            if (purchaseCandidates == null) continue;
+            final Embedding embedding = embeddings.get(i);
+            final double[] similarity = categoryEmbeddings.stream()
+                    .mapToDouble(categoryEmbedding -> CosineSimilarity.between(embedding, categoryEmbedding))
+                    .toArray();
+            IntStream.range(0, categories.size()).boxed()
+                    .sorted(Comparator.comparingDouble((Integer c) -> similarity[c]).reversed())
+                    .limit(candidateCategoryNames)
+                    .forEach(c -> purchaseCandidates.add(categories.get(c).categoryId()));
+        }
+    }
+
+    /**
+     * Classifies purchases by the chat model.
+     * Chunks of purchases are sized to the token budget and classified concurrently,
+     * categories are assigned in the calling thread as soon as a chunk is done.
+     * Purchases and categories are given to the model by their numbers, which are mapped back to ids here.
+     * <p>
+     * Purchases with candidate categories are grouped by their candidates, and the prompt of the chunk lists
+     * only the candidates of its purchases. Purchases without candidates are classified in separate chunks
+     * with all categories. Purchases which are not classified among the candidates
+     * are classified again with all categories.
+     *
+     * @param candidates candidate categories of purchases, purchases without candidates are shown all categories
+     * @param onChunk    receives purchases of every completed chunk, and finally purchases of failed chunks
+     * @return assigned categories
+     */
+    private Map<Purchase, PurchaseCategory> classifyByChatModel(PersonId owner, List<Purchase> purchases,
+                                                                List<PurchaseCategory> categories,
+                                                                Map<PurchaseId, Set<PurchaseCategoryId>> candidates,
+                                                                Consumer<List<Purchase>> onChunk) {
+        final Map<PurchaseCategoryId, PurchaseCategory> purchaseCategoryMap = categories.stream()
+                .collect(Collectors.toMap(PurchaseCategory::categoryId, it -> it));
+        final Function<Purchase, Set<PurchaseCategoryId>> candidatesOf = purchase ->
+                Optional.ofNullable(candidates.get(purchase.purchaseId())).orElse(Set.of());
+        final List<Purchase> withCandidates = purchases.stream()
+                .filter(purchase -> !candidatesOf.apply(purchase).isEmpty())
+                .sorted(Comparator.comparing((Purchase purchase) -> candidatesOf.apply(purchase).stream()
+                        .map(PurchaseCategoryId::value).sorted().collect(Collectors.joining(","))))
+                .toList();
+        final List<Purchase> withoutCandidates = purchases.stream()
+                .filter(purchase -> candidatesOf.apply(purchase).isEmpty())
+                .toList();
+        final int categoriesLength = categories.stream()
+                .mapToInt(category -> line(0, category.name()).length())
+                .sum();
+        final List<ChatChunk> chunks = new ArrayList<>();
+        chatModelBatcher.partition(withCandidates,
+                        purchase -> promptLength(purchase) + candidatesOf.apply(purchase).stream()
+                                .map(purchaseCategoryMap::get)
+                                .filter(Objects::nonNull)
+                                .mapToInt(category -> line(0, category.name()).length())
+                                .sum(),
+                        PROMPT.length())
+                .forEach(chunk -> chunks.add(new ChatChunk(chunk, categories.stream()
+                        .filter(category -> chunk.stream()
+                                .anyMatch(purchase -> candidatesOf.apply(purchase).contains(category.categoryId())))
+                        .toList(), true)));
+        chatModelBatcher.partition(withoutCandidates, AIFacadeImpl::promptLength, PROMPT.length() + categoriesLength)
+                .forEach(chunk -> chunks.add(new ChatChunk(chunk, categories, false)));
+        final Map<Purchase, PurchaseCategory> result = new HashMap<>();
+        final Set<PurchaseId> done = new HashSet<>();
+        final List<Purchase> unresolved = new ArrayList<>();
+
+        final String mode = metrics.mode();
+        chatModelDispatcher.dispatch(chunks,
+                chunk -> metrics.withMode(mode, () -> classifyChunk(owner,
+                        IntStream.range(0, chunk.purchases().size())
+                                .mapToObj(i -> new PurchaseData(i + 1, chunk.purchases().get(i).name()))
+                                .toList(),
+                        IntStream.range(0, chunk.categories().size())
+                                .mapToObj(i -> new CategoryData(i + 1, chunk.categories().get(i).categoryId().value(),
+                                        chunk.categories().get(i).name()))
+                                .toList())),
+                (chunk, response) -> {
+                    final List<Purchase> resolved = new ArrayList<>();
+                    Optional.ofNullable(response.classification())
+                            .stream().flatMap(List::stream)
+                            .forEach(item -> {
+                                final Purchase purchase = byAlias(chunk.purchases(), item.getPurchase());
+                                if (purchase == null) {
+                                    metrics.counter("ai.chat.unmapped", "field", "purchase", AIMetrics.TAG_MODE, mode).increment();
+                                    return;
+                                }
+                                final PurchaseCategory targetCategory = byAlias(chunk.categories(), item.getCategory());
+                                if (targetCategory == null) {
+                                    metrics.counter("ai.chat.unmapped", "field", "category", AIMetrics.TAG_MODE, mode).increment();
+                                    return;
+                                }
+                                purchase.assignCategory(targetCategory);
+                                result.put(purchase, targetCategory);
+                                resolved.add(purchase);
+                            });
+                    chunk.purchases().forEach(purchase -> done.add(purchase.purchaseId()));
+                    if (chunk.pruned()) {
+                        final List<Purchase> rest = except(chunk.purchases(), resolved);
+                        unresolved.addAll(rest);
+                        onChunk.accept(except(chunk.purchases(), rest));
+                    } else {
+                        onChunk.accept(chunk.purchases());
+                    }
+                });
+
+        final List<Purchase> failed = purchases.stream()
+                .filter(purchase -> !done.contains(purchase.purchaseId()))
+                .toList();
+        if (!failed.isEmpty()) {
+            onChunk.accept(failed);
+        }
+        if (!unresolved.isEmpty()) {
+            log.debug("Purchases are not classified among candidates, classify with all categories: {}",
+                    unresolved.stream().map(Purchase::purchaseId).toList());
+            metrics.counter("ai.chat.fallback", AIMetrics.TAG_MODE, mode).increment(unresolved.size());
+            result.putAll(classifyByChatModel(owner, unresolved, categories, Map.of(), onChunk));
+        }
+        return result;
+    }
+
+    /**
+     * Purchases classified by one chat model call and categories shown to the model
+     *
+     * @param pruned the categories are the candidates of the purchases
+     */
+    private record ChatChunk(List<Purchase> purchases, List<PurchaseCategory> categories, boolean pruned) {
+    }
+
+    /**
+     * Item with the given 1-based number, or {@code null} if there is no such item
+     */
+    private static <T> T byAlias(List<T> items, Integer alias) {
+        return alias != null && alias >= 1 && alias <= items.size() ? items.get(alias - 1) : null;
+    }
+
+    private static String line(int alias, String name) {
+        return alias + "|" + name + "\n";
+    }
+
+    /**
+     * Length of the prompt and the answer added by the purchase, including its examples
+     */
+    private static int promptLength(Purchase purchase) {
+        final int name = purchase.name().length();
+        return line(0, purchase.name()).length() + ANSWER_LENGTH + RAG_SAMPLES * (name + SAMPLE_LENGTH);
+    }
+
+    private AgentResponse classifyChunk(PersonId owner, List<PurchaseData> chunk, List<CategoryData> categories) {
+        final String request;
+        try {
+            request = objectMapper.writeValueAsString(new AgentRequest(owner.value(), chunk, categories));
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+        final Timer.Sample sample = Timer.start(metrics.registry());
+        String outcome = "error";
+        try {
+            final AgentResponse response = agent.classify(request);
+            outcome = "success";
+            return response;
+        } catch (RuntimeException e) {
+            if (isParseError(e)) outcome = "parse_error";
+            throw e;
+        } finally {
+            sample.stop(metrics.timer("ai.chat.chunks", "outcome", outcome, AIMetrics.TAG_MODE, metrics.mode()));
+        }
+    }
+
+    /**
+     * The answer of the chat model can not be parsed (Jackson or Gson parser failed)
+     */
+    private static boolean isParseError(Throwable error) {
+        for (Throwable e = error; e != null; e = e.getCause()) {
+            if (e instanceof JsonProcessingException || e.getClass().getName().startsWith("com.google.gson.")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    PurchaseClassifyingAgent agent() {
+        return agent;
+    }
+
+    /**
+     * Creates the classifying agent.
+     * The agent is stateless: all request data, including the list of categories, is passed in the {@link AgentRequest}.
+     */
+    PurchaseClassifyingAgent createAgent() {
         // todo: we can embed multiple queries in one request (use embedAll)
         // The content retriever is responsible for retrieving relevant content based on a text query.
-        ContentRetriever contentRetriever = EmbeddingStoreContentRetriever.builder()
-                .embeddingStore(embeddingStore)
-                .embeddingModel(embeddingModel)
-                .maxResults(2) // on each interaction we will retrieve the 2 most relevant segments
-                .minScore(0.5) // we want to retrieve segments at least somewhat similar to user query
-                .build();
+        // Only purchases of the requesting person are retrieved.
+        ContentRetriever contentRetriever = query -> jsonMessage(query.metadata().userMessage(),
+                objectMapper.constructType(AgentRequest.class),
+                (AgentRequest data) -> embeddingStore.search(
+                                new PersonId(data.owner()),
+                                embeddingModel.embed(query.text()).content(),
+                                RAG_SAMPLES, // on each interaction we will retrieve the most relevant segments
+                                0.5) // we want to retrieve segments at least somewhat similar to user query
+                        .stream()
+                        .map(EmbeddingMatch::embedded)
+                        .filter(Objects::nonNull)
+                        .map(dev.langchain4j.rag.content.Content::from)
+                        .toList());
 
         // Aggregates all Contents retrieved from all ContentRetrievers using all queries.
         ContentAggregator contentAggregator = new DefaultContentAggregator();
@@ -193,33 +721,31 @@ public class AIFacadeImpl implements AIFacade {
 
             return jsonMessage(userMessage, objectMapper.constructType(AgentRequest.class),
                     (AgentRequest data) -> data.purchases().stream()
-                            .map(s -> Query.from(s.purchaseName(), query.metadata()))
+                            .map(s -> Query.from(s.name(), query.metadata()))
                             .toList());
         };
 
         ContentInjector defaultContentInjector = DefaultContentInjector.builder().build();
-        ContentInjector contentInjector = (contents, userMessage) -> defaultContentInjector.inject(contents,
-                UserMessage.from(jsonMessage(userMessage, objectMapper.constructType(AgentRequest.class),
-                        (AgentRequest data) -> {
-                            try {
-                                return """
-                                        Please answer which categories the list of purchases belong to:
-                                        ```json
-                                        %s
-                                        ```
-                                                                                
-                                        The purchase category must be one of this list of possible categories:
-                                        ```json
-                                        %s
-                                        ```
-                                        """.formatted(
-                                        objectMapper.writeValueAsString(data.purchases()),
-                                        objectMapper.writeValueAsString(categories.stream().map(c -> new CategoryData(c.name(), c.categoryId().value())).toList())
-                                );
-                            } catch (JsonProcessingException e) {
-                                throw new RuntimeException(e);
-                            }
-                        })));
+        ContentInjector contentInjector = (contents, userMessage) -> jsonMessage(userMessage,
+                objectMapper.constructType(AgentRequest.class),
+                (AgentRequest data) -> {
+                    final Map<String, CategoryData> categoryMap = data.categories().stream()
+                            .collect(Collectors.toMap(CategoryData::id, it -> it, (a, b) -> a));
+                    return defaultContentInjector.inject(
+                            contents.stream()
+                                    .map(content -> describeSample(content.textSegment(), categoryMap))
+                                    .filter(Objects::nonNull)
+                                    .distinct()
+                                    .map(dev.langchain4j.rag.content.Content::from)
+                                    .toList(),
+                            UserMessage.from(PROMPT.formatted(
+                                    data.purchases().stream()
+                                            .map(purchase -> line(purchase.alias(), purchase.name()))
+                                            .collect(Collectors.joining()),
+                                    data.categories().stream()
+                                            .map(category -> line(category.alias(), category.name()))
+                                            .collect(Collectors.joining()))));
+                });
 
         RetrievalAugmentor retrievalAugmentor = DefaultRetrievalAugmentor.builder()
                 .contentRetriever(contentRetriever)
@@ -228,68 +754,79 @@ public class AIFacadeImpl implements AIFacade {
                 .contentInjector(contentInjector)
                 .build();
 
-        ChatMemory chatMemory = MessageWindowChatMemory.withMaxMessages(10);
-
-        PurchaseClassifyingAgent agent = AiServices.builder(PurchaseClassifyingAgent.class)
+        // Every request is independent, so the agent has no chat memory
+        return AiServices.builder(PurchaseClassifyingAgent.class)
                 .chatLanguageModel(chatLanguageModel)
                 .retrievalAugmentor(retrievalAugmentor)
-                .chatMemory(chatMemory)
                 .build();
+    }
 
-        final List<Purchase> purchases = loadPurchases(purchaseIdList);
-        final Map<PurchaseId, Purchase> purchaseMap = purchases.stream()
-                .collect(Collectors.toMap(Purchase::purchaseId, it -> it));
-        try {
-            AgentResponse response = agent.classify(
-                    objectMapper.writeValueAsString(new AgentRequest(purchases.stream().map(p -> new IdNameOfPurchase(p.purchaseId().value(), p.name())).toList())));
-            Optional.ofNullable(response)
-                    .map(AgentResponse::classification)
-                    .stream().flatMap(List::stream)
-                    .forEach(item -> {
-                        final Purchase p = Optional.ofNullable(item.getPurchaseId())
-                                .map(PurchaseId::new)
-                                .map(purchaseMap::get)
-                                .orElse(null);
-                        if (p == null) return;
-                        final PurchaseCategory targetCategory = Optional.ofNullable(item.getCategoryId())
-                                .map(PurchaseCategoryId::new)
-                                .map(purchaseCategoryMap::get)
-                                .orElse(null);
-                        if (targetCategory == null) return;
-                        p.assignCategory(targetCategory);
-                    });
+    /**
+     * Describes indexed purchase for the chat model
+     */
+    private static String describeSample(TextSegment segment, Map<String, CategoryData> categories) {
+        return Optional.ofNullable(segment.metadata().get(PurchaseMetadata.F_REFERENCE_ID))
+                .map(categories::get)
+                .map(category -> "Purchase '%s' has category %d."
+                        .formatted(segment.text(), category.alias()))
+                .orElse(null);
+    }
 
-            return new PurchaseAssembler().toDTOList(purchases);
-        } catch (JsonProcessingException e) {
-            throw new RuntimeException(e);
-        }
+    /**
+     * Loads categories of the person and the purchases in a short read-only transaction,
+     * so that no connection is held while the models are called.
+     */
+    private Loaded load(PersonId owner, List<String> purchaseIdList) {
+        return Objects.requireNonNull(transactionTemplate.execute(status ->
+                new Loaded(purchaseCategoryRepository.findAll(owner), loadPurchases(purchaseIdList))));
     }
 
+    private record Loaded(List<PurchaseCategory> categories, List<Purchase> purchases) {
+    }
+
+    /**
+     * Loads purchases in the order of ids.
+     * Purchases are loaded in bulk when the query repository is available.
+     */
     @NotNull
     private List<Purchase> loadPurchases(List<String> purchaseIdList) {
-        return purchaseIdList.stream()
+        final List<PurchaseId> ids = purchaseIdList.stream()
                 .filter(Objects::nonNull)
                 .map(PurchaseId::new)
+                .distinct()
+                .toList();
+        if (purchaseQueryRepository != null) {
+            return purchaseQueryRepository.findAll(ids);
+        }
+        return ids.stream()
                 .map(purchaseRepository::find)
                 .filter(Objects::nonNull)
                 .toList();
     }
 
-    record CategoryData(String name, String id) {
+    /**
+     * @param alias number of the category in the prompt
+     * @param id    id of the category, it is not sent to the chat model
+     */
+    record CategoryData(int alias, String id, String name) {
     }
 
+    /**
+     * Category assigned by the chat model
+     */
     @Data
     @NoArgsConstructor
     @AllArgsConstructor
     @Builder
-    static class PurchaseCategoryData {
-        private String purchaseId;
-        private String purchaseName;
-        private String categoryId;
-        private String categoryName;
+    static class Assignment {
+        private Integer purchase;
+        private Integer category;
     }
 
-    record IdNameOfPurchase(String purchaseId, String purchaseName) {
+    /**
+     * @param alias number of the purchase in the prompt
+     */
+    record PurchaseData(int alias, String name) {
     }
 
     interface PurchaseClassifyingAgent {
@@ -298,12 +835,12 @@ public class AIFacadeImpl implements AIFacade {
 
     record AgentResponse(
             @Description("""
-                    array of objects {"purchaseId": (type: string), "purchaseName": (type: string), "categoryId": (type: string), "categoryName": (type: string)}
+                    array of objects {"purchase": (type: integer), "category": (type: integer)}
                     """)
-            List<PurchaseCategoryData> classification) {
+            List<Assignment> classification) {
     }
 
-    record AgentRequest(List<IdNameOfPurchase> purchases) {
+    record AgentRequest(String owner, List<PurchaseData> purchases, List<CategoryData> categories) {
     }
 
     <T, R> R jsonMessage(UserMessage userMessage, JavaType type, Function<T, R> action) {
@@ -1,13 +1,26 @@
 package ru.vzotov.ai.interfaces.rest;
 
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import ru.vzotov.accounting.interfaces.purchases.PurchasesApi;
 import ru.vzotov.ai.AIModuleProperties;
+import ru.vzotov.ai.application.ClassificationJobs;
+import ru.vzotov.ai.application.VoteEvaluation;
 import ru.vzotov.ai.interfaces.facade.AIFacade;
 
+import java.io.IOException;
+import java.time.Duration;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
 
 @ConditionalOnProperty(prefix = AIModuleProperties.PREFIX, name = "enabled")
 @RestController
@@ -15,28 +28,165 @@ import java.util.Optional;
 @CrossOrigin
 public class PurchasesAiController {
 
+    private static final String APPLICATION_NDJSON_VALUE = "application/x-ndjson";
+
     private final AIFacade facade;
+    private final ClassificationJobs<PurchasesApi.Purchase> jobs;
+    private final Duration streamTimeout;
 
-    public PurchasesAiController(AIFacade facade) {
+    public PurchasesAiController(AIFacade facade,
+                                 ClassificationJobs<PurchasesApi.Purchase> jobs,
+                                 AIModuleProperties properties) {
         this.facade = facade;
+        this.jobs = jobs;
+        this.streamTimeout = properties.getPurchases().getStreamTimeout();
     }
 
     @PatchMapping
     public List<PurchasesApi.Purchase> classifyPurchases(@RequestBody ClassifyPurchasesRequest request) {
+        return classify(request, result -> {
+        });
+    }
+
+    /**
+     * Streams purchases as server-sent events as soon as they are classified.
+     * Every purchase is sent as a {@code purchase} event, the stream ends with a {@code done} event.
+     * The job is cancelled when the client disconnects.
+     */
+    @PatchMapping(produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter classifyPurchasesAsEvents(@RequestBody ClassifyPurchasesRequest request) {
+        SseEmitter emitter = new SseEmitter(streamTimeout.toMillis());
+        ClassificationJobs.Subscription subscription = submit(request).subscribe(
+                purchases -> {
+                    try {
+                        for (PurchasesApi.Purchase purchase : purchases) {
+                            emitter.send(SseEmitter.event().name("purchase").data(purchase, MediaType.APPLICATION_JSON));
+                        }
+                    } catch (IOException e) {
+                        emitter.completeWithError(e);
+                    }
+                },
+                job -> {
+                    try {
+                        emitter.send(SseEmitter.event().name("done")
+                                .data(new JobResponse(job.id(), job.status(), job.error(), List.of()),
+                                        MediaType.APPLICATION_JSON));
+                        emitter.complete();
+                    } catch (IOException e) {
+                        emitter.completeWithError(e);
+                    }
+                });
+        unsubscribeOnCompletion(emitter, subscription);
+        return emitter;
+    }
+
+    /**
+     * Streams purchases as newline-delimited JSON as soon as they are classified.
+     * The job is cancelled when the client disconnects.
+     */
+    @PatchMapping(produces = APPLICATION_NDJSON_VALUE)
+    public ResponseBodyEmitter classifyPurchasesAsJsonLines(@RequestBody ClassifyPurchasesRequest request) {
+        ResponseBodyEmitter emitter = new ResponseBodyEmitter(streamTimeout.toMillis());
+        ClassificationJobs.Subscription subscription = submit(request).subscribe(
+                purchases -> {
+                    try {
+                        for (PurchasesApi.Purchase purchase : purchases) {
+                            emitter.send(purchase, MediaType.APPLICATION_JSON);
+                            emitter.send("\n", MediaType.TEXT_PLAIN);
+                        }
+                    } catch (IOException e) {
+                        emitter.completeWithError(e);
+                    }
+                },
+                job -> {
+                    if (job.status() == ClassificationJobs.Status.FAILED) {
+                        emitter.completeWithError(new IllegalStateException(job.error()));
+                    } else {
+                        emitter.complete();
+                    }
+                });
+        unsubscribeOnCompletion(emitter, subscription);
+        return emitter;
+    }
+
+    /**
+     * Unsubscribes from the job when the response is completed, timed out or broken,
+     * e.g. when the client disconnects
+     */
+    private static void unsubscribeOnCompletion(ResponseBodyEmitter emitter,
+                                                ClassificationJobs.Subscription subscription) {
+        emitter.onCompletion(subscription::unsubscribe);
+        emitter.onTimeout(subscription::unsubscribe);
+        emitter.onError(error -> subscription.unsubscribe());
+    }
+
+    /**
+     * Submits the classification job
+     */
+    @PostMapping("/jobs")
+    public ResponseEntity<JobResponse> submitJob(@RequestBody ClassifyPurchasesRequest request) {
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body(new JobResponse(submit(request), 0));
+    }
+
+    /**
+     * Gets the state of the job and its results
+     *
+     * @param from number of results already received
+     */
+    @GetMapping("/jobs/{id}")
+    public JobResponse getJob(@PathVariable("id") String id,
+                              @RequestParam(name = "from", defaultValue = "0") int from) {
+        return jobs.find(id, currentUser())
+                .map(job -> new JobResponse(job, from))
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND));
+    }
+
+    /**
+     * Replays categorized purchases of the current user through the similarity vote
+     * and reports accuracy against the chat model escalation rate for every threshold
+     *
+     * @param limit maximum number of evaluated purchases, capped by the configuration
+     */
+    @PostMapping("/vote-evaluation")
+    public VoteEvaluation evaluateVote(@RequestParam(name = "limit", defaultValue = "1000") int limit) {
+        return facade.evaluateVote(limit);
+    }
+
+    private ClassificationJobs.Job<PurchasesApi.Purchase> submit(ClassifyPurchasesRequest request) {
+        try {
+            return jobs.submit(currentUser(), listener -> classify(request, listener));
+        } catch (RejectedExecutionException e) {
+            throw new ResponseStatusException(HttpStatus.TOO_MANY_REQUESTS, "Too many classification jobs", e);
+        }
+    }
+
+    private List<PurchasesApi.Purchase> classify(ClassifyPurchasesRequest request,
+                                                 Consumer<List<PurchasesApi.Purchase>> listener) {
         Mode mode = Optional.ofNullable(request.mode()).orElse(Mode.HYBRID);
         return switch (mode) {
-            case HYBRID -> facade.classifyPurchasesBySimilarity(request.purchaseId());
-            case RAG -> facade.classifyPurchases(request.purchaseId());
+            case HYBRID -> facade.classifyPurchasesBySimilarity(request.purchaseId(), listener);
+            case RAG -> facade.classifyPurchases(request.purchaseId(), listener);
+            case CENTROID -> facade.classifyPurchasesByCentroids(request.purchaseId(), listener);
         };
     }
 
+    private static String currentUser() {
+        return SecurityContextHolder.getContext().getAuthentication().getName();
+    }
+
     public enum Mode {
-        HYBRID, RAG;
+        HYBRID, RAG, CENTROID;
     }
 
     public record ClassifyPurchasesRequest(List<String> purchaseId, Mode mode) {
 
     }
 
+    public record JobResponse(String id, ClassificationJobs.Status status, String error,
+                              List<PurchasesApi.Purchase> results) {
+        JobResponse(ClassificationJobs.Job<PurchasesApi.Purchase> job, int from) {
+            this(job.id(), job.status(), job.error(), job.results(from));
+        }
+    }
 
 }
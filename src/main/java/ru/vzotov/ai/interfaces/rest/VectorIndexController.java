@@ -0,0 +1,31 @@
+package ru.vzotov.ai.interfaces.rest;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.security.access.annotation.Secured;
+import org.springframework.web.bind.annotation.*;
+import ru.vzotov.ai.AIModuleProperties;
+import ru.vzotov.ai.infrastructure.pgvector.PgVectorIndex;
+
+@ConditionalOnProperty(prefix = AIModuleProperties.PREFIX, name = "enabled")
+@RestController
+@RequestMapping("/accounting/ai/vector-index")
+@CrossOrigin
+public class VectorIndexController {
+
+    private final PgVectorIndex index;
+
+    public VectorIndexController(PgVectorIndex index) {
+        this.index = index;
+    }
+
+    /**
+     * Rebuilds the vector index concurrently if the table size crossed the thresholds of the index
+     *
+     * @param force rebuild the index regardless of the thresholds
+     */
+    @PostMapping("/rebuild")
+    @Secured({"ROLE_ADMIN"})
+    public PgVectorIndex.RebuildResult rebuild(@RequestParam(name = "force", defaultValue = "false") boolean force) {
+        return index.rebuild(force);
+    }
+}
@@ -0,0 +1,46 @@
+package ru.vzotov.ai.application;
+
+import org.junit.jupiter.api.Test;
+import ru.vzotov.cashreceipt.domain.model.PurchaseCategoryId;
+import ru.vzotov.person.domain.model.PersonId;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CategoryCentroidsTest {
+
+    private static final PersonId U_1 = new PersonId("U1");
+    private static final PersonId U_2 = new PersonId("U2");
+    private static final PurchaseCategoryId C_1 = new PurchaseCategoryId("C1");
+    private static final PurchaseCategoryId C_2 = new PurchaseCategoryId("C2");
+
+    @Test
+    void should_classify_by_nearest_centroid() {
+        CategoryCentroids centroids = new CategoryCentroids(1);
+        centroids.add(U_1, C_1, new float[]{1, 0.1f});
+        centroids.add(U_1, C_1, new float[]{1, -0.1f});
+        centroids.add(U_1, C_2, new float[]{0, 1});
+
+        assertThat(centroids.classify(U_1, new float[]{2, 0.2f}, 0.8, 0.1)).contains(C_1);
+        assertThat(centroids.classify(U_2, new float[]{2, 0.2f}, 0.8, 0.1)).isEmpty();
+    }
+
+    @Test
+    void should_not_classify_within_margin() {
+        CategoryCentroids centroids = new CategoryCentroids(1);
+        centroids.add(U_1, C_1, new float[]{1, 0});
+        centroids.add(U_1, C_2, new float[]{0, 1});
+
+        assertThat(centroids.classify(U_1, new float[]{1, 0.9f}, 0.5, 0.1)).isEmpty();
+    }
+
+    @Test
+    void should_forget_removed_vectors() {
+        CategoryCentroids centroids = new CategoryCentroids(1);
+        centroids.add(U_1, C_1, new float[]{1, 0});
+        centroids.add(U_1, C_2, new float[]{0, 1});
+        centroids.add(U_1, C_2, new float[]{1, 0.1f});
+        centroids.remove(U_1, C_2, new float[]{1, 0.1f});
+
+        assertThat(centroids.classify(U_1, new float[]{1, 0.1f}, 0.8, 0.1)).contains(C_1);
+    }
+}
@@ -0,0 +1,160 @@
+package ru.vzotov.ai.application;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import ru.vzotov.ai.ModelType;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ChatModelDispatcherTest {
+
+    private ChatModelDispatcher dispatcher;
+
+    @AfterEach
+    void tearDown() {
+        dispatcher.shutdown();
+    }
+
+    @Test
+    void should_not_count_queue_wait_in_timeout() {
+        dispatcher = dispatcher(1, Duration.ofMillis(300), 1);
+        final Map<Integer, String> results = new ConcurrentHashMap<>();
+
+        dispatcher.dispatch(List.of(1, 2), task -> {
+            sleep(200);
+            return "R" + task;
+        }, results::put);
+
+        assertThat(results).containsOnlyKeys(1, 2);
+    }
+
+    @Test
+    void should_interrupt_timed_out_calls() {
+        dispatcher = dispatcher(1, Duration.ofMillis(100), 1);
+        final Map<Integer, String> results = new ConcurrentHashMap<>();
+        final long start = System.currentTimeMillis();
+
+        // the queue holds one task, the third one runs in the calling thread
+        dispatcher.dispatch(List.of(1, 2, 3), task -> {
+            sleep(10_000);
+            return "R" + task;
+        }, results::put);
+
+        assertThat(results).isEmpty();
+        assertThat(System.currentTimeMillis() - start).isLessThan(5_000);
+        assertThat(Thread.currentThread().isInterrupted()).isFalse();
+
+        dispatcher.dispatch(List.of(4), task -> "R" + task, results::put);
+        assertThat(results).containsEntry(4, "R4");
+    }
+
+    @Test
+    void should_retry_only_when_rate_limited() {
+        dispatcher = dispatcher(2, Duration.ofSeconds(5), 3);
+        final AtomicInteger attempts = new AtomicInteger();
+        final Map<Integer, String> results = new ConcurrentHashMap<>();
+
+        dispatcher.dispatch(List.of(1), task -> {
+            if (attempts.incrementAndGet() < 3) throw new HttpError(429);
+            return "R" + task;
+        }, results::put);
+        assertThat(results).containsEntry(1, "R1");
+        assertThat(attempts).hasValue(3);
+
+        attempts.set(0);
+        dispatcher.dispatch(List.of(2), task -> {
+            attempts.incrementAndGet();
+            throw new HttpError(500);
+        }, results::put);
+        assertThat(results).doesNotContainKey(2);
+        assertThat(attempts).hasValue(1);
+    }
+
+    @Test
+    void should_skip_calls_after_shutdown() {
+        dispatcher = dispatcher(1, Duration.ofSeconds(5), 1);
+        final Map<Integer, String> results = new ConcurrentHashMap<>();
+        dispatcher.shutdown();
+        final long start = System.currentTimeMillis();
+
+        dispatcher.dispatch(List.of(1, 2, 3), task -> "R" + task, results::put);
+
+        assertThat(results).isEmpty();
+        assertThat(System.currentTimeMillis() - start).isLessThan(5_000);
+    }
+
+    @Test
+    void should_detect_rate_limit_by_status_code() {
+        assertThat(ChatModelDispatcher.isRateLimited(new RuntimeException(new HttpError(429)))).isTrue();
+        assertThat(ChatModelDispatcher.isRateLimited(new HttpError(503))).isFalse();
+        assertThat(ChatModelDispatcher.isRateLimited(new RuntimeException("Error 429 in line 12"))).isFalse();
+    }
+
+    @Test
+    void should_call_and_count_in_mode_of_dispatching_thread() {
+        final AIMetrics metrics = new AIMetrics(null, ModelType.GIGACHAT);
+        dispatcher = ChatModelDispatcher.builder()
+                .concurrency(2)
+                .queueCapacity(1)
+                .timeout(Duration.ofMillis(100))
+                .maxAttempts(1)
+                .backoff(Duration.ofMillis(10))
+                .metrics(metrics)
+                .build();
+        final Map<Integer, String> modes = new ConcurrentHashMap<>();
+
+        metrics.withMode("HYBRID", () -> {
+            dispatcher.dispatch(List.of(1, 2, 3), task -> {
+                if (task == 3) sleep(10_000);
+                return metrics.mode();
+            }, modes::put);
+            return null;
+        });
+
+        assertThat(modes).containsOnly(Map.entry(1, "HYBRID"), Map.entry(2, "HYBRID"));
+        assertThat(metrics.mode()).isEqualTo(AIMetrics.MODE_NONE);
+        assertThat(metrics.registry().get("ai.chat.dispatch.calls")
+                .tags(AIMetrics.TAG_MODEL, "GIGACHAT", AIMetrics.TAG_MODE, "HYBRID", "outcome", "success")
+                .counter().count()).isEqualTo(2);
+        assertThat(metrics.registry().get("ai.chat.dispatch.calls")
+                .tags(AIMetrics.TAG_MODEL, "GIGACHAT", AIMetrics.TAG_MODE, "HYBRID", "outcome", "timeout")
+                .counter().count()).isEqualTo(1);
+    }
+
+    private static ChatModelDispatcher dispatcher(int concurrency, Duration timeout, int maxAttempts) {
+        return ChatModelDispatcher.builder()
+                .concurrency(concurrency)
+                .queueCapacity(1)
+                .timeout(timeout)
+                .maxAttempts(maxAttempts)
+                .backoff(Duration.ofMillis(10))
+                .build();
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static class HttpError extends RuntimeException {
+        private final int statusCode;
+
+        HttpError(int statusCode) {
+            super("HTTP " + statusCode);
+            this.statusCode = statusCode;
+        }
+
+        public int statusCode() {
+            return statusCode;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package ru.vzotov.ai.application;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ClassificationJobsTest {
+
+    private static final String U_1 = "U1";
+
+    private ClassificationJobs<String> jobs;
+
+    @AfterEach
+    void tearDown() {
+        jobs.shutdown();
+    }
+
+    @Test
+    void should_pass_results_to_subscriber() throws InterruptedException {
+        jobs = jobs(Duration.ofHours(1));
+        final CountDownLatch reported = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final ClassificationJobs.Job<String> job = jobs.submit(U_1, listener -> {
+            listener.accept(List.of("A"));
+            reported.countDown();
+            await(proceed);
+            listener.accept(List.of("B"));
+        });
+        assertThat(reported.await(5, TimeUnit.SECONDS)).isTrue();
+
+        final List<String> received = new CopyOnWriteArrayList<>();
+        final CountDownLatch finished = new CountDownLatch(1);
+        job.subscribe(received::addAll, done -> finished.countDown());
+        proceed.countDown();
+
+        assertThat(finished.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(received).containsExactly("A", "B");
+        assertThat(job.status()).isEqualTo(ClassificationJobs.Status.DONE);
+        assertThat(job.results(1)).containsExactly("B");
+        assertThat(jobs.find(job.id(), U_1)).contains(job);
+        assertThat(jobs.find(job.id(), "U2")).isEmpty();
+    }
+
+    @Test
+    void should_report_failure() throws InterruptedException {
+        jobs = jobs(Duration.ofHours(1));
+        final ClassificationJobs.Job<String> job = jobs.submit(U_1, listener -> {
+            throw new IllegalStateException("failed");
+        });
+
+        final CountDownLatch finished = new CountDownLatch(1);
+        job.subscribe(results -> {
+        }, done -> finished.countDown());
+
+        assertThat(finished.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(job.status()).isEqualTo(ClassificationJobs.Status.FAILED);
+        assertThat(job.error()).isEqualTo("failed");
+    }
+
+    @Test
+    void should_cancel_job_without_subscribers() throws InterruptedException {
+        jobs = jobs(Duration.ofHours(1));
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final ClassificationJobs.Job<String> job = jobs.submit(U_1, listener -> {
+            started.countDown();
+            try {
+                Thread.sleep(10_000);
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+            }
+        });
+        final ClassificationJobs.Subscription first = job.subscribe(results -> {
+        }, done -> {
+        });
+        final ClassificationJobs.Subscription second = job.subscribe(results -> {
+        }, done -> {
+        });
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+
+        first.unsubscribe();
+        assertThat(job.status()).isEqualTo(ClassificationJobs.Status.RUNNING);
+
+        second.unsubscribe();
+        assertThat(job.status()).isEqualTo(ClassificationJobs.Status.CANCELLED);
+        assertThat(interrupted.await(5, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test
+    void should_not_find_expired_jobs() throws InterruptedException {
+        jobs = jobs(Duration.ZERO);
+        final ClassificationJobs.Job<String> job = jobs.submit(U_1, listener -> listener.accept(List.of("A")));
+
+        final CountDownLatch finished = new CountDownLatch(1);
+        job.subscribe(results -> {
+        }, done -> finished.countDown());
+        assertThat(finished.await(5, TimeUnit.SECONDS)).isTrue();
+        Thread.sleep(10);
+
+        assertThat(jobs.find(job.id(), U_1)).isEmpty();
+        jobs.removeExpired();
+        assertThat(jobs.find(job.id(), U_1)).isEmpty();
+    }
+
+    private static ClassificationJobs<String> jobs(Duration retention) {
+        return ClassificationJobs.<String>builder().concurrency(1).queueCapacity(1).retention(retention).build();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,324 @@
+package ru.vzotov.ai.application;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.transaction.PlatformTransactionManager;
+import ru.vzotov.accounting.domain.model.PersistentProperty;
+import ru.vzotov.accounting.domain.model.PersistentPropertyId;
+import ru.vzotov.accounting.domain.model.PersistentPropertyRepository;
+import ru.vzotov.ai.ModelType;
+import ru.vzotov.cashreceipt.domain.model.PurchaseCategory;
+import ru.vzotov.cashreceipt.domain.model.PurchaseCategoryId;
+import ru.vzotov.cashreceipt.domain.model.ReceiptId;
+import ru.vzotov.domain.model.Money;
+import ru.vzotov.person.domain.model.PersonId;
+import ru.vzotov.purchase.domain.model.Purchase;
+import ru.vzotov.purchase.domain.model.PurchaseId;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static ru.vzotov.ai.application.PurchaseMetadata.F_LAYOUT;
+import static ru.vzotov.ai.application.PurchaseMetadata.F_OWNER;
+
+public class PurchaseCategoryIndexerTest {
+
+    private static final int DIMENSION = 16;
+    private static final int PAGE_SIZE = 10;
+    private static final PersonId U_1 = new PersonId("U1");
+    private static final List<PurchaseCategory> CATEGORIES = List.of(
+            new PurchaseCategory(new PurchaseCategoryId("C1"), U_1, "category 1"),
+            new PurchaseCategory(new PurchaseCategoryId("C2"), U_1, "category 2"),
+            new PurchaseCategory(new PurchaseCategoryId("C3"), U_1, "category 3"));
+    private static final Comparator<Purchase> ORDER = Comparator.comparing(Purchase::updatedOn)
+            .thenComparing(purchase -> purchase.purchaseId().value());
+
+    private final ObjectMapper objectMapper = new ObjectMapper().findAndRegisterModules();
+    private final AtomicReference<PersistentProperty> property = new AtomicReference<>();
+    private final AtomicInteger embedded = new AtomicInteger();
+    private final AtomicInteger failOnCall = new AtomicInteger();
+    private final AtomicInteger calls = new AtomicInteger();
+    private final EmbeddingModel embeddingModel = new EmbeddingModel() {
+        @Override
+        public Response<List<Embedding>> embedAll(List<TextSegment> textSegments) {
+            if (calls.incrementAndGet() == failOnCall.get()) {
+                throw new IllegalStateException("Embedding model is not available");
+            }
+            embedded.addAndGet(textSegments.size());
+            return Response.from(textSegments.stream().map(segment -> embedding(segment.text())).toList());
+        }
+    };
+    private List<Purchase> purchases;
+    private TestEmbeddingStore store;
+    private PurchaseCategoryIndexer indexer;
+
+    @BeforeEach
+    void setUp() {
+        // in the order of the indexer
+        purchases = IntStream.range(0, 50)
+                .mapToObj(i -> purchase("P" + i, "purchase " + i, CATEGORIES.get(i % CATEGORIES.size())))
+                .sorted(ORDER)
+                .toList();
+        store = new TestEmbeddingStore();
+
+        PersistentPropertyRepository propertyRepository = Mockito.mock(PersistentPropertyRepository.class);
+        Mockito.when(propertyRepository.findSystemProperty(anyString())).thenAnswer(invocation -> property.get());
+        Mockito.doAnswer(invocation -> {
+            property.set(invocation.getArgument(0));
+            return null;
+        }).when(propertyRepository).store(any());
+
+        indexer = PurchaseCategoryIndexer.builder()
+                .objectMapper(objectMapper)
+                .purchaseQueryRepository(new TestQueryRepository(purchases))
+                .propertyRepository(propertyRepository)
+                .processor(PurchaseCategoryProcessor.builder()
+                        .embeddingModel(embeddingModel)
+                        .embeddingModelName(ModelType.GIGACHAT.name())
+                        .embeddingStore(store)
+                        .partitionSize(PAGE_SIZE)
+                        .build())
+                .nameIndex(new PurchaseNameIndex())
+                .modelType(ModelType.GIGACHAT)
+                .transactionManager(Mockito.mock(PlatformTransactionManager.class))
+                .pageSize(PAGE_SIZE)
+                .metrics(new AIMetrics(null, ModelType.GIGACHAT))
+                .build();
+    }
+
+    @Test
+    void should_resume_from_stored_position_after_failure() throws Exception {
+        failOnCall.set(3);
+
+        assertThatThrownBy(indexer::doIndex).hasRootCauseMessage("Embedding model is not available");
+        assertThat(store.size()).isEqualTo(2 * PAGE_SIZE);
+        PurchasesAIProperties position = properties();
+        assertThat(position.lastPurchaseId()).isEqualTo(purchases.get(2 * PAGE_SIZE - 1).purchaseId().value());
+
+        embedded.set(0);
+        indexer.doIndex();
+
+        assertThat(embedded).hasValue(purchases.size() - 2 * PAGE_SIZE);
+        assertThat(store.size()).isEqualTo(purchases.size());
+        assertThat(properties().lastPurchaseId()).isEqualTo(purchases.get(purchases.size() - 1).purchaseId().value());
+
+        embedded.set(0);
+        indexer.doIndex();
+
+        assertThat(embedded).hasValue(0);
+    }
+
+    @Test
+    void should_reindex_all_purchases_of_outdated_layout() throws Exception {
+        PersistentProperty outdated = new PersistentProperty(PersistentPropertyId.nextId(), "ai.purchases.GIGACHAT");
+        outdated.setValue(objectMapper.writeValueAsString(new PurchasesAIProperties(Instant.now(), null,
+                PurchaseCategoryProcessor.LAYOUT - 1, null)));
+        property.set(outdated);
+        store.upsertAll(List.of("outdated"), List.of(Embedding.from(new float[DIMENSION])),
+                List.of(TextSegment.from("outdated", Metadata.from(F_LAYOUT,
+                        String.valueOf(PurchaseCategoryProcessor.LAYOUT - 1)).add(F_OWNER, U_1.value()))));
+
+        indexer.doIndex();
+
+        assertThat(embedded).hasValue(purchases.size());
+        assertThat(store.size()).isEqualTo(purchases.size());
+        assertThat(store.findAfter(null, purchases.size()))
+                .allSatisfy(document -> assertThat(document.metadata())
+                        .containsEntry(F_LAYOUT, String.valueOf(PurchaseCategoryProcessor.LAYOUT)));
+        PurchasesAIProperties migrated = properties();
+        assertThat(migrated.layout()).isEqualTo(PurchaseCategoryProcessor.LAYOUT);
+        assertThat(migrated.removeOutdated()).isNull();
+    }
+
+    private PurchasesAIProperties properties() throws Exception {
+        return objectMapper.readValue(property.get().value(), PurchasesAIProperties.class);
+    }
+
+    private static Purchase purchase(String id, String name, PurchaseCategory category) {
+        return new TestPurchase(new PurchaseId(id), U_1, name, LocalDateTime.of(2024, 1, 1, 0, 0),
+                Money.rubles(10), BigDecimal.ONE, null, category);
+    }
+
+    private static Embedding embedding(String text) {
+        float[] vector = new float[DIMENSION];
+        for (int i = 0; i < text.length(); i++) {
+            vector[(text.charAt(i) + i) % DIMENSION] += 1;
+        }
+        return Embedding.from(vector);
+    }
+
+    static class TestPurchase extends Purchase {
+        TestPurchase(PurchaseId purchaseId, PersonId owner, String name, LocalDateTime dateTime, Money price,
+                     BigDecimal quantity, ReceiptId receiptId, PurchaseCategory category) {
+            super(purchaseId, owner, name, dateTime, price, quantity, receiptId, category);
+            onCreate();
+        }
+    }
+
+    /**
+     * Purchases ordered by {@code (updatedOn, purchaseId)}, as the indexer reads them
+     */
+    static class TestQueryRepository implements PurchaseQueryRepository {
+
+        private final List<Purchase> purchases;
+
+        TestQueryRepository(List<Purchase> purchases) {
+            this.purchases = purchases.stream().sorted(ORDER).toList();
+        }
+
+        @Override
+        public List<Purchase> findUpdatedAfter(Instant updatedOn, PurchaseId purchaseId, int limit) {
+            return purchases.stream()
+                    .filter(purchase -> {
+                        int compare = purchase.updatedOn().compareTo(updatedOn);
+                        return compare > 0 || (compare == 0 && purchaseId != null
+                                && purchase.purchaseId().value().compareTo(purchaseId.value()) > 0);
+                    })
+                    .limit(limit)
+                    .toList();
+        }
+
+        @Override
+        public List<Purchase> findAll(Collection<PurchaseId> purchaseIds) {
+            return purchases.stream().filter(purchase -> purchaseIds.contains(purchase.purchaseId())).toList();
+        }
+
+        @Override
+        public Set<PurchaseId> findExisting(Collection<PurchaseId> purchaseIds) {
+            return findAll(purchaseIds).stream().map(Purchase::purchaseId).collect(Collectors.toSet());
+        }
+    }
+
+    static class TestEmbeddingStore implements PurchaseEmbeddingStore {
+
+        private final NavigableMap<String, TextSegment> documents = new ConcurrentSkipListMap<>();
+        private final Map<String, float[]> vectors = new ConcurrentHashMap<>();
+
+        int size() {
+            return documents.size();
+        }
+
+        @Override
+        public void upsertAll(List<String> ids, List<Embedding> embeddings, List<TextSegment> segments) {
+            for (int i = 0; i < ids.size(); i++) {
+                documents.put(ids.get(i), segments.get(i));
+                vectors.put(ids.get(i), embeddings.get(i).vector());
+            }
+        }
+
+        @Override
+        public void removeAll(Collection<String> ids) {
+            ids.forEach(id -> {
+                documents.remove(id);
+                vectors.remove(id);
+            });
+        }
+
+        @Override
+        public int removeAllExcept(String key, String value) {
+            List<String> ids = documents.entrySet().stream()
+                    .filter(entry -> !Objects.equals(entry.getValue().metadata().get(key), value))
+                    .map(Map.Entry::getKey)
+                    .toList();
+            removeAll(ids);
+            return ids.size();
+        }
+
+        @Override
+        public List<StoredDocument> findAll(Collection<String> ids) {
+            return ids.stream()
+                    .filter(documents::containsKey)
+                    .map(id -> new StoredDocument(id, documents.get(id).metadata().asMap()))
+                    .toList();
+        }
+
+        @Override
+        public Map<String, float[]> findVectors(Collection<String> ids) {
+            return ids.stream()
+                    .distinct()
+                    .filter(vectors::containsKey)
+                    .collect(Collectors.toMap(id -> id, vectors::get));
+        }
+
+        @Override
+        public List<StoredDocument> findAfter(String afterId, int limit) {
+            return (afterId == null ? documents : documents.tailMap(afterId, false)).entrySet().stream()
+                    .limit(limit)
+                    .map(entry -> new StoredDocument(entry.getKey(), entry.getValue().metadata().asMap()))
+                    .toList();
+        }
+
+        @Override
+        public List<StoredDocument> findAfter(PersonId owner, String afterId, int limit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Set<PersonId> findOwners() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<EmbeddingMatch<TextSegment>> search(PersonId owner, Embedding referenceEmbedding, int maxResults,
+                                                        double minScore) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<EmbeddingMatch<TextSegment>> findRelevant(Embedding referenceEmbedding, int maxResults,
+                                                              double minScore) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String add(Embedding embedding) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void add(String id, Embedding embedding) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String add(Embedding embedding, TextSegment textSegment) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<String> addAll(List<Embedding> embeddings) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<String> addAll(List<Embedding> embeddings, List<TextSegment> embedded) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package ru.vzotov.ai.application;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.vzotov.ai.ModelType;
+import ru.vzotov.cashreceipt.domain.model.PurchaseCategory;
+import ru.vzotov.cashreceipt.domain.model.PurchaseCategoryId;
+import ru.vzotov.cashreceipt.domain.model.ReceiptId;
+import ru.vzotov.domain.model.Money;
+import ru.vzotov.person.domain.model.PersonId;
+import ru.vzotov.purchase.domain.model.Purchase;
+import ru.vzotov.purchase.domain.model.PurchaseId;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static ru.vzotov.ai.application.PurchaseCategoryProcessor.embeddingId;
+import static ru.vzotov.ai.application.PurchaseMetadata.F_FINGERPRINT;
+import static ru.vzotov.ai.application.PurchaseMetadata.F_REFERENCE_ID;
+
+public class PurchaseCategoryProcessorTest {
+
+    private static final int DIMENSION = 16;
+    private static final PersonId U_1 = new PersonId("U1");
+    private static final PurchaseCategory CATEGORY_1 = new PurchaseCategory(new PurchaseCategoryId("C1"), U_1, "category 1");
+    private static final PurchaseCategory CATEGORY_2 = new PurchaseCategory(new PurchaseCategoryId("C2"), U_1, "category 2");
+    private static final PurchaseCategory CATEGORY_3 = new PurchaseCategory(new PurchaseCategoryId("C3"), U_1, "category 3");
+    private static final List<PurchaseCategory> CATEGORIES = List.of(CATEGORY_1, CATEGORY_2, CATEGORY_3);
+
+    private final AtomicInteger embedded = new AtomicInteger();
+    private final AtomicBoolean failing = new AtomicBoolean();
+    private final EmbeddingModel embeddingModel = new EmbeddingModel() {
+        @Override
+        public Response<List<Embedding>> embedAll(List<TextSegment> textSegments) {
+            if (failing.get()) {
+                throw new IllegalStateException("Embedding model is not available");
+            }
+            embedded.addAndGet(textSegments.size());
+            return Response.from(textSegments.stream().map(segment -> embedding(segment.text())).toList());
+        }
+    };
+    private TestEmbeddingStore store;
+    private List<ParallelStage> stages;
+
+    @BeforeEach
+    void setUp() {
+        store = new TestEmbeddingStore();
+        stages = List.of(
+                ParallelStage.builder().name("test-transform").parallelism(1).queueCapacity(2).build(),
+                ParallelStage.builder().name("test-embedding").parallelism(2).queueCapacity(2).build(),
+                ParallelStage.builder().name("test-write").parallelism(2).queueCapacity(2).build());
+    }
+
+    @AfterEach
+    void tearDown() {
+        stages.forEach(ParallelStage::shutdown);
+    }
+
+    @Test
+    void should_write_same_documents_through_pipeline() {
+        List<Purchase> purchases = purchases(50);
+        TestEmbeddingStore sequentialStore = new TestEmbeddingStore();
+
+        IndexingStats pipelined = processor(store, true).process(purchases);
+        processor(sequentialStore, false).process(purchases);
+
+        assertThat(pipelined).isEqualTo(new IndexingStats(50, 0, 0));
+        assertThat(store.size()).isEqualTo(50);
+        List<String> ids = purchases.stream().map(purchase -> embeddingId(purchase.purchaseId())).toList();
+        Map<String, float[]> vectors = store.findVectors(ids);
+        Map<String, float[]> expected = sequentialStore.findVectors(ids);
+        assertThat(vectors).hasSize(50);
+        ids.forEach(id -> assertThat(vectors.get(id)).containsExactly(expected.get(id)));
+        assertThat(store.findAll(ids)).containsExactlyInAnyOrderElementsOf(sequentialStore.findAll(ids));
+    }
+
+    @Test
+    void should_embed_only_changed_purchases() {
+        List<Purchase> purchases = purchases(10);
+        PurchaseCategoryProcessor processor = processor(store, true);
+        processor.process(purchases);
+        embedded.set(0);
+
+        assertThat(processor.process(purchases)).isEqualTo(new IndexingStats(0, 10, 0));
+        assertThat(embedded).hasValue(0);
+
+        Purchase changed = purchases.get(3);
+        String fingerprint = fingerprint(changed);
+        changed.assignCategory(CATEGORY_3);
+
+        assertThat(processor.process(purchases)).isEqualTo(new IndexingStats(1, 9, 0));
+        assertThat(embedded).hasValue(1);
+        assertThat(fingerprint(changed)).isNotEqualTo(fingerprint);
+        assertThat(store.findAll(List.of(embeddingId(changed.purchaseId()))).get(0).metadata())
+                .containsEntry(F_REFERENCE_ID, CATEGORY_3.categoryId().value());
+    }
+
+    @Test
+    void should_upsert_and_delete_documents() {
+        List<Purchase> purchases = purchases(5);
+        PurchaseCategoryProcessor processor = processor(store, true);
+        processor.process(purchases);
+
+        Purchase renamed = purchase(purchases.get(0).purchaseId(), "renamed purchase", purchases.get(0).category());
+        Purchase uncategorized = purchase(purchases.get(1).purchaseId(), purchases.get(1).name(), null);
+
+        assertThat(processor.process(List.of(renamed, uncategorized))).isEqualTo(new IndexingStats(1, 0, 1));
+        assertThat(store.size()).isEqualTo(4);
+        assertThat(store.findAll(List.of(embeddingId(uncategorized.purchaseId())))).isEmpty();
+
+        Set<PurchaseId> existing = Set.of(purchases.get(0).purchaseId(), purchases.get(2).purchaseId());
+        assertThat(processor.removeMissing(ids -> ids.stream().filter(existing::contains)
+                .collect(Collectors.toSet()))).isEqualTo(2);
+        assertThat(store.size()).isEqualTo(2);
+    }
+
+    @Test
+    void should_keep_centroids_when_write_fails() {
+        CategoryCentroids centroids = new CategoryCentroids(1);
+        centroids.markLoaded();
+        Purchase purchase = purchases(1).get(0);
+        PurchaseCategoryProcessor processor = processor(store, centroids, true);
+        processor.process(List.of(purchase));
+        float[] vector = store.findVectors(List.of(embeddingId(purchase.purchaseId())))
+                .get(embeddingId(purchase.purchaseId()));
+        assertThat(centroids.classify(U_1, vector, 0.99, 0)).contains(CATEGORY_1.categoryId());
+
+        purchase.assignCategory(CATEGORY_2);
+        failing.set(true);
+
+        assertThatThrownBy(() -> processor.process(List.of(purchase)))
+                .hasRootCauseMessage("Embedding model is not available");
+        assertThat(centroids.classify(U_1, vector, 0.99, 0)).contains(CATEGORY_1.categoryId());
+    }
+
+    private String fingerprint(Purchase purchase) {
+        return store.findAll(List.of(embeddingId(purchase.purchaseId()))).get(0).metadata().get(F_FINGERPRINT);
+    }
+
+    private PurchaseCategoryProcessor processor(PurchaseEmbeddingStore embeddingStore, boolean pipelined) {
+        return processor(embeddingStore, null, pipelined);
+    }
+
+    private PurchaseCategoryProcessor processor(PurchaseEmbeddingStore embeddingStore,
+                                                CategoryCentroids centroids, boolean pipelined) {
+        return PurchaseCategoryProcessor.builder()
+                .embeddingModel(embeddingModel)
+                .embeddingModelName(ModelType.GIGACHAT.name())
+                .embeddingStore(embeddingStore)
+                .partitionSize(10)
+                .embeddingBatchSize(3)
+                .writeBatchSize(2)
+                .centroids(centroids)
+                .transformStage(pipelined ? stages.get(0) : null)
+                .embeddingStage(pipelined ? stages.get(1) : null)
+                .writeStage(pipelined ? stages.get(2) : null)
+                .build();
+    }
+
+    private static List<Purchase> purchases(int count) {
+        return IntStream.range(0, count)
+                .mapToObj(i -> purchase(new PurchaseId("P" + i), "purchase " + i, CATEGORIES.get(i % CATEGORIES.size())))
+                .toList();
+    }
+
+    private static Purchase purchase(PurchaseId id, String name, PurchaseCategory category) {
+        return new TestPurchase(id, U_1, name, LocalDateTime.of(2024, 1, 1, 0, 0),
+                Money.rubles(10), BigDecimal.ONE, null, category);
+    }
+
+    private static Embedding embedding(String text) {
+        float[] vector = new float[DIMENSION];
+        for (int i = 0; i < text.length(); i++) {
+            vector[(text.charAt(i) + i) % DIMENSION] += 1;
+        }
+        return Embedding.from(vector);
+    }
+
+    static class TestPurchase extends Purchase {
+        TestPurchase(PurchaseId purchaseId, PersonId owner, String name, LocalDateTime dateTime, Money price,
+                     BigDecimal quantity, ReceiptId receiptId, PurchaseCategory category) {
+            super(purchaseId, owner, name, dateTime, price, quantity, receiptId, category);
+            onCreate();
+        }
+    }
+
+    static class TestEmbeddingStore implements PurchaseEmbeddingStore {
+
+        private final NavigableMap<String, TextSegment> documents = new ConcurrentSkipListMap<>();
+        private final Map<String, float[]> vectors = new ConcurrentHashMap<>();
+
+        int size() {
+            return documents.size();
+        }
+
+        @Override
+        public void upsertAll(List<String> ids, List<Embedding> embeddings, List<TextSegment> segments) {
+            for (int i = 0; i < ids.size(); i++) {
+                documents.put(ids.get(i), segments.get(i));
+                vectors.put(ids.get(i), embeddings.get(i).vector());
+            }
+        }
+
+        @Override
+        public void removeAll(Collection<String> ids) {
+            ids.forEach(id -> {
+                documents.remove(id);
+                vectors.remove(id);
+            });
+        }
+
+        @Override
+        public List<StoredDocument> findAll(Collection<String> ids) {
+            return ids.stream()
+                    .filter(documents::containsKey)
+                    .map(id -> new StoredDocument(id, documents.get(id).metadata().asMap()))
+                    .toList();
+        }
+
+        @Override
+        public Map<String, float[]> findVectors(Collection<String> ids) {
+            return ids.stream()
+                    .distinct()
+                    .filter(vectors::containsKey)
+                    .collect(Collectors.toMap(id -> id, vectors::get));
+        }
+
+        @Override
+        public List<StoredDocument> findAfter(String afterId, int limit) {
+            return (afterId == null ? documents : documents.tailMap(afterId, false)).entrySet().stream()
+                    .limit(limit)
+                    .map(entry -> new StoredDocument(entry.getKey(), entry.getValue().metadata().asMap()))
+                    .toList();
+        }
+
+        @Override
+        public List<StoredDocument> findAfter(PersonId owner, String afterId, int limit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int removeAllExcept(String key, String value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Set<PersonId> findOwners() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<EmbeddingMatch<TextSegment>> search(PersonId owner, Embedding referenceEmbedding, int maxResults,
+                                                        double minScore) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<EmbeddingMatch<TextSegment>> findRelevant(Embedding referenceEmbedding, int maxResults,
+                                                              double minScore) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String add(Embedding embedding) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void add(String id, Embedding embedding) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String add(Embedding embedding, TextSegment textSegment) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<String> addAll(List<Embedding> embeddings) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<String> addAll(List<Embedding> embeddings, List<TextSegment> embedded) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
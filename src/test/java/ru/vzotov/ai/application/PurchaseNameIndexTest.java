@@ -0,0 +1,80 @@
+package ru.vzotov.ai.application;
+
+import org.junit.jupiter.api.Test;
+import ru.vzotov.cashreceipt.domain.model.PurchaseCategory;
+import ru.vzotov.cashreceipt.domain.model.PurchaseCategoryId;
+import ru.vzotov.cashreceipt.domain.model.ReceiptId;
+import ru.vzotov.domain.model.Money;
+import ru.vzotov.person.domain.model.PersonId;
+import ru.vzotov.purchase.domain.model.Purchase;
+import ru.vzotov.purchase.domain.model.PurchaseId;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PurchaseNameIndexTest {
+
+    private static final PersonId U_1 = new PersonId("U1");
+    private static final PersonId U_2 = new PersonId("U2");
+    private static final PurchaseCategory CATEGORY_1 = new PurchaseCategory(new PurchaseCategoryId("C1"), U_1, "category 1");
+    private static final PurchaseCategory CATEGORY_2 = new PurchaseCategory(new PurchaseCategoryId("C2"), U_1, "category 2");
+    private static final PurchaseCategory CATEGORY_3 = new PurchaseCategory(new PurchaseCategoryId("C3"), U_2, "category 3");
+
+    @Test
+    void should_change_version_only_when_entries_change() {
+        List<Purchase> purchases = List.of(
+                purchase("P1", U_1, "milk", CATEGORY_1),
+                purchase("P2", U_1, "bread", CATEGORY_1),
+                purchase("P3", U_1, "soap", CATEGORY_2));
+        PurchaseNameIndex index = new PurchaseNameIndex();
+        purchases.forEach(index::update);
+        long version = index.version(U_1);
+
+        purchases.forEach(index::update);
+        index.markLoaded();
+        index.remove(new PurchaseId("missing"));
+        assertThat(index.version(U_1)).isEqualTo(version);
+
+        Purchase changed = purchases.get(0);
+        changed.assignCategory(CATEGORY_2);
+        index.update(changed);
+        assertThat(index.version(U_1)).isGreaterThan(version);
+        assertThat(index.find(U_1, "Milk")).contains(CATEGORY_2.categoryId());
+
+        version = index.version(U_1);
+        purchases.forEach(purchase -> index.remove(purchase.purchaseId()));
+        assertThat(index.version(U_1)).isGreaterThan(version);
+        assertThat(index.size()).isZero();
+    }
+
+    @Test
+    void should_change_version_of_owner_only() {
+        PurchaseNameIndex index = new PurchaseNameIndex();
+        index.update(purchase("P1", U_1, "milk", CATEGORY_1));
+        long version = index.version(U_1);
+        assertThat(index.version(U_2)).isZero();
+
+        index.update(purchase("P2", U_2, "milk", CATEGORY_3));
+
+        assertThat(index.version(U_1)).isEqualTo(version);
+        assertThat(index.version(U_2)).isPositive();
+        assertThat(index.find(U_1, "milk")).contains(CATEGORY_1.categoryId());
+        assertThat(index.find(U_2, "milk")).contains(CATEGORY_3.categoryId());
+    }
+
+    private static Purchase purchase(String id, PersonId owner, String name, PurchaseCategory category) {
+        return new TestPurchase(new PurchaseId(id), owner, name, LocalDateTime.of(2024, 1, 1, 0, 0),
+                Money.rubles(10), BigDecimal.ONE, null, category);
+    }
+
+    static class TestPurchase extends Purchase {
+        TestPurchase(PurchaseId purchaseId, PersonId owner, String name, LocalDateTime dateTime, Money price,
+                     BigDecimal quantity, ReceiptId receiptId, PurchaseCategory category) {
+            super(purchaseId, owner, name, dateTime, price, quantity, receiptId, category);
+            onCreate();
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package ru.vzotov.ai.application;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PurchaseNamesTest {
+
+    @Test
+    void should_ignore_case_quantities_and_punctuation() {
+        assertThat(PurchaseNames.normalize("Молоко ПРОСТОКВАШИНО 3,2% 1л"))
+                .isEqualTo("молоко простоквашино");
+        assertThat(PurchaseNames.normalize("  Молоко  Простоквашино, 3.2 %, 1 л "))
+                .isEqualTo("молоко простоквашино");
+        assertThat(PurchaseNames.normalize("Хлеб ржаной x2"))
+                .isEqualTo("хлеб ржаной");
+    }
+
+    @Test
+    void should_keep_numbers_which_are_not_quantities() {
+        assertThat(PurchaseNames.normalize("Кофе Jacobs Monarch 3в1"))
+                .isEqualTo("кофе jacobs monarch 3в1");
+    }
+}
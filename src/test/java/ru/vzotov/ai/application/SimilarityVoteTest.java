@@ -0,0 +1,78 @@
+package ru.vzotov.ai.application;
+
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import org.junit.jupiter.api.Test;
+import ru.vzotov.cashreceipt.domain.model.PurchaseCategoryId;
+import ru.vzotov.person.domain.model.PersonId;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static ru.vzotov.ai.application.PurchaseMetadata.F_REFERENCE_ID;
+
+public class SimilarityVoteTest {
+
+    private static final PersonId U_1 = new PersonId("U1");
+    private static final PurchaseCategoryId C_1 = new PurchaseCategoryId("C1");
+    private static final PurchaseCategoryId C_2 = new PurchaseCategoryId("C2");
+
+    @Test
+    void should_require_votes_above_threshold() {
+        SimilarityVote vote = SimilarityVote.builder().samples(5).threshold(4).minScore(0.8).build();
+
+        assertThat(vote.vote(List.of(match(C_1, 0.9), match(C_1, 0.9), match(C_1, 0.9),
+                match(C_1, 0.9), match(C_1, 0.9)), 4).category()).isEqualTo(C_1);
+
+        SimilarityVote.Vote ambiguous = vote.vote(List.of(match(C_1, 0.9), match(C_1, 0.9), match(C_2, 0.9),
+                match(C_1, 0.9), match(C_1, 0.9)), 4);
+        assertThat(ambiguous.category()).isNull();
+        assertThat(ambiguous.candidates()).containsExactly(C_1, C_2);
+    }
+
+    @Test
+    void should_weight_votes_by_score() {
+        List<EmbeddingMatch<TextSegment>> relevant = List.of(match(C_1, 0.95), match(C_1, 0.95),
+                match(C_2, 0.4), match(C_2, 0.4), match(C_2, 0.4));
+
+        assertThat(SimilarityVote.builder().samples(5).threshold(2).build()
+                .vote(relevant, 2).category()).isEqualTo(C_2);
+        assertThat(SimilarityVote.builder().samples(5).threshold(2).weighting(SimilarityVote.Weighting.SCORE).build()
+                .vote(relevant, 2).category()).isEqualTo(C_1);
+    }
+
+    @Test
+    void should_choose_lowest_threshold_reaching_target_accuracy() {
+        SimilarityVote vote = SimilarityVote.builder().samples(5).threshold(4)
+                .adaptive(true).targetAccuracy(0.9).build();
+
+        int threshold = vote.choose(List.of(
+                new VoteEvaluation.ThresholdResult(0, 100, 80, 0.8, 0),
+                new VoteEvaluation.ThresholdResult(1, 90, 82, 0.91, 0.1),
+                new VoteEvaluation.ThresholdResult(2, 80, 78, 0.97, 0.2)));
+
+        assertThat(threshold).isEqualTo(1);
+        assertThat(vote.choose(List.of(new VoteEvaluation.ThresholdResult(0, 100, 80, 0.8, 0)))).isEqualTo(4);
+    }
+
+    @Test
+    void should_use_adapted_threshold_of_person() {
+        SimilarityVote adaptive = SimilarityVote.builder().samples(5).threshold(4).adaptive(true).build();
+        adaptive.thresholds(Map.of(U_1, 1));
+
+        assertThat(adaptive.threshold(U_1)).isEqualTo(1);
+        assertThat(adaptive.threshold(new PersonId("U2"))).isEqualTo(4);
+
+        SimilarityVote fixed = SimilarityVote.builder().samples(5).threshold(4).build();
+        fixed.thresholds(Map.of(U_1, 1));
+
+        assertThat(fixed.threshold(U_1)).isEqualTo(4);
+    }
+
+    private static EmbeddingMatch<TextSegment> match(PurchaseCategoryId category, double score) {
+        return new EmbeddingMatch<>(score, null, null,
+                TextSegment.from("purchase", Metadata.from(F_REFERENCE_ID, category.value())));
+    }
+}
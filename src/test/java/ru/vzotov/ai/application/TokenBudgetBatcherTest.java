@@ -0,0 +1,34 @@
+package ru.vzotov.ai.application;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TokenBudgetBatcherTest {
+
+    private final TokenBudgetBatcher batcher = TokenBudgetBatcher.builder()
+            .tokenBudget(10)
+            .maxSize(3)
+            .charsPerToken(1)
+            .build();
+
+    @Test
+    void should_fill_chunks_up_to_the_budget() {
+        assertThat(batcher.partition(List.of("aaa", "bbb", "cc", "d", "eeee"), String::length, 2))
+                .containsExactly(List.of("aaa", "bbb", "cc"), List.of("d", "eeee"));
+    }
+
+    @Test
+    void should_limit_size_of_chunks() {
+        assertThat(batcher.partition(List.of("a", "b", "c", "d"), String::length, 0))
+                .containsExactly(List.of("a", "b", "c"), List.of("d"));
+    }
+
+    @Test
+    void should_put_large_item_into_its_own_chunk() {
+        assertThat(batcher.partition(List.of("a", "bbbbbbbbbbbb", "c"), String::length, 0))
+                .containsExactly(List.of("a"), List.of("bbbbbbbbbbbb"), List.of("c"));
+    }
+}
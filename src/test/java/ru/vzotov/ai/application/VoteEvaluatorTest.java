@@ -0,0 +1,180 @@
+package ru.vzotov.ai.application;
+
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.vzotov.ai.infrastructure.vector.PartitionedVectorIndex;
+import ru.vzotov.person.domain.model.PersonId;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static ru.vzotov.ai.application.PurchaseMetadata.F_OWNER;
+import static ru.vzotov.ai.application.PurchaseMetadata.F_REFERENCE_ID;
+
+public class VoteEvaluatorTest {
+
+    private static final PersonId U_1 = new PersonId("U1");
+    private static final PersonId U_2 = new PersonId("U2");
+
+    private TestEmbeddingStore store;
+    private SimilarityVote vote;
+
+    @BeforeEach
+    void setUp() {
+        store = new TestEmbeddingStore();
+        vote = SimilarityVote.builder().samples(2).threshold(1).minScore(0.8).targetAccuracy(0.9).build();
+        for (int i = 0; i < 3; i++) {
+            put(U_1, "C1", 1, 0);
+            put(U_1, "C2", 0, 1);
+            put(U_2, "C3", 1, 0);
+        }
+    }
+
+    @Test
+    void should_evaluate_purchases_of_person_only() {
+        VoteEvaluation evaluation = evaluator(100).evaluate(U_1, 100);
+
+        assertThat(evaluation.purchases()).isEqualTo(6);
+        assertThat(evaluation.thresholds()).allSatisfy(result -> {
+            assertThat(result.decided()).isEqualTo(6);
+            assertThat(result.accuracy()).isEqualTo(1.0);
+        });
+        assertThat(evaluation.threshold()).isEqualTo(0);
+        assertThat(store.findOwners()).containsExactlyInAnyOrder(U_1, U_2);
+    }
+
+    @Test
+    void should_cap_limit() {
+        assertThat(evaluator(4).evaluate(U_1, 100).purchases()).isEqualTo(4);
+    }
+
+    @Test
+    void should_not_adapt_threshold_on_evaluation() {
+        SimilarityVote adaptive = SimilarityVote.builder().samples(2).threshold(1).minScore(0.8)
+                .adaptive(true).targetAccuracy(0.9).build();
+
+        VoteEvaluator.builder().embeddingStore(store).vote(adaptive).pageSize(2).maxLimit(100).build()
+                .evaluate(U_1, 100);
+
+        assertThat(adaptive.threshold(U_1)).isEqualTo(1);
+    }
+
+    private VoteEvaluator evaluator(int maxLimit) {
+        return VoteEvaluator.builder().embeddingStore(store).vote(vote).pageSize(2).maxLimit(maxLimit).build();
+    }
+
+    private void put(PersonId owner, String category, float x, float y) {
+        store.add(Embedding.from(new float[]{x, y}), TextSegment.from("purchase",
+                Metadata.from(Map.of(F_OWNER, owner.value(), F_REFERENCE_ID, category))));
+    }
+
+    /**
+     * Documents of two-dimensional embeddings, searched by the in-memory index of owners
+     */
+    static class TestEmbeddingStore implements PurchaseEmbeddingStore {
+
+        private final PartitionedVectorIndex index = new PartitionedVectorIndex(2,
+                segment -> segment.metadata().get(F_OWNER));
+        private final NavigableMap<String, TextSegment> documents = new TreeMap<>();
+        private final Map<String, float[]> vectors = new TreeMap<>();
+
+        @Override
+        public String add(Embedding embedding, TextSegment textSegment) {
+            String id = "D%03d".formatted(documents.size());
+            index.put(id, embedding.vector(), textSegment);
+            documents.put(id, textSegment);
+            vectors.put(id, embedding.vector());
+            return id;
+        }
+
+        @Override
+        public List<EmbeddingMatch<TextSegment>> search(PersonId owner, Embedding referenceEmbedding, int maxResults,
+                                                        double minScore) {
+            return index.search(owner.value(), referenceEmbedding.vector(), maxResults, minScore);
+        }
+
+        @Override
+        public Map<String, float[]> findVectors(Collection<String> ids) {
+            return ids.stream()
+                    .filter(vectors::containsKey)
+                    .collect(Collectors.toMap(id -> id, vectors::get));
+        }
+
+        @Override
+        public List<StoredDocument> findAfter(PersonId owner, String afterId, int limit) {
+            return (afterId == null ? documents : documents.tailMap(afterId, false)).entrySet().stream()
+                    .filter(entry -> owner.value().equals(entry.getValue().metadata().get(F_OWNER)))
+                    .limit(limit)
+                    .map(entry -> new StoredDocument(entry.getKey(), entry.getValue().metadata().asMap()))
+                    .toList();
+        }
+
+        @Override
+        public Set<PersonId> findOwners() {
+            return documents.values().stream()
+                    .map(segment -> new PersonId(segment.metadata().get(F_OWNER)))
+                    .collect(Collectors.toSet());
+        }
+
+        @Override
+        public List<StoredDocument> findAfter(String afterId, int limit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<StoredDocument> findAll(Collection<String> ids) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void upsertAll(List<String> ids, List<Embedding> embeddings, List<TextSegment> segments) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void removeAll(Collection<String> ids) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int removeAllExcept(String key, String value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<EmbeddingMatch<TextSegment>> findRelevant(Embedding referenceEmbedding, int maxResults,
+                                                              double minScore) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String add(Embedding embedding) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void add(String id, Embedding embedding) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<String> addAll(List<Embedding> embeddings) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<String> addAll(List<Embedding> embeddings, List<TextSegment> embedded) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
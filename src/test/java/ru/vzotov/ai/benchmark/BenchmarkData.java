@@ -0,0 +1,91 @@
+package ru.vzotov.ai.benchmark;
+
+import ru.vzotov.cashreceipt.domain.model.PurchaseCategory;
+import ru.vzotov.cashreceipt.domain.model.PurchaseCategoryId;
+import ru.vzotov.cashreceipt.domain.model.ReceiptId;
+import ru.vzotov.domain.model.Money;
+import ru.vzotov.person.domain.model.PersonId;
+import ru.vzotov.purchase.domain.model.Purchase;
+import ru.vzotov.purchase.domain.model.PurchaseId;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Deterministic categories and purchases of one person.
+ * <p>
+ * Every category has its own vocabulary, and purchase names are random words of the category vocabulary,
+ * so names of one category are similar to each other.
+ */
+public class BenchmarkData {
+
+    public static final PersonId OWNER = new PersonId("U1");
+
+    private static final int WORDS_PER_CATEGORY = 20;
+    private static final int WORDS_PER_NAME = 3;
+
+    private final Random random = new Random(42);
+    private final List<PurchaseCategory> categories;
+    private int sequence;
+
+    public BenchmarkData(int categoryCount) {
+        this.categories = IntStream.range(0, categoryCount)
+                .mapToObj(i -> new PurchaseCategory(new PurchaseCategoryId("C" + i), OWNER, "category " + i))
+                .toList();
+    }
+
+    public List<PurchaseCategory> categories() {
+        return categories;
+    }
+
+    /**
+     * Purchases with assigned categories
+     */
+    public List<Purchase> categorized(int count) {
+        final List<Purchase> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final PurchaseCategory category = categories.get(random.nextInt(categories.size()));
+            result.add(purchase(name(category), category));
+        }
+        return result;
+    }
+
+    /**
+     * Purchases without categories
+     */
+    public List<Purchase> uncategorized(int count) {
+        final List<Purchase> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(purchase(name(categories.get(random.nextInt(categories.size()))), null));
+        }
+        return result;
+    }
+
+    private String name(PurchaseCategory category) {
+        final StringBuilder name = new StringBuilder();
+        for (int i = 0; i < WORDS_PER_NAME; i++) {
+            if (i > 0) name.append(' ');
+            name.append(category.categoryId().value()).append('w').append(random.nextInt(WORDS_PER_CATEGORY));
+        }
+        return name.toString();
+    }
+
+    private Purchase purchase(String name, PurchaseCategory category) {
+        final int n = sequence++;
+        return new BenchmarkPurchase(new PurchaseId("P" + n), OWNER, name,
+                LocalDateTime.of(2024, 1, 1, 0, 0).plusMinutes(n),
+                Money.rubles(10), BigDecimal.ONE, null, category);
+    }
+
+    static class BenchmarkPurchase extends Purchase {
+        BenchmarkPurchase(PurchaseId purchaseId, PersonId owner, String name, LocalDateTime dateTime, Money price,
+                          BigDecimal quantity, ReceiptId receiptId, PurchaseCategory category) {
+            super(purchaseId, owner, name, dateTime, price, quantity, receiptId, category);
+            onCreate();
+        }
+    }
+}
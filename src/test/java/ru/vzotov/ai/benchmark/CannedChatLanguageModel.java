@@ -0,0 +1,53 @@
+package ru.vzotov.ai.benchmark;
+
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.model.chat.ChatLanguageModel;
+import dev.langchain4j.model.output.Response;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Chat model that answers after a fixed latency.
+ * Every purchase of the request is classified with the first category of the request.
+ */
+public class CannedChatLanguageModel implements ChatLanguageModel {
+
+    private static final Pattern PURCHASES = Pattern.compile("(?s)Purchases[^\\n]*\\n(.*?)\\n[^\\n]*categories");
+    private static final Pattern ITEM = Pattern.compile("(?m)^(\\d+)\\|");
+
+    private final Duration latency;
+
+    public CannedChatLanguageModel(Duration latency) {
+        this.latency = latency;
+    }
+
+    @Override
+    public Response<AiMessage> generate(List<ChatMessage> messages) {
+        try {
+            Thread.sleep(latency.toMillis());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+        final String text = messages.stream()
+                .filter(UserMessage.class::isInstance)
+                .map(ChatMessage::text)
+                .reduce((first, second) -> second)
+                .orElse("");
+        final List<String> items = new ArrayList<>();
+        final Matcher purchases = PURCHASES.matcher(text);
+        if (purchases.find()) {
+            final Matcher purchase = ITEM.matcher(purchases.group(1));
+            while (purchase.find()) {
+                items.add("{\"purchase\": %s, \"category\": 1}".formatted(purchase.group(1)));
+            }
+        }
+        return Response.from(AiMessage.from("{\"classification\": [%s]}".formatted(String.join(", ", items))));
+    }
+}
@@ -0,0 +1,182 @@
+package ru.vzotov.ai.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import ru.vzotov.accounting.infrastructure.security.User;
+import ru.vzotov.accounting.interfaces.purchases.PurchasesApi;
+import ru.vzotov.ai.ModelType;
+import ru.vzotov.ai.application.AIMetrics;
+import ru.vzotov.ai.application.CategoryCentroids;
+import ru.vzotov.ai.application.ChatModelDispatcher;
+import ru.vzotov.ai.application.ClassificationCache;
+import ru.vzotov.ai.application.ParallelStage;
+import ru.vzotov.ai.application.PurchaseCategoryProcessor;
+import ru.vzotov.ai.application.PurchaseNameIndex;
+import ru.vzotov.ai.application.SimilarityVote;
+import ru.vzotov.ai.application.TokenBudgetBatcher;
+import ru.vzotov.ai.application.VoteEvaluator;
+import ru.vzotov.ai.interfaces.facade.impl.AIFacadeImpl;
+import ru.vzotov.cashreceipt.domain.model.PurchaseCategoryRepository;
+import ru.vzotov.purchase.domain.model.Purchase;
+import ru.vzotov.purchases.domain.model.PurchaseRepository;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hybrid classification of a batch of unknown purchases against an index of categorized purchases.
+ * <p>
+ * Embeddings are hashed words, the vector store is in memory and the chat model answers after a fixed latency,
+ * so the results show the local cost of the pipeline and how it scales with the batch, categories and index.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ClassificationBenchmark {
+
+    private static final int DIMENSION = 256;
+    private static final Duration CHAT_LATENCY = Duration.ofMillis(20);
+
+    @Param({"10", "100"})
+    public int batchSize;
+
+    @Param({"10", "50"})
+    public int categoryCount;
+
+    @Param({"1000", "10000"})
+    public int indexSize;
+
+    private AIFacadeImpl facade;
+    private ChatModelDispatcher dispatcher;
+    private ParallelStage similarityStage;
+    private List<String> purchaseIds;
+
+    @Setup
+    public void setUp() {
+        final BenchmarkData data = new BenchmarkData(categoryCount);
+        final List<Purchase> indexed = data.categorized(indexSize);
+        final List<Purchase> unknown = data.uncategorized(batchSize);
+        final List<Purchase> all = new ArrayList<>(indexed);
+        all.addAll(unknown);
+
+        final EmbeddingModel embeddingModel = new HashEmbeddingModel(DIMENSION);
+        final InMemoryPurchaseEmbeddingStore embeddingStore = new InMemoryPurchaseEmbeddingStore(DIMENSION);
+        final CategoryCentroids centroids = new CategoryCentroids(3);
+        final PurchaseCategoryProcessor processor = PurchaseCategoryProcessor.builder()
+                .embeddingModel(embeddingModel)
+                .embeddingModelName(ModelType.GIGACHAT.name())
+                .embeddingStore(embeddingStore)
+                .partitionSize(100)
+                .centroids(centroids)
+                .build();
+        processor.loadCentroids();
+        processor.process(indexed);
+
+        final PurchaseCategoryRepository categoryRepository = Mockito.mock(PurchaseCategoryRepository.class);
+        Mockito.when(categoryRepository.findAll(BenchmarkData.OWNER)).thenReturn(data.categories());
+
+        dispatcher = ChatModelDispatcher.builder()
+                .concurrency(4)
+                .queueCapacity(100)
+                .timeout(Duration.ofSeconds(10))
+                .maxAttempts(1)
+                .backoff(Duration.ofSeconds(1))
+                .build();
+        similarityStage = ParallelStage.builder()
+                .name("benchmark-similarity")
+                .parallelism(4)
+                .queueCapacity(100)
+                .build();
+        final SimilarityVote vote = SimilarityVote.builder().samples(5).threshold(4).minScore(0.8).build();
+        facade = AIFacadeImpl.builder()
+                .purchaseCategoryRepository(categoryRepository)
+                .purchaseRepository(Mockito.mock(PurchaseRepository.class))
+                .purchaseQueryRepository(new InMemoryPurchaseQueryRepository(all))
+                .nameIndex(new PurchaseNameIndex())
+                .classificationCache(ClassificationCache.builder().maximumSize(0).indexVersion(owner -> 0L).build())
+                .embeddingStore(embeddingStore)
+                .embeddingModel(embeddingModel)
+                .chatLanguageModel(new CannedChatLanguageModel(CHAT_LATENCY))
+                .objectMapper(new ObjectMapper().findAndRegisterModules())
+                .chatModelDispatcher(dispatcher)
+                .similarityStage(similarityStage)
+                .similarityBatchSize(50)
+                .similarityVote(vote)
+                .voteEvaluator(VoteEvaluator.builder().embeddingStore(embeddingStore).vote(vote).pageSize(50).maxLimit(1000).build())
+                .candidateCategoryNames(3)
+                .centroids(centroids)
+                .centroidMinScore(0.8)
+                .centroidMargin(0.05)
+                .chatModelBatcher(TokenBudgetBatcher.builder().tokenBudget(4000).maxSize(50).charsPerToken(3).build())
+                .metrics(new AIMetrics(null, ModelType.GIGACHAT))
+                .transactionManager(new NoOpTransactionManager())
+                .build();
+        purchaseIds = unknown.stream().map(purchase -> purchase.purchaseId().value()).toList();
+
+        SecurityContextHolder.setStrategyName(SecurityContextHolder.MODE_GLOBAL);
+        SecurityContextHolder.setContext(securityContext());
+    }
+
+    @TearDown
+    public void tearDown() {
+        dispatcher.shutdown();
+        similarityStage.shutdown();
+        SecurityContextHolder.clearContext();
+    }
+
+    @Benchmark
+    public List<PurchasesApi.Purchase> classifyBySimilarity() {
+        return facade.classifyPurchasesBySimilarity(purchaseIds);
+    }
+
+    @Benchmark
+    public List<PurchasesApi.Purchase> classifyByCentroids() {
+        return facade.classifyPurchasesByCentroids(purchaseIds);
+    }
+
+    private static SecurityContext securityContext() {
+        final String person = BenchmarkData.OWNER.value();
+        final User principal = new User(person, "", new SimpleGrantedAuthority(BenchmarkData.OWNER.authority()),
+                List.<GrantedAuthority>of(new SimpleGrantedAuthority(BenchmarkData.OWNER.authority()),
+                        new SimpleGrantedAuthority("ROLE_USER")));
+        final SecurityContext ctx = SecurityContextHolder.createEmptyContext();
+        ctx.setAuthentication(new UsernamePasswordAuthenticationToken(
+                principal,
+                principal.getPassword(),
+                principal.getAuthorities()
+        ));
+        return ctx;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(ClassificationBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,39 @@
+package ru.vzotov.ai.benchmark;
+
+import com.google.common.hash.Hashing;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Deterministic embedding model: every word of the text is hashed into one of the dimensions,
+ * so texts sharing words have similar embeddings.
+ */
+public class HashEmbeddingModel implements EmbeddingModel {
+
+    private final int dimension;
+
+    public HashEmbeddingModel(int dimension) {
+        this.dimension = dimension;
+    }
+
+    @Override
+    public Response<List<Embedding>> embedAll(List<TextSegment> textSegments) {
+        return Response.from(textSegments.stream().map(segment -> embed(segment.text())).toList());
+    }
+
+    private Embedding embed(String text) {
+        final float[] vector = new float[dimension];
+        for (String word : text.toLowerCase(Locale.ROOT).split("\\s+")) {
+            if (word.isEmpty()) continue;
+            final int hash = Hashing.murmur3_32_fixed().hashString(word, StandardCharsets.UTF_8).asInt();
+            vector[Math.floorMod(hash, dimension)] += (hash & 1) == 0 ? 1f : -1f;
+        }
+        return Embedding.from(vector);
+    }
+}
@@ -0,0 +1,152 @@
+package ru.vzotov.ai.benchmark;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import ru.vzotov.ai.application.PurchaseEmbeddingStore;
+import ru.vzotov.ai.application.StoredDocument;
+import ru.vzotov.ai.infrastructure.vector.PartitionedVectorIndex;
+import ru.vzotov.person.domain.model.PersonId;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Collectors;
+
+import static ru.vzotov.ai.application.PurchaseMetadata.F_OWNER;
+
+/**
+ * Purchase embedding store kept in memory
+ */
+public class InMemoryPurchaseEmbeddingStore implements PurchaseEmbeddingStore {
+
+    private final PartitionedVectorIndex index;
+    private final NavigableMap<String, TextSegment> documents = new ConcurrentSkipListMap<>();
+    private final Map<String, float[]> vectors = new ConcurrentHashMap<>();
+
+    public InMemoryPurchaseEmbeddingStore(int dimension) {
+        this.index = new PartitionedVectorIndex(dimension, segment -> segment.metadata().get(F_OWNER));
+    }
+
+    public int size() {
+        return documents.size();
+    }
+
+    @Override
+    public String add(Embedding embedding) {
+        return add(embedding, null);
+    }
+
+    @Override
+    public void add(String id, Embedding embedding) {
+        upsertAll(List.of(id), List.of(embedding), Collections.singletonList(null));
+    }
+
+    @Override
+    public String add(Embedding embedding, TextSegment textSegment) {
+        final String id = UUID.randomUUID().toString();
+        upsertAll(List.of(id), List.of(embedding), Collections.singletonList(textSegment));
+        return id;
+    }
+
+    @Override
+    public List<String> addAll(List<Embedding> embeddings) {
+        return embeddings.stream().map(this::add).toList();
+    }
+
+    @Override
+    public List<String> addAll(List<Embedding> embeddings, List<TextSegment> embedded) {
+        final List<String> ids = embeddings.stream().map(embedding -> UUID.randomUUID().toString()).toList();
+        upsertAll(ids, embeddings, embedded);
+        return ids;
+    }
+
+    @Override
+    public List<EmbeddingMatch<TextSegment>> findRelevant(Embedding referenceEmbedding, int maxResults, double minScore) {
+        return index.search(referenceEmbedding.vector(), maxResults, minScore);
+    }
+
+    @Override
+    public List<EmbeddingMatch<TextSegment>> search(PersonId owner, Embedding referenceEmbedding, int maxResults, double minScore) {
+        return index.search(owner.value(), referenceEmbedding.vector(), maxResults, minScore);
+    }
+
+    @Override
+    public void upsertAll(List<String> ids, List<Embedding> embeddings, List<TextSegment> segments) {
+        for (int i = 0; i < ids.size(); i++) {
+            index.put(ids.get(i), embeddings.get(i).vector(), segments.get(i));
+            vectors.put(ids.get(i), embeddings.get(i).vector());
+            if (segments.get(i) != null) {
+                documents.put(ids.get(i), segments.get(i));
+            }
+        }
+    }
+
+    @Override
+    public void removeAll(Collection<String> ids) {
+        ids.forEach(id -> {
+            index.remove(id);
+            documents.remove(id);
+            vectors.remove(id);
+        });
+    }
+
+    @Override
+    public int removeAllExcept(String key, String value) {
+        final List<String> ids = documents.entrySet().stream()
+                .filter(entry -> !Objects.equals(entry.getValue().metadata().get(key), value))
+                .map(Map.Entry::getKey)
+                .toList();
+        removeAll(ids);
+        return ids.size();
+    }
+
+    @Override
+    public List<StoredDocument> findAll(Collection<String> ids) {
+        return ids.stream()
+                .filter(documents::containsKey)
+                .map(id -> new StoredDocument(id, documents.get(id).metadata().asMap()))
+                .toList();
+    }
+
+    @Override
+    public Map<String, float[]> findVectors(Collection<String> ids) {
+        return ids.stream()
+                .distinct()
+                .filter(vectors::containsKey)
+                .collect(Collectors.toMap(id -> id, vectors::get));
+    }
+
+    @Override
+    public List<StoredDocument> findAfter(String afterId, int limit) {
+        return (afterId == null ? documents : documents.tailMap(afterId, false)).entrySet().stream()
+                .limit(limit)
+                .map(entry -> new StoredDocument(entry.getKey(), entry.getValue().metadata().asMap()))
+                .toList();
+    }
+
+    @Override
+    public List<StoredDocument> findAfter(PersonId owner, String afterId, int limit) {
+        return (afterId == null ? documents : documents.tailMap(afterId, false)).entrySet().stream()
+                .filter(entry -> owner.value().equals(entry.getValue().metadata().get(F_OWNER)))
+                .limit(limit)
+                .map(entry -> new StoredDocument(entry.getKey(), entry.getValue().metadata().asMap()))
+                .toList();
+    }
+
+    @Override
+    public Set<PersonId> findOwners() {
+        return documents.values().stream()
+                .map(segment -> segment.metadata().get(F_OWNER))
+                .filter(Objects::nonNull)
+                .map(PersonId::new)
+                .collect(Collectors.toSet());
+    }
+}
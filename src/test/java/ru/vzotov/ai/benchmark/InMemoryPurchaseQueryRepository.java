@@ -0,0 +1,55 @@
+package ru.vzotov.ai.benchmark;
+
+import ru.vzotov.ai.application.PurchaseQueryRepository;
+import ru.vzotov.purchase.domain.model.Purchase;
+import ru.vzotov.purchase.domain.model.PurchaseId;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Purchase query repository over a fixed list of purchases
+ */
+public class InMemoryPurchaseQueryRepository implements PurchaseQueryRepository {
+
+    private static final Comparator<Purchase> ORDER = Comparator.comparing(Purchase::updatedOn)
+            .thenComparing(purchase -> purchase.purchaseId().value());
+
+    private final List<Purchase> purchases;
+    private final Map<PurchaseId, Purchase> byId;
+
+    public InMemoryPurchaseQueryRepository(List<Purchase> purchases) {
+        this.purchases = purchases.stream().sorted(ORDER).toList();
+        this.byId = purchases.stream()
+                .collect(Collectors.toMap(Purchase::purchaseId, it -> it, (a, b) -> a, LinkedHashMap::new));
+    }
+
+    @Override
+    public List<Purchase> findUpdatedAfter(Instant updatedOn, PurchaseId purchaseId, int limit) {
+        return purchases.stream()
+                .filter(purchase -> {
+                    int compare = purchase.updatedOn().compareTo(updatedOn);
+                    return compare > 0 || (compare == 0 && purchaseId != null
+                            && purchase.purchaseId().value().compareTo(purchaseId.value()) > 0);
+                })
+                .limit(limit)
+                .toList();
+    }
+
+    @Override
+    public List<Purchase> findAll(Collection<PurchaseId> purchaseIds) {
+        return purchaseIds.stream().map(byId::get).filter(Objects::nonNull).toList();
+    }
+
+    @Override
+    public Set<PurchaseId> findExisting(Collection<PurchaseId> purchaseIds) {
+        return purchaseIds.stream().filter(byId::containsKey).collect(Collectors.toSet());
+    }
+}
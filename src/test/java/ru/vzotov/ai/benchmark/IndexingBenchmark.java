@@ -0,0 +1,129 @@
+package ru.vzotov.ai.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import ru.vzotov.accounting.domain.model.PersistentPropertyRepository;
+import ru.vzotov.ai.ModelType;
+import ru.vzotov.ai.application.AIMetrics;
+import ru.vzotov.ai.application.CategoryCentroids;
+import ru.vzotov.ai.application.IndexingStats;
+import ru.vzotov.ai.application.ParallelStage;
+import ru.vzotov.ai.application.PurchaseCategoryIndexer;
+import ru.vzotov.ai.application.PurchaseCategoryProcessor;
+import ru.vzotov.ai.application.PurchaseNameIndex;
+import ru.vzotov.purchase.domain.model.Purchase;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Indexing of purchases into an empty in-memory store.
+ * <p>
+ * {@code process} measures the processor alone on a batch of purchases,
+ * {@code fullRun} measures the whole indexer run over the index: paging, name index and stored position.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class IndexingBenchmark {
+
+    private static final int DIMENSION = 256;
+
+    @Param({"10", "100"})
+    public int batchSize;
+
+    @Param({"10", "50"})
+    public int categoryCount;
+
+    @Param({"1000", "10000"})
+    public int indexSize;
+
+    @Param({"false", "true"})
+    public boolean pipelined;
+
+    private List<Purchase> batch;
+    private List<Purchase> purchases;
+    private PurchaseCategoryProcessor processor;
+    private PurchaseCategoryIndexer indexer;
+    private List<ParallelStage> stages;
+
+    @Setup(Level.Trial)
+    public void setUpData() {
+        final BenchmarkData data = new BenchmarkData(categoryCount);
+        purchases = data.categorized(indexSize);
+        batch = purchases.subList(0, Math.min(batchSize, purchases.size()));
+        stages = pipelined ? List.of(
+                ParallelStage.builder().name("benchmark-transform").parallelism(1).queueCapacity(4).build(),
+                ParallelStage.builder().name("benchmark-embedding").parallelism(4).queueCapacity(4).build(),
+                ParallelStage.builder().name("benchmark-write").parallelism(2).queueCapacity(4).build())
+                : List.of();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownStages() {
+        stages.forEach(ParallelStage::shutdown);
+    }
+
+    @Setup(Level.Invocation)
+    public void setUp() {
+        final AIMetrics metrics = new AIMetrics(null, ModelType.GIGACHAT);
+        processor = PurchaseCategoryProcessor.builder()
+                .embeddingModel(new HashEmbeddingModel(DIMENSION))
+                .embeddingModelName(ModelType.GIGACHAT.name())
+                .embeddingStore(new InMemoryPurchaseEmbeddingStore(DIMENSION))
+                .partitionSize(batchSize)
+                .embeddingBatchSize(Math.max(1, batchSize / 4))
+                .writeBatchSize(Math.max(1, batchSize / 4))
+                .centroids(new CategoryCentroids(3))
+                .transformStage(pipelined ? stages.get(0) : null)
+                .embeddingStage(pipelined ? stages.get(1) : null)
+                .writeStage(pipelined ? stages.get(2) : null)
+                .build();
+        indexer = PurchaseCategoryIndexer.builder()
+                .objectMapper(new ObjectMapper().findAndRegisterModules())
+                .purchaseQueryRepository(new InMemoryPurchaseQueryRepository(purchases))
+                .propertyRepository(Mockito.mock(PersistentPropertyRepository.class))
+                .processor(processor)
+                .nameIndex(new PurchaseNameIndex())
+                .modelType(ModelType.GIGACHAT)
+                .transactionManager(new NoOpTransactionManager())
+                .pageSize(batchSize)
+                .metrics(metrics)
+                .build();
+    }
+
+    @Benchmark
+    public IndexingStats process() {
+        return processor.process(batch);
+    }
+
+    @Benchmark
+    public void fullRun() {
+        indexer.doIndex();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(IndexingBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
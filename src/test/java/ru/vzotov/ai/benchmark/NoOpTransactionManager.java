@@ -0,0 +1,25 @@
+package ru.vzotov.ai.benchmark;
+
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+
+/**
+ * Transaction manager for stand-ins without transactions
+ */
+public class NoOpTransactionManager implements PlatformTransactionManager {
+
+    @Override
+    public TransactionStatus getTransaction(TransactionDefinition definition) {
+        return new SimpleTransactionStatus();
+    }
+
+    @Override
+    public void commit(TransactionStatus status) {
+    }
+
+    @Override
+    public void rollback(TransactionStatus status) {
+    }
+}
@@ -0,0 +1,76 @@
+package ru.vzotov.ai.infrastructure.embedding;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import org.junit.jupiter.api.Test;
+import ru.vzotov.ai.ModelType;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CachedEmbeddingModelTest {
+
+    @Test
+    void should_not_embed_same_text_twice() {
+        final List<String> requested = new ArrayList<>();
+        final EmbeddingModel delegate = segments -> {
+            segments.forEach(s -> requested.add(s.text()));
+            return Response.from(segments.stream()
+                    .map(s -> Embedding.from(new float[]{s.text().length(), 1f}))
+                    .toList());
+        };
+        final EmbeddingCache cache = EmbeddingCache.builder()
+                .maximumSize(100)
+                .expireAfterAccess(Duration.ofMinutes(1))
+                .build();
+        final CachedEmbeddingModel model = CachedEmbeddingModel.builder()
+                .delegate(delegate)
+                .cache(cache)
+                .modelType(ModelType.GIGACHAT)
+                .build();
+
+        List<Embedding> first = model.embedAll(List.of(
+                TextSegment.from("Молоко 3.2% 1л"),
+                TextSegment.from("Пакет"),
+                TextSegment.from(" Молоко  3.2% 1л "))).content();
+        List<Embedding> second = model.embedAll(List.of(
+                TextSegment.from("Пакет"),
+                TextSegment.from("Хлеб"))).content();
+
+        assertThat(requested).containsExactly("Молоко 3.2% 1л", "Пакет", "Хлеб");
+        assertThat(first).hasSize(3);
+        assertThat(first.get(0)).isEqualTo(first.get(2));
+        assertThat(second.get(0)).isEqualTo(first.get(1));
+        assertThat(cache.stats().hitCount()).isEqualTo(1);
+    }
+
+    @Test
+    void should_not_share_embeddings_of_other_models() {
+        final List<String> requested = new ArrayList<>();
+        final EmbeddingModel delegate = segments -> {
+            segments.forEach(s -> requested.add(s.text()));
+            return Response.from(segments.stream()
+                    .map(s -> Embedding.from(new float[]{s.text().length(), 1f}))
+                    .toList());
+        };
+        final EmbeddingCache cache = EmbeddingCache.builder()
+                .maximumSize(100)
+                .build();
+        for (String modelName : List.of("minilm.onnx", "e5.onnx", "minilm.onnx")) {
+            CachedEmbeddingModel.builder()
+                    .delegate(delegate)
+                    .cache(cache)
+                    .modelType(ModelType.ONNX)
+                    .modelName(modelName)
+                    .build()
+                    .embedAll(List.of(TextSegment.from("Пакет")));
+        }
+
+        assertThat(requested).containsExactly("Пакет", "Пакет");
+    }
+}
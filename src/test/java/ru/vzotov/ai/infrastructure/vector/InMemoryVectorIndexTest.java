@@ -0,0 +1,44 @@
+package ru.vzotov.ai.infrastructure.vector;
+
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+public class InMemoryVectorIndexTest {
+
+    @Test
+    void should_find_nearest_vectors() {
+        InMemoryVectorIndex index = new InMemoryVectorIndex(2);
+        index.put("a", new float[]{1f, 0f}, TextSegment.from("a"));
+        index.put("b", new float[]{0f, 1f}, TextSegment.from("b"));
+        index.put("c", new float[]{1f, 1f}, TextSegment.from("c"));
+        index.put("d", new float[]{-1f, 0f}, TextSegment.from("d"));
+
+        List<EmbeddingMatch<TextSegment>> matches = index.search(new float[]{2f, 0.1f}, 2, 0.5);
+
+        assertThat(matches).extracting(EmbeddingMatch::embeddingId).containsExactly("a", "c");
+        assertThat(matches.get(0).score()).isCloseTo(0.9994, within(0.001));
+    }
+
+    @Test
+    void should_replace_and_remove_vectors() {
+        InMemoryVectorIndex index = new InMemoryVectorIndex(2);
+        index.put("a", new float[]{1f, 0f}, TextSegment.from("a"));
+        index.put("b", new float[]{0f, 1f}, TextSegment.from("b"));
+        index.put("a", new float[]{0f, 2f}, TextSegment.from("a2"));
+
+        assertThat(index.size()).isEqualTo(2);
+        assertThat(index.search(new float[]{0f, 1f}, 5, 0.99))
+                .extracting(EmbeddingMatch::embeddingId).containsExactlyInAnyOrder("a", "b");
+
+        assertThat(index.remove("a")).isTrue();
+        assertThat(index.remove("a")).isFalse();
+        assertThat(index.search(new float[]{0f, 1f}, 5, 0.0))
+                .extracting(EmbeddingMatch::embeddingId).containsExactly("b");
+    }
+}
@@ -12,11 +12,13 @@ import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.core.context.SecurityContext;
 import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.transaction.PlatformTransactionManager;
 import ru.vzotov.accounting.infrastructure.security.User;
 import ru.vzotov.accounting.interfaces.common.CommonApi;
 import ru.vzotov.accounting.interfaces.purchases.PurchasesApi;
 import ru.vzotov.ai.AIModule;
 import ru.vzotov.ai.application.PurchaseCategoryProcessor;
+import ru.vzotov.ai.application.PurchaseQueryRepository;
 import ru.vzotov.ai.interfaces.facade.AIFacade;
 import ru.vzotov.cashreceipt.domain.model.PurchaseCategory;
 import ru.vzotov.cashreceipt.domain.model.PurchaseCategoryId;
@@ -32,6 +34,7 @@ import ru.vzotov.purchases.domain.model.PurchaseRepository;
 import java.math.BigDecimal;
 import java.time.LocalDateTime;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 import java.util.stream.Collectors;
@@ -78,6 +81,8 @@ public class AIFacadeImplIT {
 
     private PurchaseRepository purchaseRepository;
     private PurchaseCategoryRepository purchaseCategoryRepository;
+    private PurchaseQueryRepository purchaseQueryRepository;
+    private PlatformTransactionManager transactionManager;
 
     ApplicationContextRunner contextRunner = new ApplicationContextRunner()
             .withConfiguration(UserConfigurations.of(AIModule.class));
@@ -87,6 +92,8 @@ public class AIFacadeImplIT {
 
         purchaseRepository = Mockito.mock(PurchaseRepository.class);
         purchaseCategoryRepository = Mockito.mock(PurchaseCategoryRepository.class);
+        purchaseQueryRepository = Mockito.mock(PurchaseQueryRepository.class);
+        transactionManager = Mockito.mock(PlatformTransactionManager.class);
 
         Mockito.when(purchaseCategoryRepository.findAll(Mockito.any()))
                 .thenReturn(List.of(CATEGORY_1, CATEGORY_2));
@@ -100,12 +107,19 @@ public class AIFacadeImplIT {
         Mockito.when(purchaseRepository.find(P_4))
                 .thenReturn(PURCHASE_4);
 
+        Mockito.when(purchaseQueryRepository.findAll(Mockito.anyCollection()))
+                .thenAnswer(invocation -> invocation.<Collection<PurchaseId>>getArgument(0).stream()
+                        .map(purchaseRepository::find)
+                        .toList());
+        Mockito.when(purchaseQueryRepository.findUpdatedAfter(Mockito.any(), Mockito.any(), Mockito.anyInt()))
+                .thenReturn(List.of());
     }
 
     @Test
     void should_classify_purchases() {
         contextRunner
                 .withPropertyValues(
+                        "accounting.ai.enabled=true",
                         "langchain4j.gigachat.chat-model.client-id=" + GIGACHAT_CLIENT_ID,
                         "langchain4j.gigachat.chat-model.client-secret=" + GIGACHAT_CLIENT_SECRET,
                         "langchain4j.gigachat.chat-model.scope=" + GIGACHAT_SCOPE,
@@ -115,6 +129,8 @@ public class AIFacadeImplIT {
                 )
                 .withBean("purchaseRepository", PurchaseRepository.class, () -> purchaseRepository)
                 .withBean("purchaseCategoryRepository", PurchaseCategoryRepository.class, () -> purchaseCategoryRepository)
+                .withBean("purchaseQueryRepository", PurchaseQueryRepository.class, () -> purchaseQueryRepository)
+                .withBean("accounting-tx", PlatformTransactionManager.class, () -> transactionManager)
                 .withBean("objectMapper", ObjectMapper.class, () -> new ObjectMapper().findAndRegisterModules())
                 .run(context -> {
                     PurchaseCategoryProcessor processor = context.getBean(PurchaseCategoryProcessor.class);
@@ -0,0 +1,208 @@
+package ru.vzotov.ai.interfaces.facade.impl;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.model.chat.ChatLanguageModel;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.transaction.PlatformTransactionManager;
+import ru.vzotov.accounting.infrastructure.security.User;
+import ru.vzotov.accounting.interfaces.purchases.PurchasesApi;
+import ru.vzotov.ai.ModelType;
+import ru.vzotov.ai.application.AIMetrics;
+import ru.vzotov.ai.application.CategoryCentroids;
+import ru.vzotov.ai.application.ChatModelDispatcher;
+import ru.vzotov.ai.application.ClassificationCache;
+import ru.vzotov.ai.application.ParallelStage;
+import ru.vzotov.ai.application.PurchaseEmbeddingStore;
+import ru.vzotov.ai.application.PurchaseNameIndex;
+import ru.vzotov.ai.application.PurchaseQueryRepository;
+import ru.vzotov.ai.application.SimilarityVote;
+import ru.vzotov.ai.application.TokenBudgetBatcher;
+import ru.vzotov.ai.application.VoteEvaluator;
+import ru.vzotov.cashreceipt.domain.model.PurchaseCategory;
+import ru.vzotov.cashreceipt.domain.model.PurchaseCategoryId;
+import ru.vzotov.cashreceipt.domain.model.PurchaseCategoryRepository;
+import ru.vzotov.cashreceipt.domain.model.ReceiptId;
+import ru.vzotov.domain.model.Money;
+import ru.vzotov.person.domain.model.PersonId;
+import ru.vzotov.purchase.domain.model.Purchase;
+import ru.vzotov.purchase.domain.model.PurchaseId;
+import ru.vzotov.purchases.domain.model.PurchaseRepository;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+
+public class AIFacadeImplTest {
+
+    private static final int DIMENSION = 16;
+    private static final Pattern PURCHASES = Pattern.compile("(?s)Purchases[^\\n]*\\n(.*?)\\n[^\\n]*categories");
+    private static final Pattern ITEM = Pattern.compile("(?m)^(\\d+)\\|");
+    private static final PersonId U_1 = new PersonId("U1");
+    private static final PurchaseCategory CATEGORY_1 = new PurchaseCategory(new PurchaseCategoryId("C1"), U_1, "category 1");
+    private static final PurchaseCategory CATEGORY_2 = new PurchaseCategory(new PurchaseCategoryId("C2"), U_1, "category 2");
+
+    private ChatModelDispatcher dispatcher;
+    private ParallelStage similarityStage;
+
+    @BeforeEach
+    void setUp() {
+        dispatcher = ChatModelDispatcher.builder()
+                .concurrency(2)
+                .queueCapacity(10)
+                .timeout(Duration.ofMillis(200))
+                .maxAttempts(1)
+                .backoff(Duration.ofMillis(10))
+                .build();
+        similarityStage = ParallelStage.builder().name("test-similarity").parallelism(1).queueCapacity(1).build();
+        SecurityContextHolder.setStrategyName(SecurityContextHolder.MODE_GLOBAL);
+        SecurityContextHolder.setContext(securityContext());
+    }
+
+    @AfterEach
+    void tearDown() {
+        dispatcher.shutdown();
+        similarityStage.shutdown();
+        SecurityContextHolder.clearContext();
+        SecurityContextHolder.setStrategyName(SecurityContextHolder.MODE_THREADLOCAL);
+    }
+
+    @Test
+    void should_leave_purchases_of_timed_out_chunk_unclassified() {
+        final List<Purchase> purchases = List.of(
+                purchase("P1", "milk"),
+                purchase("P2", "kefir"),
+                purchase("P3", "bread"),
+                purchase("P4", "bagel"));
+        final ChatLanguageModel chatModel = firstCategoryModel(purchases.get(0).name());
+        final AtomicInteger emitted = new AtomicInteger();
+        final long start = System.currentTimeMillis();
+
+        final List<PurchasesApi.Purchase> result = facade(purchases, chatModel).classifyPurchases(
+                purchases.stream().map(purchase -> purchase.purchaseId().value()).toList(),
+                chunk -> emitted.addAndGet(chunk.size()));
+
+        assertThat(System.currentTimeMillis() - start).isLessThan(10_000);
+        assertThat(result).hasSize(4);
+        assertThat(emitted).hasValue(4);
+        // chunks of two purchases, the first one times out
+        assertThat(purchases.subList(0, 2)).allSatisfy(purchase -> assertThat(purchase.category()).isNull());
+        assertThat(purchases.subList(2, 4)).allSatisfy(purchase ->
+                assertThat(purchase.category()).isEqualTo(CATEGORY_1));
+    }
+
+    private AIFacadeImpl facade(List<Purchase> purchases, ChatLanguageModel chatModel) {
+        final PurchaseEmbeddingStore embeddingStore = Mockito.mock(PurchaseEmbeddingStore.class);
+        final PurchaseCategoryRepository categoryRepository = Mockito.mock(PurchaseCategoryRepository.class);
+        Mockito.when(categoryRepository.findAll(U_1)).thenReturn(List.of(CATEGORY_1, CATEGORY_2));
+        final PurchaseQueryRepository queryRepository = Mockito.mock(PurchaseQueryRepository.class);
+        Mockito.when(queryRepository.findAll(any())).thenReturn(purchases);
+        final EmbeddingModel embeddingModel = segments -> Response.from(segments.stream()
+                .map(segment -> Embedding.from(new float[DIMENSION]))
+                .toList());
+        final SimilarityVote vote = SimilarityVote.builder().samples(5).threshold(4).minScore(0.8).build();
+        return AIFacadeImpl.builder()
+                .purchaseCategoryRepository(categoryRepository)
+                .purchaseRepository(Mockito.mock(PurchaseRepository.class))
+                .purchaseQueryRepository(queryRepository)
+                .nameIndex(new PurchaseNameIndex())
+                .classificationCache(ClassificationCache.builder().maximumSize(0).indexVersion(owner -> 0L).build())
+                .embeddingStore(embeddingStore)
+                .embeddingModel(embeddingModel)
+                .chatLanguageModel(chatModel)
+                .objectMapper(new ObjectMapper().findAndRegisterModules())
+                .chatModelDispatcher(dispatcher)
+                .similarityStage(similarityStage)
+                .similarityBatchSize(10)
+                .similarityVote(vote)
+                .voteEvaluator(VoteEvaluator.builder().embeddingStore(embeddingStore).vote(vote)
+                        .pageSize(10).maxLimit(100).build())
+                .candidateCategoryNames(3)
+                .centroids(new CategoryCentroids(3))
+                .centroidMinScore(0.8)
+                .centroidMargin(0.05)
+                .chatModelBatcher(TokenBudgetBatcher.builder().tokenBudget(4000).maxSize(2).charsPerToken(3).build())
+                .metrics(new AIMetrics(null, ModelType.GIGACHAT))
+                .transactionManager(Mockito.mock(PlatformTransactionManager.class))
+                .build();
+    }
+
+    /**
+     * Classifies every purchase of the request with the first category of the request.
+     * The request with the hanging purchase does not answer in time.
+     */
+    private static ChatLanguageModel firstCategoryModel(String hanging) {
+        return messages -> {
+            final String text = messages.stream()
+                    .filter(UserMessage.class::isInstance)
+                    .map(ChatMessage::text)
+                    .reduce((first, second) -> second)
+                    .orElse("");
+            if (text.contains(hanging)) {
+                try {
+                    Thread.sleep(30_000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException(e);
+                }
+            }
+            final List<String> items = new ArrayList<>();
+            final Matcher purchases = PURCHASES.matcher(text);
+            if (purchases.find()) {
+                final Matcher purchase = ITEM.matcher(purchases.group(1));
+                while (purchase.find()) {
+                    items.add("{\"purchase\": %s, \"category\": 1}".formatted(purchase.group(1)));
+                }
+            }
+            return Response.from(AiMessage.from("{\"classification\": [%s]}".formatted(String.join(", ", items))));
+        };
+    }
+
+    private static Purchase purchase(String id, String name) {
+        return new TestPurchase(new PurchaseId(id), U_1, name, LocalDateTime.of(2024, 1, 1, 0, 0),
+                Money.rubles(10), BigDecimal.ONE, null, null);
+    }
+
+    private static SecurityContext securityContext() {
+        final String person = U_1.value();
+        final User principal = new User(person, "", new SimpleGrantedAuthority(U_1.authority()),
+                List.<GrantedAuthority>of(new SimpleGrantedAuthority(U_1.authority()),
+                        new SimpleGrantedAuthority("ROLE_USER")));
+        final SecurityContext ctx = SecurityContextHolder.createEmptyContext();
+        ctx.setAuthentication(new UsernamePasswordAuthenticationToken(
+                principal,
+                principal.getPassword(),
+                principal.getAuthorities()
+        ));
+        return ctx;
+    }
+
+    static class TestPurchase extends Purchase {
+        TestPurchase(PurchaseId purchaseId, PersonId owner, String name, LocalDateTime dateTime, Money price,
+                     BigDecimal quantity, ReceiptId receiptId, PurchaseCategory category) {
+            super(purchaseId, owner, name, dateTime, price, quantity, receiptId, category);
+            onCreate();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package ru.vzotov.ai.interfaces.facade.impl;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.model.chat.ChatLanguageModel;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import ru.vzotov.ai.ModelType;
+import ru.vzotov.ai.application.AIMetrics;
+import ru.vzotov.ai.application.CategoryCentroids;
+import ru.vzotov.ai.application.ChatModelDispatcher;
+import ru.vzotov.ai.application.ClassificationCache;
+import ru.vzotov.ai.application.ParallelStage;
+import ru.vzotov.ai.application.PurchaseEmbeddingStore;
+import ru.vzotov.ai.application.PurchaseNameIndex;
+import ru.vzotov.ai.application.SimilarityVote;
+import ru.vzotov.ai.application.TokenBudgetBatcher;
+import ru.vzotov.ai.application.VoteEvaluator;
+import ru.vzotov.ai.benchmark.NoOpTransactionManager;
+import ru.vzotov.cashreceipt.domain.model.PurchaseCategoryRepository;
+import ru.vzotov.purchases.domain.model.PurchaseRepository;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the classifying agent setup: the agent built for every request versus the shared agent.
+ * The chat model returns a canned answer, so only local overhead is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class AgentSetupBenchmark {
+
+    private static final String ANSWER = """
+            {"classification": [{"purchase": 1, "category": 1}]}
+            """;
+
+    private AIFacadeImpl facade;
+    private ChatModelDispatcher dispatcher;
+    private ParallelStage similarityStage;
+    private String request;
+
+    @Setup
+    public void setUp() throws Exception {
+        final ObjectMapper objectMapper = new ObjectMapper().findAndRegisterModules();
+        final EmbeddingModel embeddingModel = segments -> Response.from(segments.stream()
+                .map(s -> Embedding.from(new float[]{s.text().length(), 1f}))
+                .toList());
+        final ChatLanguageModel chatModel = messages -> Response.from(AiMessage.from(ANSWER));
+        dispatcher = ChatModelDispatcher.builder()
+                .concurrency(1)
+                .queueCapacity(1)
+                .timeout(Duration.ofSeconds(10))
+                .maxAttempts(1)
+                .backoff(Duration.ofSeconds(1))
+                .build();
+        similarityStage = ParallelStage.builder()
+                .name("similarity")
+                .parallelism(1)
+                .queueCapacity(1)
+                .build();
+        final SimilarityVote vote = SimilarityVote.builder().samples(5).threshold(4).minScore(0.8).build();
+        final PurchaseEmbeddingStore embeddingStore = Mockito.mock(PurchaseEmbeddingStore.class);
+        facade = AIFacadeImpl.builder()
+                .purchaseCategoryRepository(Mockito.mock(PurchaseCategoryRepository.class))
+                .purchaseRepository(Mockito.mock(PurchaseRepository.class))
+                .nameIndex(new PurchaseNameIndex())
+                .classificationCache(ClassificationCache.builder().maximumSize(0).indexVersion(owner -> 0L).build())
+                .embeddingStore(embeddingStore)
+                .embeddingModel(embeddingModel)
+                .chatLanguageModel(chatModel)
+                .objectMapper(objectMapper)
+                .chatModelDispatcher(dispatcher)
+                .similarityStage(similarityStage)
+                .similarityBatchSize(50)
+                .similarityVote(vote)
+                .voteEvaluator(VoteEvaluator.builder().embeddingStore(embeddingStore).vote(vote).pageSize(50).maxLimit(1000).build())
+                .centroids(new CategoryCentroids(3))
+                .chatModelBatcher(TokenBudgetBatcher.builder().tokenBudget(4000).maxSize(50).charsPerToken(3).build())
+                .metrics(new AIMetrics(null, ModelType.GIGACHAT))
+                .transactionManager(new NoOpTransactionManager())
+                .build();
+        request = objectMapper.writeValueAsString(new AIFacadeImpl.AgentRequest("U1",
+                List.of(new AIFacadeImpl.PurchaseData(1, "purchase 1")),
+                List.of(new AIFacadeImpl.CategoryData(1, "C1", "category 1"))));
+    }
+
+    @TearDown
+    public void tearDown() {
+        dispatcher.shutdown();
+        similarityStage.shutdown();
+    }
+
+    @Benchmark
+    public AIFacadeImpl.AgentResponse perRequestAgent() {
+        return facade.createAgent().classify(request);
+    }
+
+    @Benchmark
+    public AIFacadeImpl.AgentResponse sharedAgent() {
+        return facade.agent().classify(request);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(AgentSetupBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}